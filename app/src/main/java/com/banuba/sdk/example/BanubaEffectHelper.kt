@@ -1,15 +1,43 @@
 package com.banuba.sdk.example
 
+import android.content.Context
+import android.content.res.AssetFileDescriptor
 import android.content.res.AssetManager
 import android.net.Uri
+import android.os.SystemClock
+import android.system.ErrnoException
+import android.system.Os
 import android.util.Log
 import com.banuba.sdk.manager.BanubaSdkManager
 import java.io.File
+import java.io.FileInputStream
+import java.io.FileNotFoundException
 import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Banuba Face AR EffectPlayer can only apply effects stored on the internal memory of the device.
  * This util class prepares AR effect before applying in Banuba Face AR EffectPlayer.
+ * Extraction is incremental: a manifest with the size, SHA-256 and modification time of every extracted
+ * file is kept per effect, files that are up to date are not written again, and nothing is read from
+ * assets while the APK is unchanged. A file modified since extraction is hashed again. Files are written
+ * to a temporary file and renamed, so an interrupted copy never leaves a half-written effect. Assets are listed once and copied by a small pool of I/O threads,
+ * uncompressed ones are mapped straight from the APK.
+ * The files of an effect come from the index generated at build time by the generateEffectIndex task,
+ * which also gives their expected content, assets are only listed if the index is missing.
+ * Content is stored once per SHA-256 in a blob store shared by all effects and hard linked into
+ * effect directories, or copied where the file system has no links. Extracted files are never written
+ * in place, so a link can not change the blob behind it. Blobs no file links to any more are deleted
+ * after each extraction.
  * You can use this implementation it in your project.
  */
 class BanubaEffectHelper {
@@ -18,11 +46,72 @@ class BanubaEffectHelper {
         const val TAG = "BanubaEffectHelper"
 
         private const val DIR_EFFECTS = "effects"
+        private const val DIR_BLOBS = "blobs"
         private const val assetsEffectsDir = "bnb-resources/$DIR_EFFECTS"
+
+        // Written by the generateEffectIndex Gradle task
+        private const val assetsEffectIndexDir = "effect-index"
+
+        private const val MANIFEST_SUFFIX = ".manifest"
+        private const val TEMP_SUFFIX = ".tmp"
+        // Blobs are named by their hash, temporary ones can never take the name of a blob
+        private const val BLOB_TEMP_PREFIX = "blob-"
+
+        // Flash storage gains little from more parallel writes
+        private const val IO_THREADS = 4
+        private const val COPY_BUFFER_SIZE = 64 * 1024
+        private const val IO_THREAD_KEEP_ALIVE_SECONDS = 30L
+
+        // Held while an effect is prepared, so two callers never write the same manifest and pruning
+        // never sees a blob stored but not linked yet
+        private val blobStoreLock = Any()
+
+        // Shared by every extraction, idle threads stop so the pool costs nothing between effects
+        private val ioExecutor: ExecutorService by lazy {
+            val threadCount = AtomicInteger()
+            ThreadPoolExecutor(
+                IO_THREADS,
+                IO_THREADS,
+                IO_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                LinkedBlockingQueue()
+            ) { runnable ->
+                Thread(runnable, "EffectIO-${threadCount.incrementAndGet()}").apply { isDaemon = true }
+            }.apply { allowCoreThreadTimeOut(true) }
+        }
+
+        private fun sha256Of(file: File): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+            val buffer = ByteArray(COPY_BUFFER_SIZE)
+            FileInputStream(file).use { input ->
+                while (true) {
+                    val length = input.read(buffer)
+                    if (length < 0) {
+                        break
+                    }
+                    digest.update(buffer, 0, length)
+                }
+            }
+            return digest.toHex()
+        }
+
+        private fun MessageDigest.toHex() = digest().joinToString("") { "%02x".format(it) }
+    }
+
+    // Reused by every copy made on an I/O thread
+    private val copyBuffer = object : ThreadLocal<ByteArray>() {
+        override fun initialValue() = ByteArray(COPY_BUFFER_SIZE)
     }
 
+    /**
+     * Extracts the effect if needed, call it off the main thread.
+     *
+     * @throws IOException if a file of the effect could not be extracted or the manifest could not be
+     * written, the manifest is left as it was and the next call extracts the effect again
+     */
+    @Throws(IOException::class)
     fun prepareEffect(
-        assetManager: AssetManager,
+        context: Context,
         assetEffectName: String
     ): Effect {
         val effectUri = Uri.parse(BanubaSdkManager.getResourcesBase())
@@ -32,11 +121,66 @@ class BanubaEffectHelper {
             .build()
 
         val file = File(effectUri.toString())
-        copyResources(
-            assetManager,
-            file,
-            "$assetsEffectsDir/$assetEffectName"
-        )
+        // The manifest lives next to the effect, so the effect player never sees it
+        val manifestFile = File(file.parentFile, ".$assetEffectName$MANIFEST_SUFFIX")
+        val apkUpdateTime = context.packageManager
+            .getPackageInfo(context.packageName, 0)
+            .lastUpdateTime
+
+        // One effect is prepared at a time, its manifest is read, checked and written by one caller
+        synchronized(blobStoreLock) {
+            val startTime = SystemClock.elapsedRealtime()
+            val manifest = EffectManifest.read(manifestFile)
+            val verified = if (manifest != null && manifest.apkUpdateTime == apkUpdateTime) {
+                manifest.verify(file)
+            } else {
+                null
+            }
+            if (verified != null && verified !== manifest) {
+                // Files were touched without a change of content, their new times are kept
+                verified.write(manifestFile)
+            }
+            if (verified != null) {
+                Log.i(
+                    TAG,
+                    "Verified $assetEffectName (warm): ${verified.files.size} files " +
+                        "in ${SystemClock.elapsedRealtime() - startTime} ms"
+                )
+            } else {
+                val assetRoot = "$assetsEffectsDir/$assetEffectName"
+                val jobs = mutableListOf<ExtractJob>()
+                val index = EffectManifest.readIndex(context.assets, "$assetsEffectIndexDir/$assetEffectName")
+                if (index != null) {
+                    index.forEach { (path, record) ->
+                        jobs.add(ExtractJob("$assetRoot/$path", path, File(file, path), record))
+                    }
+                } else {
+                    Log.w(TAG, "No index for $assetEffectName, listing assets")
+                    listResources(context.assets, file, assetRoot, "", context.assets.list(assetRoot).orEmpty(), jobs)
+                }
+                val blobsDir = File(BanubaSdkManager.getResourcesBase(), DIR_BLOBS)
+                blobsDir.mkdirs()
+                val planTime = SystemClock.elapsedRealtime()
+                val files = extractFiles(context.assets, jobs, manifest, blobsDir, assetEffectName)
+                val extractTime = SystemClock.elapsedRealtime()
+                manifest?.files?.keys?.minus(files.keys)?.forEach { stalePath ->
+                    File(file, stalePath).delete()
+                }
+                pruneBlobs(blobsDir)
+                val modified = files.keys.associateWith { path -> File(file, path).lastModified() }
+                EffectManifest(apkUpdateTime, files, modified).write(manifestFile)
+                val endTime = SystemClock.elapsedRealtime()
+                // The cold timings of the bundled effects are the ones to compare with EffectExtractionBenchmark
+                Log.i(
+                    TAG,
+                    "Extracted $assetEffectName (${if (manifest == null) "cold" else "update"}): ${files.size} files, " +
+                        "${files.values.sumOf { it.size }} bytes in ${endTime - startTime} ms " +
+                        "(${if (index != null) "index" else "listing"} ${planTime - startTime} ms, " +
+                        "extraction ${extractTime - planTime} ms, pruning and manifest ${endTime - extractTime} ms)"
+                )
+            }
+        }
+
         val uri = Uri.fromFile(file)
         val previewImagePath = uri
             .buildUpon()
@@ -46,66 +190,392 @@ class BanubaEffectHelper {
         return Effect(effectUri, assetEffectName, previewImagePath)
     }
 
-    private fun copyResources(
+    // Lists every asset once: an entry with children is a directory, any other entry is a file
+    private fun listResources(
         assetManager: AssetManager,
         targetDir: File,
-        assetRoot: String
+        assetRoot: String,
+        relativeRoot: String,
+        children: Array<out String>,
+        jobs: MutableList<ExtractJob>
     ) {
         if (!targetDir.exists()) {
             targetDir.mkdirs()
         }
-        if (assetManager.isDirectory(assetRoot)) {
-            assetManager.list(assetRoot)?.forEach { filename ->
-                val sourcePath = Uri.parse(assetRoot)
-                    .buildUpon()
-                    .appendEncodedPath(filename)
-                    .build()
-                    .path ?: throw IllegalStateException("Source path cannot be null!")
-
-                val destFile = File(targetDir, filename)
-
-                if (assetManager.isDirectory(sourcePath)) {
-                    destFile.mkdirs()
-                    copyResources(
-                        assetManager = assetManager,
-                        targetDir = destFile,
-                        assetRoot = sourcePath
-                    )
-                } else {
-                    copyFile(assetManager, sourcePath, destFile)
-                }
+        children.forEach { filename ->
+            val sourcePath = Uri.parse(assetRoot)
+                .buildUpon()
+                .appendEncodedPath(filename)
+                .build()
+                .path ?: throw IllegalStateException("Source path cannot be null!")
+
+            val destFile = File(targetDir, filename)
+            val relativePath = if (relativeRoot.isEmpty()) filename else "$relativeRoot/$filename"
+
+            val grandChildren = assetManager.listOrEmpty(sourcePath)
+            if (grandChildren.isNotEmpty()) {
+                listResources(
+                    assetManager = assetManager,
+                    targetDir = destFile,
+                    assetRoot = sourcePath,
+                    relativeRoot = relativePath,
+                    children = grandChildren,
+                    jobs = jobs
+                )
+            } else {
+                jobs.add(ExtractJob(sourcePath, relativePath, destFile, null))
             }
-        } else {
-            copyFile(assetManager, assetRoot, targetDir)
         }
     }
 
-    private fun copyFile(
+    private fun extractFiles(
         assetManager: AssetManager,
-        sourcePath: String,
+        jobs: List<ExtractJob>,
+        previous: EffectManifest?,
+        blobsDir: File,
+        effectName: String
+    ): Map<String, FileRecord> {
+        val futures = ioExecutor.invokeAll(jobs.map { job ->
+            Callable {
+                extractFile(
+                    assetManager,
+                    job,
+                    previous?.files?.get(job.relativePath),
+                    previous?.modified?.get(job.relativePath),
+                    blobsDir
+                )
+            }
+        })
+        val files = mutableMapOf<String, FileRecord>()
+        val failedPaths = mutableListOf<String>()
+        jobs.forEachIndexed { index, job ->
+            val record = try {
+                futures[index].get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+            if (record != null) {
+                files[job.relativePath] = record
+            } else {
+                failedPaths.add(job.relativePath)
+            }
+        }
+        // A manifest without the failed files would have them deleted as stale and never retried
+        if (failedPaths.isNotEmpty()) {
+            throw IOException(
+                "Could not extract ${failedPaths.size} files of $effectName: ${failedPaths.take(5).joinToString()}"
+            )
+        }
+        return files
+    }
+
+    // Writes the file only if its content differs from the extracted one
+    private fun extractFile(
+        assetManager: AssetManager,
+        job: ExtractJob,
+        previous: FileRecord?,
+        previousModified: Long?,
+        blobsDir: File
+    ): FileRecord? {
+        if (previous != null && job.destFile.isFile && job.destFile.length() == previous.size &&
+            !isChangedSinceExtraction(job.destFile, previous, previousModified, blobsDir)
+        ) {
+            // The index knows the content of the asset, otherwise the asset has to be read
+            val current = job.expected ?: try {
+                readAsset(assetManager, job.sourcePath, null)
+            } catch (e: IOException) {
+                null
+            }
+            if (current == previous) {
+                return previous
+            }
+        }
+        val record = storeBlob(assetManager, job, blobsDir) ?: return null
+        return if (linkBlob(File(blobsDir, record.sha256), job.destFile)) record else null
+    }
+
+    // A file modified in place also changed the blob it is linked to, so the blob is dropped as well
+    private fun isChangedSinceExtraction(
+        file: File,
+        previous: FileRecord,
+        previousModified: Long?,
+        blobsDir: File
+    ): Boolean {
+        if (file.lastModified() == previousModified) {
+            return false
+        }
+        val changed = try {
+            sha256Of(file) != previous.sha256
+        } catch (e: IOException) {
+            true
+        }
+        if (changed) {
+            File(blobsDir, previous.sha256).delete()
+        }
+        return changed
+    }
+
+    // Writes the asset to the blob store unless the store already has its content
+    private fun storeBlob(
+        assetManager: AssetManager,
+        job: ExtractJob,
+        blobsDir: File
+    ): FileRecord? {
+        val expected = job.expected
+        if (expected != null) {
+            val blob = File(blobsDir, expected.sha256)
+            if (blob.isFile && blob.length() == expected.size) {
+                return expected
+            }
+        }
+        // Jobs of the same content may write it at the same time, each one to its own temporary file
+        var tempFile: File? = null
+        return try {
+            tempFile = File.createTempFile(BLOB_TEMP_PREFIX, TEMP_SUFFIX, blobsDir)
+            val record = tempFile.outputStream().channel.use { output ->
+                readAsset(assetManager, job.sourcePath) { buffer ->
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer)
+                    }
+                }
+            }
+            if (expected != null && record != expected) {
+                throw IOException("Content does not match the effect index")
+            }
+            if (!tempFile.renameTo(File(blobsDir, record.sha256))) {
+                throw IOException("Could not rename $tempFile")
+            }
+            record
+        } catch (e: IOException) {
+            Log.w(TAG, "Could not store file ${job.sourcePath}", e)
+            tempFile?.delete()
+            null
+        }
+    }
+
+    // Deletes blobs no extracted file links to any more, which is all of them where links are not
+    // supported, and temporary files left by an interrupted extraction
+    private fun pruneBlobs(blobsDir: File) {
+        blobsDir.listFiles()?.forEach { blob ->
+            try {
+                if (blob.name.startsWith(BLOB_TEMP_PREFIX) || Os.stat(blob.path).st_nlink == 1L) {
+                    blob.delete()
+                }
+            } catch (e: ErrnoException) {
+                Log.w(TAG, "Could not stat blob $blob", e)
+            }
+        }
+    }
+
+    // Hard links the blob to the destination, copies it where links are not supported
+    private fun linkBlob(
+        blob: File,
         desFile: File
-    ) {
-        try {
-            assetManager.open(sourcePath).use { input ->
-                desFile.outputStream().use { output ->
-                    input.copyTo(output)
+    ): Boolean {
+        val tempFile = File(desFile.parentFile, desFile.name + TEMP_SUFFIX)
+        return try {
+            desFile.parentFile?.mkdirs()
+            tempFile.delete()
+            try {
+                Os.link(blob.path, tempFile.path)
+            } catch (e: ErrnoException) {
+                FileInputStream(blob).channel.use { input ->
+                    tempFile.outputStream().channel.use { output ->
+                        val size = input.size()
+                        var position = 0L
+                        while (position < size) {
+                            position += input.transferTo(position, size - position, output)
+                        }
+                    }
                 }
             }
+            if (!tempFile.renameTo(desFile)) {
+                throw IOException("Could not rename $tempFile")
+            }
+            true
         } catch (e: IOException) {
-            Log.w(TAG, "Could not copy file $sourcePath")
+            Log.w(TAG, "Could not link file $desFile")
+            tempFile.delete()
+            false
         }
     }
 
+    // Reads the whole asset, passing its content to the sink, and hashes it on the way
+    private fun readAsset(
+        assetManager: AssetManager,
+        sourcePath: String,
+        sink: ((ByteBuffer) -> Unit)?
+    ): FileRecord {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val descriptor = try {
+            assetManager.openFd(sourcePath)
+        } catch (e: FileNotFoundException) {
+            // The asset is compressed
+            null
+        }
+        if (descriptor != null && descriptor.length != AssetFileDescriptor.UNKNOWN_LENGTH) {
+            // Closing the stream closes the descriptor as well
+            descriptor.createInputStream().use { input ->
+                val mapped = input.channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    descriptor.startOffset,
+                    descriptor.length
+                )
+                digest.update(mapped.duplicate())
+                sink?.invoke(mapped)
+            }
+            return FileRecord(descriptor.length, digest.toHex())
+        }
+        descriptor?.close()
+
+        val buffer = copyBuffer.get()!!
+        var size = 0L
+        assetManager.open(sourcePath).use { input ->
+            while (true) {
+                val length = input.read(buffer)
+                if (length < 0) {
+                    break
+                }
+                digest.update(buffer, 0, length)
+                sink?.invoke(ByteBuffer.wrap(buffer, 0, length))
+                size += length
+            }
+        }
+        return FileRecord(size, digest.toHex())
+    }
+
     data class Effect(
         val uri: Uri,
         val name: String,
         val previewImagePath: Uri
     )
 
-    private fun AssetManager.isDirectory(path: String): Boolean = try {
-        list(path)?.isNotEmpty() ?: false
+    private class ExtractJob(
+        val sourcePath: String,
+        val relativePath: String,
+        val destFile: File,
+        // Content given by the effect index, null if assets were listed
+        val expected: FileRecord?
+    )
+
+    private data class FileRecord(
+        val size: Long,
+        val sha256: String
+    )
+
+    /**
+     * Extracted files of an effect, a text file with the APK update time on the first line
+     * and a "path size sha256 modified" line per file.
+     */
+    private class EffectManifest(
+        val apkUpdateTime: Long,
+        val files: Map<String, FileRecord>,
+        // Modification times of the extracted files
+        val modified: Map<String, Long>
+    ) {
+        /**
+         * Checks sizes and modification times, so an unchanged effect costs a stat per file.
+         * Files modified since extraction are hashed.
+         *
+         * @return this manifest, a copy with the new times if modified files kept their content,
+         * or null if any file is missing or differs
+         */
+        fun verify(effectDir: File): EffectManifest? {
+            var updated: MutableMap<String, Long>? = null
+            for ((path, record) in files) {
+                val file = File(effectDir, path)
+                if (!file.isFile || file.length() != record.size) {
+                    return null
+                }
+                val lastModified = file.lastModified()
+                if (lastModified == modified[path]) {
+                    continue
+                }
+                val sha256 = try {
+                    sha256Of(file)
+                } catch (e: IOException) {
+                    return null
+                }
+                if (sha256 != record.sha256) {
+                    return null
+                }
+                val times = updated ?: modified.toMutableMap()
+                times[path] = lastModified
+                updated = times
+            }
+            return updated?.let { EffectManifest(apkUpdateTime, files, it) } ?: this
+        }
+
+        @Throws(IOException::class)
+        fun write(manifestFile: File) {
+            val tempFile = File(manifestFile.parentFile, manifestFile.name + TEMP_SUFFIX)
+            try {
+                tempFile.bufferedWriter().use { writer ->
+                    writer.write(apkUpdateTime.toString())
+                    writer.newLine()
+                    files.forEach { (path, record) ->
+                        writer.write("$path ${record.size} ${record.sha256} ${modified[path] ?: 0}")
+                        writer.newLine()
+                    }
+                }
+                if (!tempFile.renameTo(manifestFile)) {
+                    throw IOException("Could not rename $tempFile")
+                }
+            } catch (e: IOException) {
+                tempFile.delete()
+                throw IOException("Could not write manifest $manifestFile", e)
+            }
+        }
+
+        companion object {
+            fun read(manifestFile: File): EffectManifest? = try {
+                val lines = manifestFile.readLines()
+                val files = mutableMapOf<String, FileRecord>()
+                val modified = mutableMapOf<String, Long>()
+                lines.drop(1).forEach { line ->
+                    val modifiedStart = line.lastIndexOf(' ')
+                    val (path, record) = parseFile(line.substring(0, modifiedStart))
+                    files[path] = record
+                    modified[path] = line.substring(modifiedStart + 1).toLong()
+                }
+                EffectManifest(lines.first().toLong(), files, modified)
+            } catch (e: IOException) {
+                null
+            } catch (e: RuntimeException) {
+                Log.w(TAG, "Malformed manifest $manifestFile", e)
+                null
+            }
+
+            // The index has the same "path size sha256" lines as the manifest, without the APK update time
+            fun readIndex(assetManager: AssetManager, indexPath: String): Map<String, FileRecord>? = try {
+                assetManager.open(indexPath).bufferedReader().use { reader ->
+                    parseFiles(reader.readLines().filter { it.isNotEmpty() })
+                }
+            } catch (e: IOException) {
+                null
+            } catch (e: RuntimeException) {
+                Log.w(TAG, "Malformed effect index $indexPath", e)
+                null
+            }
+
+            private fun parseFiles(lines: List<String>) = lines.associate { line -> parseFile(line) }
+
+            private fun parseFile(line: String): Pair<String, FileRecord> {
+                // Paths may contain spaces, size and hash never do
+                val hashStart = line.lastIndexOf(' ')
+                val sizeStart = line.lastIndexOf(' ', hashStart - 1)
+                return line.substring(0, sizeStart) to FileRecord(
+                    line.substring(sizeStart + 1, hashStart).toLong(),
+                    line.substring(hashStart + 1)
+                )
+            }
+        }
+    }
+
+    private fun AssetManager.listOrEmpty(path: String): Array<out String> = try {
+        list(path).orEmpty()
     } catch (e: IOException) {
-        Log.w("ArResourceManager", e)
-        false
+        Log.w(TAG, "Could not list assets of $path", e)
+        emptyArray()
     }
-}
\ No newline at end of file
+}
@@ -13,6 +13,7 @@ import com.banuba.sdk.manager.BanubaSdkManager
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import java.io.IOException
 
 class FaceArActivity : AppCompatActivity() {
 
@@ -95,7 +96,15 @@ class FaceArActivity : AppCompatActivity() {
             )
         } else {
             CoroutineScope(Dispatchers.IO).launch {
-                val effect = effectHelper.prepareEffect(assets, EFFECT_NAME)
+                val effect = try {
+                    effectHelper.prepareEffect(applicationContext, EFFECT_NAME)
+                } catch (e: IOException) {
+                    Log.e("FaceArActivity", "Cannot apply effect $EFFECT_NAME", e)
+                    runOnUiThread {
+                        Toast.makeText(applicationContext, "Cannot apply effect", Toast.LENGTH_LONG).show()
+                    }
+                    return@launch
+                }
                 manager.loadAsync(effect.uri.toString())
             }
         }
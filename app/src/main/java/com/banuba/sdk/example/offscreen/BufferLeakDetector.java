@@ -0,0 +1,220 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in tracking of buffers handed out by an allocator, in the spirit of Netty's leak detector.
+ * A buffer that is garbage collected without being returned is reported as leaked together with
+ * its age, owner and, on {@link Level#ADVANCED} and {@link Level#PARANOID}, allocation stack trace.
+ * When disabled every hook is a single volatile read.
+ */
+public class BufferLeakDetector {
+    private static final String TAG = "BufferLeakDetector";
+
+    public enum Level {
+        /* No tracking */
+        DISABLED,
+        /* Every SAMPLING_INTERVAL-th buffer is tracked with owner and age */
+        SIMPLE,
+        /* Like SIMPLE, also records the allocation stack trace */
+        ADVANCED,
+        /* Every buffer is tracked with the allocation stack trace */
+        PARANOID
+    }
+
+    private static final int SAMPLING_INTERVAL = 128;
+
+    private volatile Level mLevel = Level.DISABLED;
+
+    private final ReferenceQueue<ByteBuffer> mCollected = new ReferenceQueue<>();
+    /* Records by identity hash code of the buffer, collisions are chained through Record.next */
+    private final HashMap<Integer, Record> mRecords = new HashMap<>();
+    private int mAllocationCounter = 0;
+    private long mLeakCount = 0;
+    private long mDoubleReturnCount = 0;
+
+    public void setLevel(@NonNull Level level) {
+        mLevel = level;
+        if (level == Level.DISABLED) {
+            synchronized (this) {
+                mRecords.clear();
+            }
+        }
+    }
+
+    @NonNull
+    public Level getLevel() {
+        return mLevel;
+    }
+
+    public boolean isEnabled() {
+        return mLevel != Level.DISABLED;
+    }
+
+    /** Starts tracking of a buffer that was just handed out */
+    public void onAllocated(@NonNull ByteBuffer buffer) {
+        final Level level = mLevel;
+        if (level == Level.DISABLED) {
+            return;
+        }
+        synchronized (this) {
+            pollCollected();
+            if (level != Level.PARANOID && mAllocationCounter++ % SAMPLING_INTERVAL != 0) {
+                return;
+            }
+            final Throwable site = level == Level.SIMPLE ? null : new Throwable("Buffer allocated here");
+            final Record record = new Record(buffer, mCollected, site, Thread.currentThread().getName());
+            record.next = mRecords.put(record.hash, record);
+        }
+    }
+
+    /** Records the current owner of a tracked buffer, e.g. the component it was passed to */
+    public void touch(@NonNull ByteBuffer buffer, @NonNull String owner) {
+        if (mLevel == Level.DISABLED) {
+            return;
+        }
+        synchronized (this) {
+            final Record record = find(buffer);
+            if (record != null) {
+                record.owner = owner;
+            }
+        }
+    }
+
+    /** Stops tracking of a buffer that came back to the allocator */
+    public void onReturned(@NonNull ByteBuffer buffer) {
+        if (mLevel == Level.DISABLED) {
+            return;
+        }
+        synchronized (this) {
+            final Record record = find(buffer);
+            if (record != null) {
+                remove(record);
+                record.clear();
+            }
+        }
+    }
+
+    /** Reports a buffer returned while the allocator already holds it, at every level */
+    public void onDoubleReturn(@NonNull ByteBuffer buffer) {
+        synchronized (this) {
+            mDoubleReturnCount++;
+        }
+        Log.e(TAG, "Buffer of " + buffer.capacity() + " bytes was returned twice", new Throwable("Returned again here"));
+    }
+
+    /**
+     * Reports buffers that are still reachable but were handed out longer than the given time ago,
+     * for example frames stuck in a queue.
+     *
+     * @return number of such buffers
+     */
+    public int reportOutstanding(long maxAgeMillis) {
+        if (mLevel == Level.DISABLED) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        int count = 0;
+        synchronized (this) {
+            pollCollected();
+            for (Record head : mRecords.values()) {
+                for (Record record = head; record != null; record = record.next) {
+                    final long ageMillis = TimeUnit.NANOSECONDS.toMillis(now - record.allocatedAt);
+                    if (ageMillis > maxAgeMillis) {
+                        count++;
+                        Log.w(TAG, "Buffer held for " + ageMillis + " ms by " + record.owner, record.site);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    public synchronized long getLeakCount() {
+        pollCollected();
+        return mLeakCount;
+    }
+
+    public synchronized long getDoubleReturnCount() {
+        return mDoubleReturnCount;
+    }
+
+    public synchronized int getTrackedCount() {
+        int count = 0;
+        for (Record head : mRecords.values()) {
+            for (Record record = head; record != null; record = record.next) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /* Reports records whose buffers were collected without being returned */
+    private void pollCollected() {
+        Record record;
+        while ((record = (Record) mCollected.poll()) != null) {
+            if (remove(record)) {
+                mLeakCount++;
+                final long ageMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - record.allocatedAt);
+                Log.e(TAG, "LEAK: buffer was garbage collected without being returned, age " + ageMillis
+                        + " ms, owner " + record.owner, record.site);
+            }
+        }
+    }
+
+    @Nullable
+    private Record find(@NonNull ByteBuffer buffer) {
+        for (Record record = mRecords.get(System.identityHashCode(buffer)); record != null; record = record.next) {
+            if (record.get() == buffer) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private boolean remove(@NonNull Record record) {
+        final Record head = mRecords.get(record.hash);
+        if (head == record) {
+            if (record.next != null) {
+                mRecords.put(record.hash, record.next);
+            } else {
+                mRecords.remove(record.hash);
+            }
+            return true;
+        }
+        for (Record previous = head; previous != null; previous = previous.next) {
+            if (previous.next == record) {
+                previous.next = record.next;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Record extends WeakReference<ByteBuffer> {
+        final int hash;
+        final long allocatedAt = System.nanoTime();
+        @Nullable
+        final Throwable site;
+        @NonNull
+        String owner;
+        @Nullable
+        Record next;
+
+        Record(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, @Nullable Throwable site, @NonNull String owner) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.site = site;
+            this.owner = owner;
+        }
+    }
+}
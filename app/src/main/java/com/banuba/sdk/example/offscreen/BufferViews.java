@@ -0,0 +1,50 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Duplicates of buffers remembered by identity. Pooled frame buffers come back every few frames,
+ * a buffer seen before gets its old view back instead of a new duplicate.
+ * The oldest view is replaced when the cache is full. Only for pooled buffers: camera planes are new
+ * buffers every frame, they would miss and keep buffers of closed images alive, see {@link SharedPlane}.
+ * Not thread safe, one instance per thread.
+ */
+final class BufferViews {
+    private final ByteBuffer[] mSources;
+    private final ByteBuffer[] mViews;
+    private int mNext = 0;
+
+    BufferViews(int capacity) {
+        mSources = new ByteBuffer[capacity];
+        mViews = new ByteBuffer[capacity];
+    }
+
+    /* View of the whole buffer with its own position and limit, cleared */
+    @NonNull
+    ByteBuffer viewOf(@NonNull ByteBuffer source) {
+        for (int i = 0; i < mSources.length; i++) {
+            if (mSources[i] == source) {
+                final ByteBuffer view = mViews[i];
+                view.clear();
+                return view;
+            }
+        }
+        final ByteBuffer view = source.duplicate();
+        view.clear();
+        mSources[mNext] = source;
+        mViews[mNext] = view;
+        mNext = (mNext + 1) % mSources.length;
+        return view;
+    }
+
+    /* Forgets every buffer, e.g. when the buffers it saw are freed */
+    void clear() {
+        for (int i = 0; i < mSources.length; i++) {
+            mSources[i] = null;
+            mViews[i] = null;
+        }
+        mNext = 0;
+    }
+}
@@ -1,19 +1,69 @@
 package com.banuba.sdk.example.offscreen;
 
-import androidx.annotation.NonNull;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.SystemClock;
 
-import com.banuba.sdk.offscreen.BufferAllocator;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of direct buffers for the Offscreen Effect Player.
+ * Buffers are grouped into power-of-two size classes, each class is a fixed array of slots
+ * that is updated only with compare-and-set, so neither allocation nor return takes a lock
+ * or allocates memory once the pool is warm.
+ * The number of buffers kept per class follows {@link PoolSizingPolicy}: the pool gives memory back
+ * on {@link #onTrimMemory(int)} and grows again with the number of buffers in flight.
+ * With {@link #setPrewarmOnMiss(Executor, int)} the first allocation of a size that misses the pool
+ * pre-warms buffers of exactly that size, so the pool follows what the consumer actually requests.
+ */
+public class BuffersQueue implements ReusableBufferAllocator, ComponentCallbacks2 {
+    private static final int MIN_SIZE_CLASS = 12; /* 4 KB, smaller buffers share the first class */
+    private static final int MAX_SIZE_CLASS = 30; /* 1 GB, the largest power of two a ByteBuffer can hold */
+    private static final int SIZE_CLASSES = MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1;
+
+    /* A request may be served from the next size class at most, so a 720p frame never pins a 4K buffer */
+    private static final int MAX_FIT_DISTANCE = 1;
 
-public class BuffersQueue implements BufferAllocator {
     private final int capacity;
-    private final Queue<ByteBuffer> queue = new LinkedList<>();
+    /* capacity slots per size class, class N occupies [N * capacity, (N + 1) * capacity) */
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    /* pooled buffers per class, reserved before a slot is filled and released after it is emptied */
+    private final AtomicIntegerArray classCounts = new AtomicIntegerArray(SIZE_CLASSES);
+    private final PoolSizingPolicy sizingPolicy;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final BufferLeakDetector leakDetector = new BufferLeakDetector();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong doubleReturnCount = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
 
+    @Nullable
+    private volatile Executor prewarmExecutor;
+    private volatile int prewarmCount;
+    /* size being pre-warmed after a miss, 0 if none */
+    private final AtomicInteger prewarmingSize = new AtomicInteger();
+
+    public BuffersQueue(@NonNull PoolSizingPolicy sizingPolicy) {
+        this.sizingPolicy = sizingPolicy;
+        this.capacity = sizingPolicy.getHighWatermark();
+        this.slots = new AtomicReferenceArray<>(SIZE_CLASSES * capacity);
+    }
+
+    /**
+     * @param capacity maximum number of buffers kept per size class
+     */
     public BuffersQueue(int capacity) {
-        this.capacity = capacity;
+        this(new PoolSizingPolicy(1, capacity, 5000, SystemClock::uptimeMillis));
     }
 
     public BuffersQueue() {
@@ -22,19 +72,258 @@ public class BuffersQueue implements BufferAllocator {
 
     @NonNull
     @Override
-    public synchronized ByteBuffer allocateBuffer(int minimumCapacity) {
-        final ByteBuffer buffer = queue.poll();
-        if (buffer != null && buffer.capacity() >= minimumCapacity) {
-            buffer.rewind();
+    public ByteBuffer allocateBuffer(int minimumCapacity) {
+        sizingPolicy.onInFlight(inFlight.incrementAndGet());
+
+        final ByteBuffer buffer = pollBestFit(minimumCapacity);
+        if (buffer != null) {
+            hitCount.incrementAndGet();
+            buffer.clear();
+            leakDetector.onAllocated(buffer);
             return buffer;
         }
 
-        return ByteBuffer.allocateDirect(minimumCapacity);
+        missCount.incrementAndGet();
+        allocatedBytes.addAndGet(minimumCapacity);
+        final ByteBuffer allocated = ByteBuffer.allocateDirect(minimumCapacity);
+        leakDetector.onAllocated(allocated);
+        prewarmAfterMiss(minimumCapacity);
+        return allocated;
+    }
+
+    /**
+     * Takes a buffer back. A buffer that is already pooled is rejected whatever the leak detection level,
+     * pooling it twice would hand it to two consumers. The check scans the slots of one size class and
+     * catches sequential double returns, concurrent returns of the same buffer are not detected.
+     */
+    @Override
+    public void retainBuffer(@NonNull ByteBuffer buffer) {
+        if (isPooled(buffer)) {
+            doubleReturnCount.incrementAndGet();
+            leakDetector.onDoubleReturn(buffer);
+            return;
+        }
+        leakDetector.onReturned(buffer);
+        inFlight.decrementAndGet();
+        if (!offer(buffer)) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Allocates buffers up front so the first frames do not wait for {@link ByteBuffer#allocateDirect(int)}.
+     * Blocking, call it off the main thread.
+     */
+    public void prewarm(int bufferSize, int count) {
+        final int toAllocate = Math.min(count, sizingPolicy.getTarget()) - countPooled(sizeClassOf(bufferSize), bufferSize);
+        for (int i = 0; i < toAllocate; i++) {
+            allocatedBytes.addAndGet(bufferSize);
+            if (!offer(ByteBuffer.allocateDirect(bufferSize))) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Pre-warms the pool on the executor whenever an allocation misses it, with buffers of the size
+     * that was requested. One pre-warm runs at a time, misses while it runs are not followed.
+     *
+     * @param executor runs the blocking allocations, null disables pre-warming on miss
+     * @param count    number of buffers of the missed size to keep ready
+     */
+    public void setPrewarmOnMiss(@Nullable Executor executor, int count) {
+        prewarmCount = count;
+        prewarmExecutor = executor;
+    }
+
+    /**
+     * Drops pooled buffers above the given number per size class.
+     *
+     * @return number of bytes released to the garbage collector
+     */
+    public long trim(int keepPerClass) {
+        long released = 0;
+        for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+            final int begin = sizeClass * capacity;
+            int kept = 0;
+            for (int i = begin; i < begin + capacity; i++) {
+                final ByteBuffer buffer = slots.get(i);
+                if (buffer == null) {
+                    continue;
+                }
+                if (kept < keepPerClass) {
+                    kept++;
+                } else if (slots.compareAndSet(i, buffer, null)) {
+                    classCounts.decrementAndGet(sizeClass);
+                    released += buffer.capacity();
+                }
+            }
+        }
+        return released;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        trim(sizingPolicy.onTrimMemory(level));
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+
+    /**
+     * Enables tracking of handed out buffers, see {@link BufferLeakDetector.Level}.
+     * Tracking is disabled by default.
+     */
+    public void setLeakDetectionLevel(@NonNull BufferLeakDetector.Level level) {
+        leakDetector.setLevel(level);
+    }
+
+    @NonNull
+    public BufferLeakDetector getLeakDetector() {
+        return leakDetector;
+    }
+
+    /** Number of buffers handed out and not returned yet */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    /** Number of buffers kept in the size class of the given capacity */
+    public int getPooledCount(int bufferCapacity) {
+        return classCounts.get(sizeClassOf(bufferCapacity));
+    }
+
+    /** Number of allocations served from the pool */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** Number of allocations that required a new direct buffer */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /** Number of returned buffers discarded because their size class was full */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /** Number of returned buffers rejected because the pool already held them */
+    public long getDoubleReturnCount() {
+        return doubleReturnCount.get();
+    }
+
+    /** Total size in bytes of all direct buffers allocated by the pool */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    private void prewarmAfterMiss(int bufferSize) {
+        final Executor executor = prewarmExecutor;
+        if (executor == null || !prewarmingSize.compareAndSet(0, bufferSize)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    prewarm(bufferSize, prewarmCount);
+                } finally {
+                    prewarmingSize.set(0);
+                }
+            });
+        } catch (RuntimeException e) {
+            /* a rejected pre-warm only costs allocations on later frames */
+            prewarmingSize.set(0);
+        }
+    }
+
+    @Nullable
+    private ByteBuffer pollBestFit(int minimumCapacity) {
+        final int firstClass = sizeClassOf(minimumCapacity);
+        final int lastClass = Math.min(firstClass + MAX_FIT_DISTANCE, SIZE_CLASSES - 1);
+        for (int sizeClass = firstClass; sizeClass <= lastClass; sizeClass++) {
+            final int begin = sizeClass * capacity;
+            final int end = begin + capacity;
+            while (true) {
+                int bestSlot = -1;
+                ByteBuffer best = null;
+                for (int i = begin; i < end; i++) {
+                    final ByteBuffer candidate = slots.get(i);
+                    if (candidate != null && candidate.capacity() >= minimumCapacity
+                            && (best == null || candidate.capacity() < best.capacity())) {
+                        best = candidate;
+                        bestSlot = i;
+                    }
+                }
+                if (best == null) {
+                    break;
+                }
+                if (slots.compareAndSet(bestSlot, best, null)) {
+                    classCounts.decrementAndGet(sizeClass);
+                    return best;
+                }
+                /* The slot was taken by a concurrent caller, scan the class again */
+            }
+        }
+        return null;
+    }
+
+    private boolean offer(@NonNull ByteBuffer buffer) {
+        final int sizeClass = sizeClassOf(buffer.capacity());
+        /* reserve a place below the target first, so concurrent returns never overfill the class */
+        while (true) {
+            final int count = classCounts.get(sizeClass);
+            /* the target never exceeds the capacity of a class */
+            if (count >= sizingPolicy.getTarget()) {
+                return false;
+            }
+            if (classCounts.compareAndSet(sizeClass, count, count + 1)) {
+                break;
+            }
+        }
+        final int begin = sizeClass * capacity;
+        final int end = begin + capacity;
+        for (int i = begin; i < end; i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+                return true;
+            }
+        }
+        /* slots freed by concurrent polls may not be visible yet */
+        classCounts.decrementAndGet(sizeClass);
+        return false;
+    }
+
+    private boolean isPooled(@NonNull ByteBuffer buffer) {
+        final int begin = sizeClassOf(buffer.capacity()) * capacity;
+        for (int i = begin; i < begin + capacity; i++) {
+            if (slots.get(i) == buffer) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public synchronized void retainBuffer(@NonNull ByteBuffer buffer) {
-        if (queue.size() < capacity) {
-            queue.add(buffer);
+    private int countPooled(int sizeClass, int minimumCapacity) {
+        final int begin = sizeClass * capacity;
+        int count = 0;
+        for (int i = begin; i < begin + capacity; i++) {
+            final ByteBuffer buffer = slots.get(i);
+            if (buffer != null && buffer.capacity() >= minimumCapacity) {
+                count++;
+            }
         }
+        return count;
+    }
+
+    /* Index of the power-of-two class that contains the size, i.e. floor(log2(size)) */
+    private static int sizeClassOf(int size) {
+        final int log2 = 31 - Integer.numberOfLeadingZeros(Math.max(size, 1));
+        return Math.max(log2, MIN_SIZE_CLASS) - MIN_SIZE_CLASS;
     }
 }
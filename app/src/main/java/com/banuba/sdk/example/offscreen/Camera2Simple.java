@@ -15,12 +15,17 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.view.WindowManager;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.banuba.sdk.camera.Facing;
 import com.banuba.sdk.internal.utils.CameraUtils;
@@ -29,49 +34,159 @@ import com.banuba.sdk.offscreen.ImageOrientation;
 
 import java.util.Collections;
 
+/**
+ * Streams YUV_420_888 frames of a Camera2 device.
+ * Camera state callbacks and device calls run on a dedicated camera thread, frames arrive on it
+ * too or on a separate image thread, so neither waits for the UI looper. Open, switch and close
+ * requests go through a {@link CameraStateMachine}, they may be called from any thread, never
+ * block and are coalesced while the camera is in transition. {@link #release()} stops the threads
+ * once the camera is closed.
+ */
 @SuppressWarnings("WeakerAccess")
 public class Camera2Simple {
     private static final String TAG = "Camera2Simple";
 
     private static final int FIXED_FRAME_RATE = 30;
 
+    public static final int DEFAULT_MAX_IMAGES = 5;
+
+    /* A replaced ImageReader is closed once the consumer gives back its images, or left to the GC */
+    private static final long READER_DRAIN_POLL_MS = 5;
+    private static final long READER_DRAIN_TIMEOUT_MS = 1000;
+
+    private static final String CAMERA_INFO_PREFERENCES = "camera_info";
+
+    private final HandlerThread mCameraThread;
     private final Handler mHandler;
+    @Nullable
+    private final HandlerThread mImageThread;
+    private final Handler mImageHandler;
     private final CameraManager mCameraManager;
+    private final CameraInfoCache mInfoCache;
 
-    private int mDisplaySurfaceRotation = Surface.ROTATION_0;
+    /* set by the caller thread, read on the image thread */
+    private volatile int mDisplaySurfaceRotation = Surface.ROTATION_0;
 
     private CameraDevice mCameraDevice;
+    /* device closed by the close action, its onClosed() completes the action, camera thread only */
+    @Nullable
+    private CameraDevice mClosingDevice = null;
     private ImageReader mImageReader;
 
     private CaptureRequest.Builder mPreviewRequestBuilder;
     private CameraCaptureSession mCaptureSession;
 
     @NonNull
-    private final Size mPreferredPreviewSize;
+    private volatile Size mPreferredPreviewSize;
     private Size mPreviewSize;
-    private Facing cameraFacing = Facing.FRONT;
-
-    private boolean mIsCameraOpened = false;
-    private boolean mCameraOpening = false;
-    private int mFacing;
-    private int mSensorOrientation;
-    private int mDeviceOrientationAngle;
+    /* preferred size mPreviewSize was chosen for, camera thread only */
+    @Nullable
+    private Size mPreviewSizePreferred = null;
+    @NonNull
+    private volatile Range<Integer> mFpsRange = Range.create(FIXED_FRAME_RATE, FIXED_FRAME_RATE);
+    private final CameraStateMachine mStateMachine;
+    private volatile boolean mReleased = false;
+    /* written on the camera and caller threads, read on the image thread */
+    private volatile int mFacing;
+    private volatile int mSensorOrientation;
+    private volatile int mDeviceOrientationAngle;
     private final FrameReadyCallback mFrameReadyCallback;
+    private final int mMaxImages;
+
+    /* time of the latest open or switch request */
+    private volatile long mLastRequestNanos = 0;
+    /* time of the request waiting for its first frame, 0 if none */
+    private volatile long mFirstFrameRequestNanos = 0;
+    private volatile boolean mCameraInfoCached = false;
+    private volatile boolean mImageReaderReused = false;
+    @Nullable
+    private volatile FirstFrameListener mFirstFrameListener = null;
+    @Nullable
+    private volatile HeldImagesCounter mHeldImagesCounter = null;
+    /* time the wait for held images of a replaced reader ends, 0 if not waiting, camera thread only */
+    private long mReaderDrainDeadline = 0;
+    /* replaced readers that were not closed because the consumer held their images, camera thread only */
+    private int mReadersLeftToGc = 0;
 
     public interface FrameReadyCallback {
         void onFrameReady(@NonNull Image image, @NonNull ImageOrientation imageOrientation);
     }
 
+    public interface HeldImagesCounter {
+        /* Images passed to the FrameReadyCallback and not closed yet, called on the camera thread */
+        int getHeldImageCount();
+    }
+
+    public interface FirstFrameListener {
+        /**
+         * Called on the image thread with the time from an open or switch request to its first frame
+         *
+         * @param cameraInfoCached the camera was selected without querying characteristics
+         * @param imageReaderReused the ImageReader of the previous session was kept
+         */
+        void onFirstFrame(long millis, boolean cameraInfoCached, boolean imageReaderReused);
+    }
+
     public Camera2Simple(@NonNull Context context, @NonNull FrameReadyCallback frameReadyCallback, @NonNull Size preferredPreviewSize) {
+        this(context, frameReadyCallback, preferredPreviewSize, DEFAULT_MAX_IMAGES, false);
+    }
+
+    /**
+     * @param maxImages      depth of the ImageReader, must cover the images held by the callback
+     *                       plus two for acquireLatestImage()
+     * @param useImageThread deliver frames on their own thread, so slow frame processing does not
+     *                       delay camera state callbacks
+     */
+    public Camera2Simple(@NonNull Context context, @NonNull FrameReadyCallback frameReadyCallback, @NonNull Size preferredPreviewSize,
+                         int maxImages, boolean useImageThread) {
         final WindowManager windowManager = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE));
         if (windowManager != null) {
             mDisplaySurfaceRotation = windowManager.getDefaultDisplay().getRotation();
         }
         mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        mInfoCache = new CameraInfoCache(context.getSharedPreferences(CAMERA_INFO_PREFERENCES, Context.MODE_PRIVATE));
         mFrameReadyCallback = frameReadyCallback;
         mPreferredPreviewSize = preferredPreviewSize;
         mPreviewSize = preferredPreviewSize;
-        mHandler = new Handler(); // Creating handler here means that all camera events processing in this thread
+        mMaxImages = maxImages;
+        mCameraThread = new HandlerThread("CameraThread");
+        mCameraThread.start();
+        mHandler = new Handler(mCameraThread.getLooper());
+        if (useImageThread) {
+            mImageThread = new HandlerThread("CameraImageThread", Process.THREAD_PRIORITY_DISPLAY);
+            mImageThread.start();
+            mImageHandler = new Handler(mImageThread.getLooper());
+        } else {
+            mImageThread = null;
+            mImageHandler = mHandler;
+        }
+        mStateMachine = new CameraStateMachine(mCameraActions, Facing.FRONT.getValue());
+        mStateMachine.setStateListener(this::onStateChanged);
+    }
+
+    /* Actions run on the camera thread and report back to the state machine */
+    private final CameraStateMachine.Actions mCameraActions = new CameraStateMachine.Actions() {
+        @Override
+        public void openCamera(int facing) {
+            mHandler.post(() -> Camera2Simple.this.openCamera(facing));
+        }
+
+        @Override
+        public void configureSession() {
+            mHandler.post(Camera2Simple.this::createCameraPreviewSession);
+        }
+
+        @Override
+        public void closeCamera() {
+            mHandler.post(Camera2Simple.this::closeCameraOnThread);
+        }
+    };
+
+    private void onStateChanged(@NonNull CameraStateMachine.State from, @NonNull CameraStateMachine.State to) {
+        Logger.i("Camera state: " + from + " -> " + to);
+        if (to == CameraStateMachine.State.CLOSED && mReleased) {
+            mHandler.post(this::quitIfReleased);
+        }
     }
 
     private final ImageReader.OnImageAvailableListener mOnImageAvailableListener = this::pushFrame;
@@ -80,6 +195,7 @@ public class Camera2Simple {
         try {
             final Image image = reader.acquireLatestImage();
             if (image != null) {
+                reportFirstFrame();
                 final boolean isRequireMirroring = mFacing == LENS_FACING_FRONT;
                 ImageOrientation mEPImageFormat = getImageOrientation(isRequireMirroring);
                 mFrameReadyCallback.onFrameReady(image, mEPImageFormat);
@@ -91,20 +207,41 @@ public class Camera2Simple {
         }
     }
 
-    @SuppressLint("MissingPermission")
-    private void openCamera(Facing cameraFacing) {
-        if (!mIsCameraOpened) {
-            Throwable error = null;
-            String usedCameraId = null;
+    private void reportFirstFrame() {
+        final long requestNanos = mFirstFrameRequestNanos;
+        if (requestNanos == 0) {
+            return;
+        }
+        mFirstFrameRequestNanos = 0;
+        final long millis = (SystemClock.elapsedRealtimeNanos() - requestNanos) / 1000000;
+        Logger.i("Time to first frame: " + millis + " ms, camera info cached: " + mCameraInfoCached
+                + ", image reader reused: " + mImageReaderReused);
+        final FirstFrameListener listener = mFirstFrameListener;
+        if (listener != null) {
+            listener.onFirstFrame(millis, mCameraInfoCached, mImageReaderReused);
+        }
+    }
 
+    @SuppressLint("MissingPermission")
+    private void openCamera(int cameraFacing) {
+        Throwable error = null;
+        String usedCameraId = null;
+
+        mFirstFrameRequestNanos = mLastRequestNanos;
+        final CameraInfoCache.Entry cached = mInfoCache.get(cameraFacing, mPreferredPreviewSize);
+        mCameraInfoCached = cached != null;
+        if (cached != null) {
+            usedCameraId = cached.cameraId;
+            applyCameraInfo(cached);
+        } else {
             try {
                 if (mCameraManager != null) {
                     for (String cameraId : mCameraManager.getCameraIdList()) {
                         final CameraCharacteristics characteristics = mCameraManager.getCameraCharacteristics(cameraId);
                         final Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                        if (facing != null && facing == cameraFacing.getValue()) {
+                        if (facing != null && facing == cameraFacing) {
                             usedCameraId = cameraId;
-                            setupCameraCharacteristics(characteristics);
+                            setupCameraCharacteristics(cameraId, characteristics);
                             break;
                         }
                     }
@@ -113,35 +250,64 @@ public class Camera2Simple {
                 Logger.wtf(e);
                 error = e;
             }
+        }
 
-            if (usedCameraId != null) {
-                try {
-                    mIsCameraOpened = true;
-                    mCameraOpening = true;
-                    mCameraManager.openCamera(usedCameraId, mStateCallback, null);
-                } catch (Exception e) {
-                    mIsCameraOpened = false;
-                    mCameraOpening = false;
-                    Logger.wtf(e);
-                    error = e;
-                }
+        if (usedCameraId != null) {
+            try {
+                mCameraManager.openCamera(usedCameraId, mStateCallback, mHandler);
+            } catch (Exception e) {
+                mInfoCache.invalidate(cameraFacing);
+                Logger.wtf(e);
+                error = e;
+                usedCameraId = null;
             }
+        }
 
-            if (error != null) {
-                Logger.wtf(error);
-            }
+        if (error != null) {
+            Logger.wtf(error);
+        }
+        if (usedCameraId == null) {
+            mStateMachine.onOpenFailed();
         }
     }
 
 
-    private void setupCameraCharacteristics(@NonNull CameraCharacteristics characteristics) {
+    private void setupCameraCharacteristics(@NonNull String cameraId, @NonNull CameraCharacteristics characteristics) {
         final StreamConfigurationMap map =
                 characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
 
         if (map != null) {
-            mFacing = getLensFacing(characteristics);
-            mSensorOrientation = CameraUtils.getSensorOrientation(characteristics);
-            mPreviewSize = CameraUtils.getPreviewSize(characteristics, mPreferredPreviewSize);
+            final CameraInfoCache.Entry entry = new CameraInfoCache.Entry(
+                    cameraId,
+                    getLensFacing(characteristics),
+                    CameraUtils.getSensorOrientation(characteristics),
+                    CameraUtils.getPreviewSize(characteristics, mPreferredPreviewSize),
+                    mPreferredPreviewSize
+            );
+            mInfoCache.put(entry);
+            applyCameraInfo(entry);
+        }
+    }
+
+    private void applyCameraInfo(@NonNull CameraInfoCache.Entry entry) {
+        mFacing = entry.lensFacing;
+        mSensorOrientation = entry.sensorOrientation;
+        mPreviewSize = entry.previewSize;
+        mPreviewSizePreferred = entry.preferredPreviewSize;
+    }
+
+    /* Chooses the preview size of the open camera again after the preferred size changed */
+    private void resolvePreviewSize() {
+        final CameraInfoCache.Entry cached = mInfoCache.get(mFacing, mPreferredPreviewSize);
+        if (cached != null) {
+            applyCameraInfo(cached);
+            return;
+        }
+        try {
+            final String cameraId = mCameraDevice.getId();
+            setupCameraCharacteristics(cameraId, mCameraManager.getCameraCharacteristics(cameraId));
+        } catch (CameraAccessException e) {
+            Logger.wtf(e);
         }
     }
 
@@ -150,26 +316,31 @@ public class Camera2Simple {
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             // This method is called when the camera is opened.  We start camera preview here.
             mCameraDevice = cameraDevice;
-            createCameraPreviewSession();
-            mCameraOpening = false;
+            mStateMachine.onOpened();
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
             onCameraClosedState(cameraDevice);
-            mCameraOpening = false;
+            mStateMachine.onDisconnected();
         }
 
         @Override
         public void onError(@NonNull CameraDevice cameraDevice, int error) {
             onCameraClosedState(cameraDevice);
+            mInfoCache.invalidate(mFacing);
             Logger.wtf((new Exception("Camera error: " + error).fillInStackTrace().toString()));
-            mCameraOpening = false;
+            mStateMachine.onDisconnected();
         }
 
         @Override
         public void onClosed(@NonNull CameraDevice cameraDevice) {
             onCameraClosedState(cameraDevice);
+            // The device no longer uses the reader surface, another one may stream into it
+            if (cameraDevice == mClosingDevice) {
+                mClosingDevice = null;
+                mStateMachine.onClosed();
+            }
         }
     };
 
@@ -178,11 +349,28 @@ public class Camera2Simple {
 
         if (mCameraDevice == cameraDevice) {
             mCameraDevice = null;
-            mIsCameraOpened = false;
         }
     }
 
     private void createCameraPreviewSession() {
+        // The camera was lost before the session was requested
+        if (mCameraDevice == null) {
+            mReaderDrainDeadline = 0;
+            mStateMachine.onConfigureFailed();
+            return;
+        }
+
+        // The session is rebuilt for a new preview size, its reader may be replaced
+        closeSession();
+        if (!mPreferredPreviewSize.equals(mPreviewSizePreferred)) {
+            resolvePreviewSize();
+        }
+        // Images of a reader become invalid when it is closed, the stopped session sends no more of them
+        if (!canReuseImageReader() && waitForHeldImages()) {
+            mHandler.postDelayed(this::createCameraPreviewSession, READER_DRAIN_POLL_MS);
+            return;
+        }
+
         try {
             createPreviewRequest();
 
@@ -204,8 +392,10 @@ public class Camera2Simple {
                                 mCaptureSession.setRepeatingRequest(
                                         mPreviewRequestBuilder.build(), null, mHandler
                                 );
+                                mStateMachine.onConfigured();
                             } catch (CameraAccessException e) {
                                 Logger.wtf(e);
+                                mStateMachine.onConfigureFailed();
                             }
                         }
 
@@ -216,25 +406,33 @@ public class Camera2Simple {
                             Logger.wtf((new RuntimeException(
                                     "CameraCaptureSession.StateCallback.onConfigureFailed"
                             ).fillInStackTrace()).toString());
+                            mStateMachine.onConfigureFailed();
                         }
                     },
-                    null
+                    mHandler
             );
 
         } catch (CameraAccessException e) {
             Logger.wtf(e);
+            mStateMachine.onConfigureFailed();
         }
     }
 
     private void createPreviewRequest() throws CameraAccessException {
         mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
 
-        if (mImageReader != null) {
-            mImageReader.close();
+        // The reader of the previous session is kept if it has the size, its surface stays valid
+        final boolean reuseReader = canReuseImageReader();
+        if (reuseReader) {
+            dropStaleImage(mImageReader);
+        } else {
+            if (mImageReader != null) {
+                retireImageReader(mImageReader);
+            }
+            mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.YUV_420_888, mMaxImages);
         }
-
-        mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.YUV_420_888, 5);
-        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, null);
+        mImageReaderReused = reuseReader;
+        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mImageHandler);
 
         mPreviewRequestBuilder.addTarget(mImageReader.getSurface());
 
@@ -245,14 +443,115 @@ public class Camera2Simple {
 
         mPreviewRequestBuilder.set(
                 CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
-                Range.create(FIXED_FRAME_RATE, FIXED_FRAME_RATE)
+                mFpsRange
         );
     }
 
+    private void updateRepeatingRequest() {
+        final CameraCaptureSession session = mCaptureSession;
+        if (session == null || mPreviewRequestBuilder == null
+                || mStateMachine.getState() != CameraStateMachine.State.STREAMING) {
+            // The next session picks the range up
+            return;
+        }
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFpsRange);
+        try {
+            session.setRepeatingRequest(mPreviewRequestBuilder.build(), null, mHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Logger.wtf(e);
+        }
+    }
+
+    private boolean canReuseImageReader() {
+        return mImageReader != null
+                && mImageReader.getWidth() == mPreviewSize.getWidth()
+                && mImageReader.getHeight() == mPreviewSize.getHeight();
+    }
+
+    /* True while the consumer holds images and the drain timeout has not passed */
+    private boolean waitForHeldImages() {
+        final HeldImagesCounter counter = mHeldImagesCounter;
+        if (mImageReader == null || counter == null || counter.getHeldImageCount() == 0) {
+            mReaderDrainDeadline = 0;
+            return false;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (mReaderDrainDeadline == 0) {
+            mReaderDrainDeadline = now + READER_DRAIN_TIMEOUT_MS;
+        }
+        return now < mReaderDrainDeadline;
+    }
+
+    private void retireImageReader(@NonNull ImageReader reader) {
+        reader.setOnImageAvailableListener(null, null);
+        final HeldImagesCounter counter = mHeldImagesCounter;
+        final int heldImages = counter != null ? counter.getHeldImageCount() : 0;
+        if (mReaderDrainDeadline != 0 && heldImages > 0) {
+            // Held images keep the reader reachable, it is finalized after the last one
+            mReadersLeftToGc++;
+            Log.w(TAG, heldImages + " images still held after " + READER_DRAIN_TIMEOUT_MS + " ms, the replaced "
+                    + reader.getWidth() + "x" + reader.getHeight() + " image reader is left to the GC ("
+                    + mReadersLeftToGc + " so far)");
+        } else {
+            reader.close();
+        }
+        mReaderDrainDeadline = 0;
+    }
+
+    private static void dropStaleImage(@NonNull ImageReader reader) {
+        try {
+            final Image image = reader.acquireLatestImage();
+            if (image != null) {
+                image.close();
+            }
+        } catch (IllegalStateException e) {
+            // All images are held by the consumer, nothing is queued
+        }
+    }
+
     public void closeCamera() {
-        mIsCameraOpened = false;
-        mHandler.removeCallbacksAndMessages(null);
+        mStateMachine.requestClose();
+    }
+
+    /**
+     * Closes the camera and stops the camera threads once it is closed, the instance can not be used afterwards.
+     */
+    public void release() {
+        mReleased = true;
+        mStateMachine.requestClose();
+        mHandler.post(this::quitIfReleased);
+    }
+
+    private void quitIfReleased() {
+        if (mReleased && mStateMachine.getState() == CameraStateMachine.State.CLOSED) {
+            if (mImageThread != null) {
+                mImageThread.quitSafely();
+            }
+            mCameraThread.quitSafely();
+        }
+    }
+
+    /* Completes the close action from StateCallback.onClosed(), or right away if no device is open */
+    private void closeCameraOnThread() {
+        closeSession();
+
+        final ImageReader reader = mImageReader;
+        if (reader != null) {
+            reader.setOnImageAvailableListener(null, null);
+            // Do not close let this do GC
+        }
+
+        final CameraDevice cameraDevice = mCameraDevice;
+        if (cameraDevice == null) {
+            mStateMachine.onClosed();
+            return;
+        }
+        mClosingDevice = cameraDevice;
+        mCameraDevice = null;
+        cameraDevice.close();
+    }
 
+    private void closeSession() {
         final CameraCaptureSession cameraCaptureSession = mCaptureSession;
         if (cameraCaptureSession != null) {
             try {
@@ -263,17 +562,6 @@ public class Camera2Simple {
             cameraCaptureSession.close();
             mCaptureSession = null;
         }
-
-        if (mCameraDevice != null) {
-            mCameraDevice.close();
-            mCameraDevice = null;
-        }
-
-        final ImageReader reader = mImageReader;
-        if (reader != null) {
-            reader.setOnImageAvailableListener(null, null);
-            // Do not close let this do GC
-        }
     }
 
     private ImageOrientation getImageOrientation(boolean isRequireMirroring) {
@@ -296,13 +584,8 @@ public class Camera2Simple {
     }
 
     public void switchFacing() {
-        if (mCameraOpening) {
-            return;
-        }
-
-        closeCamera();
-        cameraFacing = cameraFacing == Facing.FRONT ? Facing.BACK : Facing.FRONT;
-        openCamera(cameraFacing);
+        mLastRequestNanos = SystemClock.elapsedRealtimeNanos();
+        mStateMachine.requestSwitch(Facing.FRONT.getValue(), Facing.BACK.getValue());
     }
 
     public void applyOrientationAngles(int sensorAngle, int displaySurfaceRotation) {
@@ -311,7 +594,53 @@ public class Camera2Simple {
     }
 
     public void openCameraAndStartPreview() {
-        openCamera(cameraFacing);
+        mLastRequestNanos = SystemClock.elapsedRealtimeNanos();
+        mStateMachine.requestOpen(mStateMachine.getRequestedFacing());
+    }
+
+    @NonNull
+    public CameraStateMachine.State getState() {
+        return mStateMachine.getState();
+    }
+
+    /**
+     * Changes the target frame rate range, applied to the running session without rebuilding it.
+     * The range should be one of CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES of the camera.
+     */
+    public void setTargetFpsRange(int minFps, int maxFps) {
+        mFpsRange = Range.create(minFps, maxFps);
+        mHandler.post(this::updateRepeatingRequest);
+    }
+
+    /**
+     * Changes the preview size, a running session is rebuilt on the open camera.
+     */
+    public void setPreferredPreviewSize(@NonNull Size preferredPreviewSize) {
+        if (preferredPreviewSize.equals(mPreferredPreviewSize)) {
+            return;
+        }
+        mPreferredPreviewSize = preferredPreviewSize;
+        mStateMachine.requestReconfigure();
+    }
+
+    public void setFirstFrameListener(@Nullable FirstFrameListener listener) {
+        mFirstFrameListener = listener;
+    }
+
+    /**
+     * Lets a session rebuilt with a new preview size wait until the consumer closed the images
+     * of the previous reader, without a counter the reader is closed right away.
+     */
+    public void setHeldImagesCounter(@Nullable HeldImagesCounter counter) {
+        mHeldImagesCounter = counter;
+    }
+
+    /**
+     * Handler of the thread frames are delivered on, to finish frame work there.
+     */
+    @NonNull
+    public Handler getImageHandler() {
+        return mImageHandler;
     }
 
     public static int getLensFacing(@NonNull CameraCharacteristics characteristics) {
@@ -0,0 +1,116 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers which camera serves a lens facing, so opening or switching the camera does not
+ * query the characteristics of every camera id again. Entries are kept in memory and in
+ * shared preferences, they are dropped when the preferred preview size or the OS build changes,
+ * and by {@link #invalidate(int)} when the camera fails to open.
+ */
+public class CameraInfoCache {
+    private static final String KEY_BUILD = "build";
+    private static final String KEY_CAMERA_PREFIX = "camera_";
+
+    public static final class Entry {
+        @NonNull
+        public final String cameraId;
+        public final int lensFacing;
+        public final int sensorOrientation;
+        @NonNull
+        public final Size previewSize;
+        /* preview size asked for when the camera was selected */
+        @NonNull
+        public final Size preferredPreviewSize;
+
+        public Entry(@NonNull String cameraId, int lensFacing, int sensorOrientation,
+                     @NonNull Size previewSize, @NonNull Size preferredPreviewSize) {
+            this.cameraId = cameraId;
+            this.lensFacing = lensFacing;
+            this.sensorOrientation = sensorOrientation;
+            this.previewSize = previewSize;
+            this.preferredPreviewSize = preferredPreviewSize;
+        }
+    }
+
+    @NonNull
+    private final SharedPreferences mPreferences;
+    /* guarded by this */
+    private final Map<Integer, Entry> mEntries = new HashMap<>();
+    private boolean mLoaded = false;
+
+    public CameraInfoCache(@NonNull SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    /**
+     * @return the entry stored for the lens facing and preferred preview size, or null
+     */
+    @Nullable
+    public synchronized Entry get(int lensFacing, @NonNull Size preferredPreviewSize) {
+        load();
+        final Entry entry = mEntries.get(lensFacing);
+        return entry != null && entry.preferredPreviewSize.equals(preferredPreviewSize) ? entry : null;
+    }
+
+    public synchronized void put(@NonNull Entry entry) {
+        load();
+        mEntries.put(entry.lensFacing, entry);
+        mPreferences.edit()
+                .putString(KEY_BUILD, Build.FINGERPRINT)
+                .putString(KEY_CAMERA_PREFIX + entry.lensFacing, entry.cameraId
+                        + ";" + entry.sensorOrientation
+                        + ";" + entry.previewSize
+                        + ";" + entry.preferredPreviewSize)
+                .apply();
+    }
+
+    public synchronized void invalidate(int lensFacing) {
+        load();
+        mEntries.remove(lensFacing);
+        mPreferences.edit().remove(KEY_CAMERA_PREFIX + lensFacing).apply();
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!Build.FINGERPRINT.equals(mPreferences.getString(KEY_BUILD, null))) {
+            mPreferences.edit().clear().apply();
+            return;
+        }
+        for (Map.Entry<String, ?> stored : mPreferences.getAll().entrySet()) {
+            if (!stored.getKey().startsWith(KEY_CAMERA_PREFIX) || !(stored.getValue() instanceof String)) {
+                continue;
+            }
+            final Entry entry = parse(stored.getKey().substring(KEY_CAMERA_PREFIX.length()), (String) stored.getValue());
+            if (entry != null) {
+                mEntries.put(entry.lensFacing, entry);
+            }
+        }
+    }
+
+    /* Format: id;sensorOrientation;previewSize;preferredPreviewSize */
+    @Nullable
+    private static Entry parse(@NonNull String lensFacing, @NonNull String value) {
+        final String[] parts = value.split(";");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            return new Entry(parts[0], Integer.parseInt(lensFacing), Integer.parseInt(parts[1]),
+                    Size.parseSize(parts[2]), Size.parseSize(parts[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
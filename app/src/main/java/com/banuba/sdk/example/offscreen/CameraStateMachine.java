@@ -0,0 +1,264 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lifecycle of one camera device, driven towards the last requested facing and open state.
+ * Requests only record the target and return, the machine starts at most one asynchronous
+ * action at a time and moves on when the action reports completion, so requests arriving
+ * mid-transition are coalesced: switching the facing twice while the camera opens ends with
+ * the original camera streaming and no close/reopen round trip.
+ * Transitions are compare-and-set on the state, requests and completions may come from any
+ * thread and never block. Actions must not call back into the machine synchronously.
+ */
+public class CameraStateMachine {
+    public enum State {
+        CLOSED,
+        OPENING,
+        OPEN,
+        CONFIGURING,
+        STREAMING,
+        CLOSING
+    }
+
+    /**
+     * Asynchronous camera operations, each one reports its result to the machine later
+     */
+    public interface Actions {
+        /* Completes with onOpened() or onOpenFailed() */
+        void openCamera(int facing);
+
+        /* Completes with onConfigured() or onConfigureFailed() */
+        void configureSession();
+
+        /* Completes with onClosed() */
+        void closeCamera();
+    }
+
+    public interface StateListener {
+        void onStateChanged(@NonNull State from, @NonNull State to);
+    }
+
+    /* Target layout: bits 0-15 facing, CLOSE_REQUESTED set if the camera should be closed */
+    private static final int FACING_MASK = 0xFFFF;
+    private static final int CLOSE_REQUESTED = 0x10000;
+
+    @NonNull
+    private final Actions mActions;
+    @Nullable
+    private volatile StateListener mStateListener = null;
+    private final AtomicReference<State> mState = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger mTarget;
+    /* facing of the camera being opened or open, written by the thread that wins the transition */
+    private volatile int mCurrentFacing;
+    /* session configuration requested and the one the current session was built for */
+    private final AtomicInteger mConfigGeneration = new AtomicInteger();
+    private volatile int mCurrentConfigGeneration;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mActionCount = new AtomicLong();
+
+    public CameraStateMachine(@NonNull Actions actions, int initialFacing) {
+        mActions = actions;
+        mTarget = new AtomicInteger(CLOSE_REQUESTED | (initialFacing & FACING_MASK));
+        mCurrentFacing = initialFacing;
+    }
+
+    public void setStateListener(@Nullable StateListener listener) {
+        mStateListener = listener;
+    }
+
+    @NonNull
+    public State getState() {
+        return mState.get();
+    }
+
+    /* Facing the machine is driven towards, kept while the camera is closed */
+    public int getRequestedFacing() {
+        return mTarget.get() & FACING_MASK;
+    }
+
+    public boolean isOpenRequested() {
+        return (mTarget.get() & CLOSE_REQUESTED) == 0;
+    }
+
+    /* Number of requests, compared to getActionCount() it shows how many were coalesced */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getActionCount() {
+        return mActionCount.get();
+    }
+
+    public void requestOpen(int facing) {
+        mTarget.set(facing & FACING_MASK);
+        onRequest();
+    }
+
+    /**
+     * Flips the requested facing between the two values, the camera is opened as well.
+     */
+    public void requestSwitch(int facing, int otherFacing) {
+        int target;
+        int next;
+        do {
+            target = mTarget.get();
+            next = (target & FACING_MASK) == facing ? otherFacing : facing;
+        } while (!mTarget.compareAndSet(target, next & FACING_MASK));
+        onRequest();
+    }
+
+    /**
+     * Rebuilds the capture session of the open camera, without closing the device.
+     */
+    public void requestReconfigure() {
+        mConfigGeneration.incrementAndGet();
+        onRequest();
+    }
+
+    public void requestClose() {
+        int target;
+        do {
+            target = mTarget.get();
+        } while (!mTarget.compareAndSet(target, target | CLOSE_REQUESTED));
+        onRequest();
+    }
+
+    public void onOpened() {
+        if (transition(State.OPENING, State.OPEN)) {
+            drive();
+        }
+    }
+
+    /* The camera could not be opened, the open request is dropped so it is not retried in a loop */
+    public void onOpenFailed() {
+        if (transition(State.OPENING, State.CLOSED)) {
+            dropOpenRequest();
+            drive();
+        }
+    }
+
+    public void onConfigured() {
+        if (transition(State.CONFIGURING, State.STREAMING)) {
+            drive();
+        }
+    }
+
+    public void onConfigureFailed() {
+        if (transition(State.CONFIGURING, State.OPEN)) {
+            dropOpenRequest();
+            drive();
+        }
+    }
+
+    public void onClosed() {
+        if (transition(State.CLOSING, State.CLOSED)) {
+            drive();
+        }
+    }
+
+    /**
+     * The device was lost in any state, it is considered closed and the open request is dropped.
+     */
+    public void onDisconnected() {
+        State state;
+        do {
+            state = mState.get();
+            if (state == State.CLOSED) {
+                return;
+            }
+        } while (!transition(state, State.CLOSED));
+        dropOpenRequest();
+        drive();
+    }
+
+    private void onRequest() {
+        mRequestCount.incrementAndGet();
+        drive();
+    }
+
+    private void dropOpenRequest() {
+        int target;
+        do {
+            target = mTarget.get();
+        } while (!mTarget.compareAndSet(target, target | CLOSE_REQUESTED));
+    }
+
+    /* Starts the next action if the machine is in a stable state that differs from the target */
+    private void drive() {
+        while (true) {
+            final State state = mState.get();
+            final int target = mTarget.get();
+            final boolean openRequested = (target & CLOSE_REQUESTED) == 0;
+            final int facing = target & FACING_MASK;
+            final boolean facingMatches = facing == mCurrentFacing;
+            final int configGeneration = mConfigGeneration.get();
+
+            switch (state) {
+                case CLOSED:
+                    if (!openRequested) {
+                        return;
+                    }
+                    if (transition(State.CLOSED, State.OPENING)) {
+                        mCurrentFacing = facing;
+                        mActionCount.incrementAndGet();
+                        mActions.openCamera(facing);
+                        return;
+                    }
+                    break;
+                case OPEN:
+                    if (openRequested && facingMatches) {
+                        if (transition(State.OPEN, State.CONFIGURING)) {
+                            mCurrentConfigGeneration = configGeneration;
+                            mActionCount.incrementAndGet();
+                            mActions.configureSession();
+                            return;
+                        }
+                    } else if (transition(State.OPEN, State.CLOSING)) {
+                        mActionCount.incrementAndGet();
+                        mActions.closeCamera();
+                        return;
+                    }
+                    break;
+                case STREAMING:
+                    if (openRequested && facingMatches) {
+                        if (configGeneration == mCurrentConfigGeneration) {
+                            return;
+                        }
+                        if (transition(State.STREAMING, State.CONFIGURING)) {
+                            mCurrentConfigGeneration = configGeneration;
+                            mActionCount.incrementAndGet();
+                            mActions.configureSession();
+                            return;
+                        }
+                    } else if (transition(State.STREAMING, State.CLOSING)) {
+                        mActionCount.incrementAndGet();
+                        mActions.closeCamera();
+                        return;
+                    }
+                    break;
+                default:
+                    /* an action is in progress, its completion drives the machine again */
+                    return;
+            }
+            /* lost a race for the transition, look at the new state */
+        }
+    }
+
+    private boolean transition(@NonNull State from, @NonNull State to) {
+        if (!mState.compareAndSet(from, to)) {
+            return false;
+        }
+        final StateListener listener = mStateListener;
+        if (listener != null) {
+            listener.onStateChanged(from, to);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,43 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Native addresses of direct buffers. ByteBuffer#alignmentOffset needs API 33, so the address
+ * field of java.nio.Buffer is read through reflection, it is on the hidden API greylist.
+ */
+final class DirectBuffers {
+    @Nullable
+    private static final Field sAddressField = findAddressField();
+
+    private DirectBuffers() {
+    }
+
+    /* Native address of the first element of a direct buffer, -1 if it can not be read */
+    static long addressOf(@NonNull ByteBuffer buffer) {
+        if (sAddressField == null || !buffer.isDirect()) {
+            return -1;
+        }
+        try {
+            return sAddressField.getLong(buffer);
+        } catch (IllegalAccessException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    @Nullable
+    private static Field findAddressField() {
+        try {
+            final Field field = Buffer.class.getDeclaredField("address");
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.media.Image;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.banuba.sdk.offscreen.ImageOrientation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pipeline stage between the camera and the effect player that lets effects be processed
+ * below the capture resolution. Images larger than the processing size are scaled into pooled
+ * I420 buffers, smaller ones are repacked into pooled packed I420 buffers. Either way the image is
+ * closed right away, so the camera gets it back before the effect player is done with the frame.
+ * Rows of scaled frames are padded to {@link FrameArena#alignedStride(int)}, so every row starts
+ * on an aligned address and uploads without unpack realignment.
+ * The processing size may be changed at any time, the next frame uses it.
+ */
+public class DownscaleStage implements Camera2Simple.FrameReadyCallback {
+    public interface FrameListener {
+        /**
+         * Receives an I420 frame with planes following each other, the listener owns the buffer
+         * until it gives it back to the allocator
+         */
+        void onFrameDownscaled(@NonNull ByteBuffer frame, int width, int height, int yStride, int uvStride,
+                               @NonNull ImageOrientation orientation, long timestamp);
+    }
+
+    @NonNull
+    private final ReusableBufferAllocator mAllocator;
+    @NonNull
+    private final YuvDownscaler mDownscaler;
+    @NonNull
+    private final YuvRepacker mRepacker;
+    @NonNull
+    private final FrameListener mListener;
+    @Nullable
+    private volatile Size mProcessingSize = null;
+
+    /**
+     * @param repacker repacks images that need no scaling
+     * @param listener receives scaled and repacked frames
+     */
+    public DownscaleStage(@NonNull ReusableBufferAllocator allocator, @NonNull YuvDownscaler downscaler,
+                          @NonNull YuvRepacker repacker, @NonNull FrameListener listener) {
+        mAllocator = allocator;
+        mDownscaler = downscaler;
+        mRepacker = repacker;
+        mListener = listener;
+    }
+
+    /**
+     * @param processingSize bounds of processed frames, the aspect ratio of images is kept,
+     *                       null processes images at the capture size
+     */
+    public void setProcessingSize(@Nullable Size processingSize) {
+        mProcessingSize = processingSize;
+    }
+
+    @Nullable
+    public Size getProcessingSize() {
+        return mProcessingSize;
+    }
+
+    @Override
+    public void onFrameReady(@NonNull Image image, @NonNull ImageOrientation imageOrientation) {
+        final Size processingSize = mProcessingSize;
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (processingSize == null || (processingSize.getWidth() >= width && processingSize.getHeight() >= height)) {
+            repack(image, imageOrientation);
+            return;
+        }
+
+        /* fit into the processing size, even sizes keep chroma planes aligned */
+        final float scale = Math.min(
+                (float) processingSize.getWidth() / width,
+                (float) processingSize.getHeight() / height
+        );
+        final int outputWidth = Math.max(2, Math.round(width * scale) & ~1);
+        final int outputHeight = Math.max(2, Math.round(height * scale) & ~1);
+
+        final int yStride = FrameArena.alignedStride(outputWidth);
+        final int uvStride = FrameArena.alignedStride((outputWidth + 1) / 2);
+        final int frameSize = YuvDownscaler.outputSize(outputHeight, yStride, uvStride);
+        final ByteBuffer frame = mAllocator.allocateBuffer(frameSize);
+        final long timestamp = image.getTimestamp();
+        try {
+            final Image.Plane[] planes = image.getPlanes();
+            mDownscaler.downscale(
+                    planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    width, height,
+                    frame, outputWidth, outputHeight, yStride, uvStride
+            );
+        } catch (RuntimeException e) {
+            mAllocator.retainBuffer(frame);
+            throw e;
+        } finally {
+            image.close();
+        }
+        frame.clear();
+        frame.limit(frameSize);
+        mListener.onFrameDownscaled(frame, outputWidth, outputHeight, yStride, uvStride, imageOrientation, timestamp);
+    }
+
+    private void repack(@NonNull Image image, @NonNull ImageOrientation imageOrientation) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int frameSize = YuvRepacker.packedSize(width, height);
+        final ByteBuffer frame = mAllocator.allocateBuffer(frameSize);
+        final long timestamp = image.getTimestamp();
+        try {
+            final Image.Plane[] planes = image.getPlanes();
+            mRepacker.repack(
+                    planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    width, height, YuvRepacker.FORMAT_I420, frame
+            );
+        } catch (RuntimeException e) {
+            mAllocator.retainBuffer(frame);
+            throw e;
+        } finally {
+            image.close();
+        }
+        frame.clear();
+        frame.limit(frameSize);
+        mListener.onFrameDownscaled(frame, width, height, width, (width + 1) / 2, imageOrientation, timestamp);
+    }
+}
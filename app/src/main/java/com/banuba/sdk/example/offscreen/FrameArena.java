@@ -0,0 +1,277 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.os.Build;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator that carves frame buffers out of one direct slab reserved up front,
+ * so native memory used for frames never exceeds the budget passed to the constructor.
+ * The slab is split into pages, every buffer starts on a page boundary and therefore is
+ * {@link #ALIGNMENT} bytes aligned: the slab is page aligned shared memory on API 27+ and is
+ * aligned by its native address below.
+ * Buffers are handed out as reference counted {@link Lease}s and go back to the slab
+ * when the last reference is released. Lease objects are reused, every acquisition starts
+ * a new generation, so a late release of an earlier one is rejected instead of dropping
+ * a reference of the current holder.
+ */
+public class FrameArena implements ReusableBufferAllocator {
+    private static final String TAG = "FrameArena";
+
+    public static final int ALIGNMENT = 64;
+    private static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+
+    private final ByteBuffer mSlab;
+    private final int mPageSize;
+    private final int mPageCount;
+    private final BitSet mUsedPages;
+    /* Last lease that started at the page, reused when the same run of pages is taken again */
+    private final Lease[] mLeasesByPage;
+    private final IdentityHashMap<ByteBuffer, Lease> mActiveLeases = new IdentityHashMap<>();
+
+    private int mUsedPageCount = 0;
+    private long mOverflowCount = 0;
+
+    public FrameArena(int budgetBytes) {
+        this(budgetBytes, DEFAULT_PAGE_SIZE);
+    }
+
+    public FrameArena(int budgetBytes, int pageSize) {
+        if (pageSize <= 0 || pageSize % ALIGNMENT != 0) {
+            throw new IllegalArgumentException("Page size must be a positive multiple of " + ALIGNMENT + ": " + pageSize);
+        }
+        if (budgetBytes < pageSize) {
+            throw new IllegalArgumentException("Budget is smaller than one page: " + budgetBytes);
+        }
+        mPageSize = pageSize;
+        mPageCount = budgetBytes / pageSize;
+        mUsedPages = new BitSet(mPageCount);
+        mLeasesByPage = new Lease[mPageCount];
+
+        mSlab = allocateSlab(mPageCount * pageSize);
+    }
+
+    /**
+     * Row stride in bytes padded to {@link #ALIGNMENT}, so every row of a plane
+     * starts on an aligned address and can be uploaded without GL unpack realignment
+     */
+    public static int alignedStride(int rowBytes) {
+        return (rowBytes + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /** Budget that holds the given number of frames with the default page size */
+    public static int budgetFor(int frameSize, int frameCount) {
+        final int pages = (frameSize + DEFAULT_PAGE_SIZE - 1) / DEFAULT_PAGE_SIZE;
+        return pages * DEFAULT_PAGE_SIZE * frameCount;
+    }
+
+    /** Size of an I420 frame whose planes use {@link #alignedStride(int)} rows */
+    public static int alignedI420Size(int width, int height) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        return alignedStride(width) * height + 2 * alignedStride(chromaWidth) * chromaHeight;
+    }
+
+    /**
+     * Takes a buffer of at least the requested size from the slab.
+     * Returns null if the slab has no contiguous run of free pages large enough.
+     */
+    @Nullable
+    public synchronized Lease acquire(int minimumCapacity) {
+        final int pages = Math.max(1, (minimumCapacity + mPageSize - 1) / mPageSize);
+        final int first = findFreeRun(pages);
+        if (first < 0) {
+            return null;
+        }
+        mUsedPages.set(first, first + pages);
+        mUsedPageCount += pages;
+
+        Lease lease = mLeasesByPage[first];
+        if (lease == null || lease.mPageCount != pages) {
+            final ByteBuffer view = mSlab.duplicate();
+            view.limit((first + pages) * mPageSize);
+            view.position(first * mPageSize);
+            lease = new Lease(this, first, pages, view.slice());
+            mLeasesByPage[first] = lease;
+        }
+        lease.begin();
+        lease.mBuffer.clear();
+        mActiveLeases.put(lease.mBuffer, lease);
+        return lease;
+    }
+
+    /** Active lease that owns the buffer, or null if the buffer did not come from this arena */
+    @Nullable
+    public synchronized Lease leaseOf(@NonNull ByteBuffer buffer) {
+        return mActiveLeases.get(buffer);
+    }
+
+    @NonNull
+    @Override
+    public ByteBuffer allocateBuffer(int minimumCapacity) {
+        final Lease lease = acquire(minimumCapacity);
+        if (lease != null) {
+            return lease.buffer();
+        }
+        /* The budget is exhausted, keep the pipeline running with memory outside of the slab */
+        synchronized (this) {
+            mOverflowCount++;
+        }
+        return ByteBuffer.allocateDirect(minimumCapacity);
+    }
+
+    /**
+     * Releases the allocator's reference of a buffer returned by {@link #allocateBuffer(int)}.
+     * The buffer is matched by identity like in {@link BuffersQueue}, holders that may release late
+     * should keep the {@link Lease} and its generation instead.
+     */
+    @Override
+    public void retainBuffer(@NonNull ByteBuffer buffer) {
+        final Lease lease = leaseOf(buffer);
+        if (lease != null) {
+            lease.release(lease.generation());
+        }
+    }
+
+    public int getCapacity() {
+        return mPageCount * mPageSize;
+    }
+
+    public synchronized int getUsedBytes() {
+        return mUsedPageCount * mPageSize;
+    }
+
+    /** Number of allocations that did not fit into the slab */
+    public synchronized long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    private synchronized void free(@NonNull Lease lease) {
+        mActiveLeases.remove(lease.mBuffer);
+        mUsedPages.clear(lease.mFirstPage, lease.mFirstPage + lease.mPageCount);
+        mUsedPageCount -= lease.mPageCount;
+    }
+
+    @NonNull
+    private static ByteBuffer allocateSlab(int size) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            try {
+                /* the mapping is page aligned, it outlives the descriptor and is unmapped with the buffer */
+                final SharedMemory memory = SharedMemory.create(TAG, size);
+                try {
+                    return memory.mapReadWrite();
+                } finally {
+                    memory.close();
+                }
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Could not map shared memory, falling back to a direct buffer", e);
+            }
+        }
+        final ByteBuffer raw = ByteBuffer.allocateDirect(size + ALIGNMENT);
+        final long address = DirectBuffers.addressOf(raw);
+        if (address < 0) {
+            Log.w(TAG, "Slab address is unknown, buffers may not be aligned");
+        }
+        final int offset = address < 0 ? 0 : (int) (-address & (ALIGNMENT - 1));
+        raw.limit(offset + size);
+        raw.position(offset);
+        return raw.slice();
+    }
+
+    /* First fit search of a run of free pages */
+    private int findFreeRun(int pages) {
+        int start = mUsedPages.nextClearBit(0);
+        while (start + pages <= mPageCount) {
+            final int nextUsed = mUsedPages.nextSetBit(start);
+            if (nextUsed < 0 || nextUsed - start >= pages) {
+                return start;
+            }
+            start = mUsedPages.nextClearBit(nextUsed);
+        }
+        return -1;
+    }
+
+    /**
+     * Reference counted ownership of a buffer from the arena.
+     * Holders pass the {@link #generation()} they got the lease with, calls of a past generation
+     * throw and leave the current one intact. The buffer must not be touched after the last release.
+     */
+    public static final class Lease {
+        private static final long REF_COUNT_MASK = 0xFFFFFFFFL;
+
+        private final FrameArena mArena;
+        private final int mFirstPage;
+        private final int mPageCount;
+        private final ByteBuffer mBuffer;
+        /* generation in the high 32 bits, reference count in the low 32 bits */
+        private final AtomicLong mState = new AtomicLong();
+
+        private Lease(FrameArena arena, int firstPage, int pageCount, ByteBuffer buffer) {
+            mArena = arena;
+            mFirstPage = firstPage;
+            mPageCount = pageCount;
+            mBuffer = buffer;
+        }
+
+        @NonNull
+        public ByteBuffer buffer() {
+            return mBuffer;
+        }
+
+        /** Generation of the current acquisition, read it right after taking the lease */
+        public int generation() {
+            return (int) (mState.get() >>> 32);
+        }
+
+        /** Adds a consumer of the buffer */
+        @NonNull
+        public Lease retain(int generation) {
+            while (true) {
+                final long state = mState.get();
+                checkHeld(state, generation);
+                if (mState.compareAndSet(state, state + 1)) {
+                    return this;
+                }
+            }
+        }
+
+        /** Drops a consumer of the buffer, the last one returns the buffer to the arena */
+        public void release(int generation) {
+            while (true) {
+                final long state = mState.get();
+                checkHeld(state, generation);
+                if (mState.compareAndSet(state, state - 1)) {
+                    if ((state & REF_COUNT_MASK) == 1) {
+                        mArena.free(this);
+                    }
+                    return;
+                }
+            }
+        }
+
+        /* Starts a new generation with one reference, called by the arena under its lock */
+        private void begin() {
+            final long generation = (mState.get() >>> 32) + 1;
+            mState.set(generation << 32 | 1);
+        }
+
+        private static void checkHeld(long state, int generation) {
+            if ((int) (state >>> 32) != generation) {
+                throw new IllegalStateException("Lease of generation " + generation
+                        + " was released, now at " + (int) (state >>> 32));
+            }
+            if ((state & REF_COUNT_MASK) == 0) {
+                throw new IllegalStateException("Lease is already released");
+            }
+        }
+    }
+}
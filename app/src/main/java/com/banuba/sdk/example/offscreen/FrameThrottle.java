@@ -0,0 +1,224 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of frames in flight between a frame source and a processor.
+ * At most maxInFlight frames are handed to the processor until it reports them done,
+ * further frames are dropped according to the {@link Policy}: DROP_NEWEST releases the
+ * incoming frame, DROP_OLDEST keeps it as the only pending frame and releases the one
+ * it replaces, so the processor always gets the freshest frame once it is free.
+ * A frame the processor never reports is written off after the lost frame timeout.
+ * Every frame is offered with a key, such as its timestamp, and reported done with the same key,
+ * so a late report of a frame written off, or forgotten by {@link #reset()}, does not free a slot
+ * taken by a newer frame. Time is passed in, so the throttle has no Android runtime dependencies.
+ */
+public class FrameThrottle<T> {
+    public enum Policy {
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+
+    public interface FrameConsumer<T> {
+        void onFrame(@NonNull T frame);
+    }
+
+    public interface FrameReleaser<T> {
+        /* Gives a dropped frame back to its source */
+        void release(@NonNull T frame);
+    }
+
+    private final int mMaxInFlight;
+    @NonNull
+    private final Policy mPolicy;
+    private final long mLostFrameTimeoutMillis;
+    @NonNull
+    private final PoolSizingPolicy.Clock mClock;
+    @NonNull
+    private final FrameConsumer<T> mConsumer;
+    @NonNull
+    private final FrameReleaser<T> mReleaser;
+
+    /* guarded by this */
+    private int mInFlight = 0;
+    @Nullable
+    private T mPending = null;
+    private long mPendingKey;
+    private long mLastProgressTime;
+    /* keys and delivery times of the frames in flight, the first mInFlight entries are used */
+    private final long[] mInFlightKeys;
+    private final long[] mDeliveryTimes;
+
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mLostCount = new AtomicLong();
+
+    /**
+     * @param maxInFlight            frames the processor may hold at once
+     * @param lostFrameTimeoutMillis time without any completion after which frames in flight are
+     *                               considered lost, 0 or less waits forever
+     */
+    public FrameThrottle(int maxInFlight, @NonNull Policy policy, long lostFrameTimeoutMillis,
+                         @NonNull PoolSizingPolicy.Clock clock,
+                         @NonNull FrameConsumer<T> consumer, @NonNull FrameReleaser<T> releaser) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Frames in flight must be positive: " + maxInFlight);
+        }
+        mMaxInFlight = maxInFlight;
+        mPolicy = policy;
+        mLostFrameTimeoutMillis = lostFrameTimeoutMillis;
+        mClock = clock;
+        mConsumer = consumer;
+        mReleaser = releaser;
+        mLastProgressTime = clock.uptimeMillis();
+        mInFlightKeys = new long[maxInFlight];
+        mDeliveryTimes = new long[maxInFlight];
+    }
+
+    /**
+     * Number of frames the source may have to keep outside its own queue, an ImageReader
+     * needs this many images plus two for acquireLatestImage() to keep working.
+     */
+    public int getMaxHeldFrames() {
+        return mMaxInFlight + (mPolicy == Policy.DROP_OLDEST ? 1 : 0);
+    }
+
+    /**
+     * Passes a frame to the consumer or drops one, called by the frame source.
+     *
+     * @param key identifies the frame in {@link #onFrameProcessed(long)}, unique among frames in flight
+     */
+    public void offer(@NonNull T frame, long key) {
+        T dropped = null;
+        boolean deliver = false;
+        synchronized (this) {
+            final long now = mClock.uptimeMillis();
+            if (mInFlight >= mMaxInFlight && mLostFrameTimeoutMillis > 0
+                    && now - mLastProgressTime >= mLostFrameTimeoutMillis) {
+                mLostCount.addAndGet(mInFlight);
+                mInFlight = 0;
+            }
+            if (mInFlight < mMaxInFlight) {
+                pushInFlight(key, now);
+                mLastProgressTime = now;
+                deliver = true;
+            } else if (mPolicy == Policy.DROP_NEWEST) {
+                dropped = frame;
+            } else {
+                dropped = mPending;
+                mPending = frame;
+                mPendingKey = key;
+            }
+        }
+        if (dropped != null) {
+            mDroppedCount.incrementAndGet();
+            mReleaser.release(dropped);
+        }
+        if (deliver) {
+            deliver(frame, key);
+        }
+    }
+
+    /**
+     * Reports that the consumer finished a frame, may deliver the pending one on the calling thread.
+     * Keys of frames no longer in flight are ignored.
+     *
+     * @param key key the frame was offered with
+     * @return time from the delivery of the frame, or -1 if the frame was not in flight
+     */
+    public long onFrameProcessed(long key) {
+        final T next;
+        final long nextKey;
+        final long latency;
+        synchronized (this) {
+            final long deliveryTime = removeInFlight(key);
+            if (deliveryTime < 0) {
+                return -1;
+            }
+            final long now = mClock.uptimeMillis();
+            mLastProgressTime = now;
+            latency = now - deliveryTime;
+            next = mPending;
+            nextKey = mPendingKey;
+            if (next != null) {
+                mPending = null;
+                pushInFlight(nextKey, now);
+            }
+        }
+        if (next != null) {
+            deliver(next, nextKey);
+        }
+        return latency;
+    }
+
+    /**
+     * Releases the pending frame and forgets frames in flight, used when the source stops.
+     */
+    public void reset() {
+        final T pending;
+        synchronized (this) {
+            pending = mPending;
+            mPending = null;
+            mInFlight = 0;
+            mLastProgressTime = mClock.uptimeMillis();
+        }
+        if (pending != null) {
+            mReleaser.release(pending);
+        }
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /* Frames written off by the lost frame timeout */
+    public long getLostCount() {
+        return mLostCount.get();
+    }
+
+    /* Frames in flight plus the pending one */
+    public synchronized int getQueueDepth() {
+        return mInFlight + (mPending != null ? 1 : 0);
+    }
+
+    /* Adds a frame in flight, guarded by this */
+    private void pushInFlight(long key, long time) {
+        mInFlightKeys[mInFlight] = key;
+        mDeliveryTimes[mInFlight] = time;
+        mInFlight++;
+    }
+
+    /* Removes a frame in flight, guarded by this, returns its delivery time or -1 if it is not in flight */
+    private long removeInFlight(long key) {
+        for (int i = 0; i < mInFlight; i++) {
+            if (mInFlightKeys[i] == key) {
+                final long time = mDeliveryTimes[i];
+                mInFlight--;
+                mInFlightKeys[i] = mInFlightKeys[mInFlight];
+                mDeliveryTimes[i] = mDeliveryTimes[mInFlight];
+                return time;
+            }
+        }
+        return -1;
+    }
+
+    private void deliver(T frame, long key) {
+        mDeliveredCount.incrementAndGet();
+        try {
+            mConsumer.onFrame(frame);
+        } catch (RuntimeException e) {
+            /* the consumer will never report this frame */
+            synchronized (this) {
+                removeInFlight(key);
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link GLUploadBackend} on top of OpenGL ES 3.0, binds go through a {@link GLStateCache}
+ */
+public class GLES30UploadBackend implements GLUploadBackend {
+    /* fences are waited on in chunks of a frame, the GPU is rarely that far behind */
+    private static final long FENCE_WAIT_NS = 16_000_000L;
+
+    private final GLStateCache mState;
+    private final int[] mName = new int[1];
+
+    public GLES30UploadBackend(@NonNull GLStateCache state) {
+        mState = state;
+    }
+
+    @Override
+    public int createTexture() {
+        GLES20.glGenTextures(1, mName, 0);
+        mState.bindTexture(mName[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        return mName[0];
+    }
+
+    @Override
+    public void deleteTexture(int texture) {
+        mName[0] = texture;
+        GLES20.glDeleteTextures(1, mName, 0);
+        mState.onTextureDeleted(texture);
+    }
+
+    @Override
+    public void bindTexture(int unit, int texture) {
+        mState.bindTexture(unit, texture);
+    }
+
+    @Override
+    public void allocateTextureStorage(int width, int height, int bytesPerPixel) {
+        GLES30.glTexStorage2D(GLES20.GL_TEXTURE_2D, 1, internalFormat(bytesPerPixel), width, height);
+    }
+
+    @Override
+    public void setUnpackRowLength(int pixels) {
+        mState.pixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, pixels);
+    }
+
+    @Override
+    public void texSubImage(int width, int height, int bytesPerPixel, @NonNull ByteBuffer data) {
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, format(bytesPerPixel), GLES20.GL_UNSIGNED_BYTE, data);
+    }
+
+    @Override
+    public void texSubImageFromUnpackBuffer(int width, int height, int bytesPerPixel, int offset) {
+        GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, format(bytesPerPixel), GLES20.GL_UNSIGNED_BYTE, offset);
+    }
+
+    @Override
+    public int createBuffer() {
+        GLES20.glGenBuffers(1, mName, 0);
+        return mName[0];
+    }
+
+    @Override
+    public void deleteBuffer(int buffer) {
+        mName[0] = buffer;
+        GLES20.glDeleteBuffers(1, mName, 0);
+        mState.onBufferDeleted(buffer);
+    }
+
+    @Override
+    public void bindUnpackBuffer(int buffer) {
+        mState.bindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, buffer);
+    }
+
+    @Override
+    public void allocateUnpackBuffer(int size) {
+        GLES20.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null, GLES30.GL_STREAM_DRAW);
+    }
+
+    /*
+     * glBufferSubData reads straight from the plane memory. Mapping would be the same single copy,
+     * but glMapBufferRange wraps every mapping in a new direct buffer object.
+     */
+    @Override
+    public void writeUnpackBuffer(int offset, @NonNull ByteBuffer data) {
+        GLES20.glBufferSubData(GLES30.GL_PIXEL_UNPACK_BUFFER, offset, data.remaining(), data);
+    }
+
+    @Override
+    public long insertFence() {
+        return GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    @Override
+    public void waitFence(long fence) {
+        int result;
+        do {
+            result = GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_WAIT_NS);
+        } while (result == GLES30.GL_TIMEOUT_EXPIRED);
+        GLES30.glDeleteSync(fence);
+    }
+
+    @Override
+    public void deleteFence(long fence) {
+        GLES30.glDeleteSync(fence);
+    }
+
+    private static int internalFormat(int bytesPerPixel) {
+        return bytesPerPixel == 2 ? GLES30.GL_RG8 : GLES30.GL_R8;
+    }
+
+    private static int format(int bytesPerPixel) {
+        return bytesPerPixel == 2 ? GLES30.GL_RG : GLES30.GL_RED;
+    }
+}
@@ -1,12 +1,16 @@
 package com.banuba.sdk.example.offscreen;
 
+import android.media.Image;
 import android.opengl.GLES20;
 import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
-import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -15,6 +19,23 @@ import javax.microedition.khronos.opengles.GL10;
  * Helper class that allows to renders Offscreen output image on display
  */
 public class GLI420Renderer implements GLSurfaceView.Renderer {
+    /**
+     * Receives frame buffers the renderer no longer needs. Called on the GL thread once the planes
+     * are uploaded to textures (see {@link TextureUploader}),
+     * or on the calling thread when a frame is dropped without drawing.
+     */
+    public interface FrameReleaseListener {
+        void onFrameReleased(@NonNull ByteBuffer frame);
+    }
+
+    /**
+     * Receives camera images passed to {@link #drawImage(Image, int, boolean)} once the renderer
+     * no longer needs them, on the same threads as {@link FrameReleaseListener}. The listener closes them.
+     */
+    public interface ImageReleaseListener {
+        void onImageReleased(@NonNull Image image);
+    }
+
     private static final String VERTEX_SHADER_PROGRAM =
             "#version 300 es\n" +
                     "precision mediump float;\n" +
@@ -36,35 +57,118 @@ public class GLI420Renderer implements GLSurfaceView.Renderer {
                     "in vec2 vTexCoord;\n" +
                     "out vec4 outFragColor;\n" +
                     "void main() {\n" +
-                    "  float y = texture(uTextureY, vTexCoord).x * 1.164383562f;\n" +
+                    "  float y = texture(uTextureY, vTexCoord).x;\n" +
                     "  float u = texture(uTextureU, vTexCoord).x;\n" +
                     "  float v = texture(uTextureV, vTexCoord).x;\n" +
-                    "  outFragColor = vec4(\n" +
-                    "    y + 1.5960267860f * v - 0.8742022179f,\n" +
-                    "    y - 0.3917622901f * u - 0.8129676472f * v + 0.5316678235f,\n" +
-                    "    y + 2.0172321430f * u - 1.0856307890f,\n" +
-                    "    1.0f);\n" +
+                    "  outFragColor = " + YuvToArgbConverter.ColorStandard.BT601.shaderColor() + ";\n" +
+                    "}\n";
+
+    /* Y plane plus one texture with interleaved chroma, %s selects the component order */
+    private static final String SEMI_PLANAR_FRAGMENT_SHADER_PROGRAM =
+            "#version 300 es\n" +
+                    "precision mediump float;\n" +
+                    "uniform sampler2D uTextureY;\n" +
+                    "uniform sampler2D uTextureUV;\n" +
+                    "in vec2 vTexCoord;\n" +
+                    "out vec4 outFragColor;\n" +
+                    "void main() {\n" +
+                    "  float y = texture(uTextureY, vTexCoord).x;\n" +
+                    "  vec2 uv = texture(uTextureUV, vTexCoord).%s;\n" +
+                    "  float u = uv.x;\n" +
+                    "  float v = uv.y;\n" +
+                    "  outFragColor = " + YuvToArgbConverter.ColorStandard.BT601.shaderColor() + ";\n" +
                     "}\n";
 
+    /* plane layouts of input images */
+    private static final int LAYOUT_I420 = 0; /* Y, U, V planes */
+    private static final int LAYOUT_NV12 = 1; /* Y plane, interleaved U V plane */
+    private static final int LAYOUT_NV21 = 2; /* Y plane, interleaved V U plane */
+    private static final int LAYOUTS_NUMBER = 3;
+
+    /* orders of interleaved chroma */
+    static final int CHROMA_ORDER_UNKNOWN = 0;
+    static final int CHROMA_ORDER_UV = 1;
+    static final int CHROMA_ORDER_VU = 2;
+
+    private static final int[][] LAYOUT_BYTES_PER_PIXEL = {{1, 1, 1}, {1, 2}, {1, 2}};
+    private static final String[][] LAYOUT_TEXTURE_UNIFORMS = {
+            {"uTextureY", "uTextureU", "uTextureV"},
+            {"uTextureY", "uTextureUV"},
+            {"uTextureY", "uTextureUV"}
+    };
+
     /* input YUV image to draw */
-    private ByteBuffer[] mPlanes = null;
-    private int[] mPlaneStrides = null;
-    private Size[] mPlaneSizes = null;
-    private int mImageOrientation = 0;
+    private static final class Frame {
+        final ByteBuffer[] planes = new ByteBuffer[3];
+        final int[] strides = new int[3];
+        final int[] widths = new int[3];
+        final int[] heights = new int[3];
+        int layout;
+        int orientation;
+        boolean mirrored;
+        ByteBuffer buffer; /* frame buffer the planes belong to */
+        Image image; /* or camera image the planes belong to */
+
+        void clear() {
+            planes[0] = planes[1] = planes[2] = null;
+            buffer = null;
+            image = null;
+        }
+    }
+
+    /* written by the thread calling the draw methods, read on the GL thread */
+    private final TripleBufferMailbox<Frame> mMailbox = new TripleBufferMailbox<>(new Frame(), new Frame(), new Frame());
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+    /* used by the thread calling the draw methods */
+    @Nullable
+    private YuvRepacker mRepacker = null;
+    private volatile FrameReleaseListener mFrameReleaseListener = null;
+    private volatile ImageReleaseListener mImageReleaseListener = null;
 
     /* variables for working with OpenGL */
     private boolean mIsCreated = false;
-    private GLShaderProgram mShaderProgram = null;
+    private final GLShaderProgram[] mShaderPrograms = new GLShaderProgram[LAYOUTS_NUMBER];
+    private final int[][] mUniformTextures = new int[LAYOUTS_NUMBER][];
+    private final int[] mUniformMatrices = new int[LAYOUTS_NUMBER];
     private int mViewportWidth;
     private int mViewportHeight;
-    private int[] mUniformTexture;
-    private int mUniformMatrix;
+
+    /* scaling matrix, recomputed only when oriented image size, mirroring or viewport change */
+    private final float[] mMatrix = {
+            1.0f, 0.0f, 0.0f, 0.0f,
+            0.0f, 1.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 1.0f, 0.0f,
+            0.0f, 0.0f, 0.0f, 1.0f
+    };
+    private int mMatrixImageWidth = 0;
+    private int mMatrixImageHeight = 0;
+    private int mMatrixViewportWidth = 0;
+    private int mMatrixViewportHeight = 0;
+    private boolean mMatrixMirrored = false;
     private int[] mVBO;
     private int[] mVAO;
-    private int[] mTexture;
+    private final int mUnpackBufferCount;
+    @Nullable
+    private final GLProgramCache mProgramCache;
+    private TextureUploader mUploader;
+    private final GLStateCache mState = new GLStateCache();
 
     final int vertLen = 4; /* Number of vertices */
-    final int texturesNumber = 3; /* Number of GL textures */
+    final int texturesNumber = 3; /* Maximum number of GL textures */
+
+    public GLI420Renderer() {
+        this(0, null);
+    }
+
+    /**
+     * @param unpackBufferCount number of pixel unpack buffers (2 or 3) planes are streamed through,
+     *                          0 uploads planes directly from client memory
+     * @param programCache      cache to take shader programs from, null compiles them on every creation
+     */
+    public GLI420Renderer(int unpackBufferCount, @Nullable GLProgramCache programCache) {
+        mUnpackBufferCount = unpackBufferCount;
+        mProgramCache = programCache;
+    }
 
     /* initialize the OpenGL drawing */
     private void create() {
@@ -108,80 +212,383 @@ public class GLI420Renderer implements GLSurfaceView.Renderer {
 
         mVAO = new int[1];
         GLES30.glGenVertexArrays(mVAO.length, mVAO, 0);
-        GLES30.glBindVertexArray(mVAO[0]);
-        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, mVAO[0]);
+        GLResourceRegistry.onCreated(GLResourceRegistry.Kind.VERTEX_ARRAY);
+        mState.bindVertexArray(mVAO[0]);
         mVBO = new int[1];
         GLES20.glGenBuffers(mVBO.length, mVBO, 0);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVBO[0]);
+        GLResourceRegistry.onCreated(GLResourceRegistry.Kind.BUFFER);
+        mState.bindBuffer(GLES20.GL_ARRAY_BUFFER, mVBO[0]);
         GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, drawingPlaneCoordsBufferSize, FloatBuffer.wrap(drawingPlaneCoords), GLES20.GL_STATIC_DRAW);
         GLES20.glVertexAttribPointer(0, xyzLen, GLES20.GL_FLOAT, false, vertStride, xyzOffset);
         GLES20.glVertexAttribPointer(1, uvLen, GLES20.GL_FLOAT, false, vertStride, uvOffset);
         GLES20.glEnableVertexAttribArray(0);
         GLES20.glEnableVertexAttribArray(1);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-        GLES30.glBindVertexArray(0);
-
-        mTexture = new int[texturesNumber];
-        GLES20.glGenTextures(texturesNumber, mTexture, 0);
-        for (int i = 0; i < texturesNumber; i++) {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[i]);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        }
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        /* the vertex array stays bound, it is the only one */
+
+        /* textures are allocated by the uploader on the first frame of every size */
+        mState.pixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        mUploader = new TextureUploader(new GLES30UploadBackend(mState), texturesNumber, mUnpackBufferCount);
+
+        /* semi-planar programs are created with the first image that needs them */
+        getShaderProgram(LAYOUT_I420);
+        mIsCreated = true;
+    }
 
+    private GLShaderProgram getShaderProgram(int layout) {
+        if (mShaderPrograms[layout] != null) {
+            return mShaderPrograms[layout];
+        }
+        final String fragmentShader;
+        switch (layout) {
+            case LAYOUT_NV12:
+                fragmentShader = String.format(SEMI_PLANAR_FRAGMENT_SHADER_PROGRAM, "xy");
+                break;
+            case LAYOUT_NV21:
+                fragmentShader = String.format(SEMI_PLANAR_FRAGMENT_SHADER_PROGRAM, "yx");
+                break;
+            default:
+                fragmentShader = FRAGMENT_SHADER_PROGRAM;
+                break;
+        }
         try {
-            mShaderProgram = new GLShaderProgram(VERTEX_SHADER_PROGRAM, FRAGMENT_SHADER_PROGRAM);
-            mUniformTexture = new int[texturesNumber];
-            mUniformTexture[0] = mShaderProgram.getUniformLocation("uTextureY");
-            mUniformTexture[1] = mShaderProgram.getUniformLocation("uTextureU");
-            mUniformTexture[2] = mShaderProgram.getUniformLocation("uTextureV");
-            mUniformMatrix = mShaderProgram.getUniformLocation("uMatrix");
+            final GLShaderProgram program = mProgramCache != null
+                    ? mProgramCache.obtain(VERTEX_SHADER_PROGRAM, fragmentShader)
+                    : new GLShaderProgram(VERTEX_SHADER_PROGRAM, fragmentShader);
+            final String[] textureUniforms = LAYOUT_TEXTURE_UNIFORMS[layout];
+            mUniformTextures[layout] = new int[textureUniforms.length];
+            for (int i = 0; i < textureUniforms.length; i++) {
+                mUniformTextures[layout][i] = program.getUniformLocation(textureUniforms[i]);
+            }
+            mUniformMatrices[layout] = program.getUniformLocation("uMatrix");
+            mShaderPrograms[layout] = program;
         } catch (Exception e) {
             e.printStackTrace();
         }
-        mIsCreated = true;
+        return mShaderPrograms[layout];
     }
 
-    /* destructor */
-    private void destroy() {
-        if (mIsCreated) {
-            mIsCreated = false;
+    /**
+     * Deletes GL objects of the renderer and gives back the image that was not drawn yet.
+     * Must be called on the GL thread, e.g. through GLSurfaceView.queueEvent() right before
+     * GLSurfaceView.onPause(). Objects are created again with the next surface.
+     */
+    public void release() {
+        destroy(true);
+        final Frame pending = mMailbox.consume();
+        if (pending != null) {
+            releaseFrame(pending);
+        }
+    }
+
+    /**
+     * @param deleteObjects false if the context is already gone together with the objects,
+     *                      then only the bookkeeping is reset and no GL calls are made
+     */
+    private void destroy(boolean deleteObjects) {
+        if (!mIsCreated) {
+            return;
+        }
+        mIsCreated = false;
+        if (deleteObjects) {
             GLES20.glDeleteBuffers(1, mVBO, 0);
+            mState.onBufferDeleted(mVBO[0]);
             GLES30.glDeleteVertexArrays(1, mVAO, 0);
-            GLES20.glDeleteTextures(texturesNumber, mTexture, 0);
-            mShaderProgram = null;
+            mState.onVertexArrayDeleted(mVAO[0]);
+            mUploader.release();
+        } else {
+            mUploader.onContextLost();
+        }
+        GLResourceRegistry.onReleased(GLResourceRegistry.Kind.BUFFER);
+        GLResourceRegistry.onReleased(GLResourceRegistry.Kind.VERTEX_ARRAY);
+        mUploader = null;
+
+        for (int i = 0; i < LAYOUTS_NUMBER; i++) {
+            /* programs taken from the cache are owned by it */
+            if (mShaderPrograms[i] != null && mProgramCache == null) {
+                if (deleteObjects) {
+                    mShaderPrograms[i].release();
+                } else {
+                    mShaderPrograms[i].onContextLost();
+                }
+            }
+            mShaderPrograms[i] = null;
         }
     }
 
-    protected void finalize() {
-        /* Potential issue. The destructor must be called from the thread where there is a render context. */
-        destroy();
+    /* State tracker of the renderer, its counters show how many GL calls were skipped per frame */
+    @NonNull
+    public GLStateCache getGLStateCache() {
+        return mState;
+    }
+
+    public void setFrameReleaseListener(@Nullable FrameReleaseListener listener) {
+        mFrameReleaseListener = listener;
+    }
+
+    public void setImageReleaseListener(@Nullable ImageReleaseListener listener) {
+        mImageReleaseListener = listener;
+    }
+
+    /**
+     * Sets the repacker that de-interleaves images whose chroma order can not be told into I420,
+     * see {@link #drawYuv420Image}. Its buffers are given back through {@link FrameReleaseListener},
+     * so it should allocate from the pool the listener returns frames to. Without a repacker such
+     * images are dropped. Called on the thread calling the draw methods.
+     */
+    public void setRepacker(@Nullable YuvRepacker repacker) {
+        mRepacker = repacker;
     }
 
     /* push image to drawing */
     public void drawI420Image(ByteBuffer yPlane, int yPlaneStride, ByteBuffer uPlane, int uPlaneStride, ByteBuffer vPlane, int vPlaneStride, int width, int height, int imageOrientation) {
-        if (mPlanes == null && mPlaneStrides == null && mPlaneSizes == null) {
-            mPlanes = new ByteBuffer[3];
-            mPlanes[0] = yPlane;
-            mPlanes[1] = uPlane;
-            mPlanes[2] = vPlane;
-            mPlaneStrides = new int[3];
-            mPlaneStrides[0] = yPlaneStride;
-            mPlaneStrides[1] = uPlaneStride;
-            mPlaneStrides[2] = vPlaneStride;
-            mPlaneSizes = new Size[3];
-            mPlaneSizes[0] = new Size(width, height);
-            mPlaneSizes[1] = new Size(width / 2, height / 2);
-            mPlaneSizes[2] = new Size(width / 2, height / 2);
-            mImageOrientation = imageOrientation % 360;
-            assert imageOrientation % 90 == 0;
+        drawI420Image(yPlane, yPlaneStride, uPlane, uPlaneStride, vPlane, vPlaneStride, width, height, imageOrientation, null);
+    }
+
+    /**
+     * Push image to drawing, must be called from one thread. The newest image replaces one
+     * that is not drawn yet. The renderer owns the frame buffer the planes belong to
+     * until it is passed to {@link FrameReleaseListener}.
+     */
+    public void drawI420Image(ByteBuffer yPlane, int yPlaneStride, ByteBuffer uPlane, int uPlaneStride, ByteBuffer vPlane, int vPlaneStride, int width, int height, int imageOrientation, @Nullable ByteBuffer frame) {
+        final Frame slot = mMailbox.producerSlot();
+        setI420(slot, yPlane, yPlaneStride, uPlane, uPlaneStride, vPlane, vPlaneStride, width, height, imageOrientation);
+        slot.buffer = frame;
+        publish();
+    }
+
+    /**
+     * Push semi-planar image to drawing: a Y plane and a plane of interleaved chroma pairs,
+     * U first for NV12 or V first for NV21. Same threading and ownership rules as
+     * {@link #drawI420Image(ByteBuffer, int, ByteBuffer, int, ByteBuffer, int, int, int, int, ByteBuffer)}.
+     */
+    public void drawSemiPlanarImage(ByteBuffer yPlane, int yPlaneStride, ByteBuffer uvPlane, int uvPlaneStride, boolean isVuOrder, int width, int height, int imageOrientation, @Nullable ByteBuffer frame) {
+        final Frame slot = mMailbox.producerSlot();
+        setSemiPlanar(slot, yPlane, yPlaneStride, uvPlane, uvPlaneStride, isVuOrder, width, height, imageOrientation);
+        slot.buffer = frame;
+        publish();
+    }
+
+    /**
+     * Push YUV 4:2:0 image described as YUV_420_888 planes to drawing, the layout is chosen from
+     * the chroma pixel stride. With pixel stride 2 the U and V planes interleave in one block of memory:
+     * if the V plane starts one byte before the U plane the block is NV21 and is uploaded from the V plane,
+     * if the U plane starts one byte before the V plane it is NV12 and is uploaded from the U plane.
+     * The order is told by the native addresses of the planes. When they can not be read the planes are
+     * de-interleaved into I420 by the repacker (see {@link #setRepacker(YuvRepacker)}) and the frame is
+     * given back right away.
+     */
+    public void drawYuv420Image(ByteBuffer yPlane, int yPlaneStride, ByteBuffer uPlane, int uPlaneStride, ByteBuffer vPlane, int vPlaneStride, int chromaPixelStride, int width, int height, int imageOrientation, @Nullable ByteBuffer frame) {
+        final Frame slot = mMailbox.producerSlot();
+        if (chromaPixelStride == 2 && chromaOrder(uPlane, vPlane) == CHROMA_ORDER_UNKNOWN) {
+            final boolean repacked = setRepacked(slot, yPlane, yPlaneStride, uPlane, vPlane, uPlaneStride, width, height, imageOrientation);
+            release(frame, null);
+            if (!repacked) {
+                return;
+            }
+        } else {
+            setYuv420(slot, yPlane, yPlaneStride, uPlane, uPlaneStride, vPlane, vPlaneStride, chromaPixelStride, width, height, imageOrientation);
+            slot.buffer = frame;
         }
+        publish();
+    }
+
+    /**
+     * Push a YUV_420_888 camera image to drawing, see
+     * {@link #drawYuv420Image(ByteBuffer, int, ByteBuffer, int, ByteBuffer, int, int, int, int, int, ByteBuffer)}.
+     * The renderer owns the image until it is passed to {@link ImageReleaseListener}, or closes it itself
+     * if there is no listener.
+     *
+     * @param mirrored flips the image horizontally on screen, as front camera previews are
+     */
+    public void drawImage(@NonNull Image image, int imageOrientation, boolean mirrored) {
+        final Image.Plane[] planes = image.getPlanes();
+        final Frame slot = mMailbox.producerSlot();
+        if (planes[1].getPixelStride() == 2
+                && chromaOrder(planes[1].getBuffer(), planes[2].getBuffer()) == CHROMA_ORDER_UNKNOWN) {
+            final boolean repacked = setRepacked(slot,
+                    planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(),
+                    image.getWidth(), image.getHeight(), imageOrientation);
+            /* the pixels were copied */
+            release(null, image);
+            if (!repacked) {
+                return;
+            }
+        } else {
+            setYuv420(slot,
+                    planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[1].getRowStride(),
+                    planes[2].getBuffer(), planes[2].getRowStride(),
+                    planes[1].getPixelStride(), image.getWidth(), image.getHeight(), imageOrientation);
+            slot.image = image;
+        }
+        slot.mirrored = mirrored;
+        publish();
+    }
+
+    /*
+     * De-interleaves the planes into an I420 frame of the repacker and sets it to the slot.
+     * Plane views are created per frame, this path is only taken when plane addresses can not be read.
+     * Returns false and counts the image as dropped without a repacker.
+     */
+    private boolean setRepacked(Frame slot, ByteBuffer yPlane, int yPlaneStride, ByteBuffer uPlane, ByteBuffer vPlane, int uvPlaneStride, int width, int height, int imageOrientation) {
+        final YuvRepacker repacker = mRepacker;
+        if (repacker == null) {
+            mDroppedFrameCount.incrementAndGet();
+            return false;
+        }
+        final ByteBuffer packed = repacker.repack(yPlane, yPlaneStride, uPlane, vPlane, uvPlaneStride, 2, width, height, YuvRepacker.FORMAT_I420);
+        final int chromaWidth = (width + 1) / 2;
+        final int lumaSize = width * height;
+        final int chromaSize = chromaWidth * ((height + 1) / 2);
+        setI420(slot,
+                slice(packed, 0, lumaSize), width,
+                slice(packed, lumaSize, chromaSize), chromaWidth,
+                slice(packed, lumaSize + chromaSize, chromaSize), chromaWidth,
+                width, height, imageOrientation);
+        slot.buffer = packed;
+        return true;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(offset + size).position(offset);
+        return view.slice();
+    }
+
+    private static void setI420(Frame slot, ByteBuffer yPlane, int yPlaneStride, ByteBuffer uPlane, int uPlaneStride, ByteBuffer vPlane, int vPlaneStride, int width, int height, int imageOrientation) {
+        assert imageOrientation % 90 == 0;
+        slot.layout = LAYOUT_I420;
+        slot.planes[0] = yPlane;
+        slot.planes[1] = uPlane;
+        slot.planes[2] = vPlane;
+        slot.strides[0] = yPlaneStride;
+        slot.strides[1] = uPlaneStride;
+        slot.strides[2] = vPlaneStride;
+        slot.widths[0] = width;
+        slot.heights[0] = height;
+        slot.widths[1] = slot.widths[2] = width / 2;
+        slot.heights[1] = slot.heights[2] = height / 2;
+        slot.orientation = imageOrientation % 360;
+        slot.mirrored = false;
+    }
+
+    private static void setSemiPlanar(Frame slot, ByteBuffer yPlane, int yPlaneStride, ByteBuffer uvPlane, int uvPlaneStride, boolean isVuOrder, int width, int height, int imageOrientation) {
+        assert imageOrientation % 90 == 0;
+        slot.layout = isVuOrder ? LAYOUT_NV21 : LAYOUT_NV12;
+        slot.planes[0] = yPlane;
+        slot.planes[1] = uvPlane;
+        slot.strides[0] = yPlaneStride;
+        slot.strides[1] = uvPlaneStride;
+        slot.widths[0] = width;
+        slot.heights[0] = height;
+        slot.widths[1] = width / 2;
+        slot.heights[1] = height / 2;
+        slot.orientation = imageOrientation % 360;
+        slot.mirrored = false;
+    }
+
+    private static void setYuv420(Frame slot, ByteBuffer yPlane, int yPlaneStride, ByteBuffer uPlane, int uPlaneStride, ByteBuffer vPlane, int vPlaneStride, int chromaPixelStride, int width, int height, int imageOrientation) {
+        if (chromaPixelStride == 2) {
+            if (chromaOrder(uPlane, vPlane) == CHROMA_ORDER_VU) {
+                setSemiPlanar(slot, yPlane, yPlaneStride, vPlane, vPlaneStride, true, width, height, imageOrientation);
+            } else {
+                setSemiPlanar(slot, yPlane, yPlaneStride, uPlane, uPlaneStride, false, width, height, imageOrientation);
+            }
+        } else if (chromaPixelStride == 1) {
+            setI420(slot, yPlane, yPlaneStride, uPlane, uPlaneStride, vPlane, vPlaneStride, width, height, imageOrientation);
+        } else {
+            throw new IllegalArgumentException("Unsupported chroma pixel stride: " + chromaPixelStride);
+        }
+    }
+
+    /*
+     * Order of interleaved chroma planes: V U pairs when the V plane starts one byte before the U plane,
+     * U V pairs when the U plane starts one byte before the V plane, unknown when the addresses can not
+     * be read or the planes do not interleave
+     */
+    static int chromaOrder(@NonNull ByteBuffer uPlane, @NonNull ByteBuffer vPlane) {
+        final long uAddress = DirectBuffers.addressOf(uPlane);
+        final long vAddress = DirectBuffers.addressOf(vPlane);
+        if (uAddress < 0 || vAddress < 0) {
+            return CHROMA_ORDER_UNKNOWN;
+        }
+        final long uStart = uAddress + uPlane.position();
+        final long vStart = vAddress + vPlane.position();
+        if (vStart == uStart - 1) {
+            return CHROMA_ORDER_VU;
+        }
+        return uStart == vStart - 1 ? CHROMA_ORDER_UV : CHROMA_ORDER_UNKNOWN;
+    }
+
+    private void publish() {
+        if (mMailbox.publish()) {
+            /* The previous image was not drawn and came back to this thread */
+            releaseFrame(mMailbox.producerSlot());
+        }
+    }
+
+    /** Number of images replaced by a newer one before the GL thread drew them */
+    public long getSupersededFrameCount() {
+        return mMailbox.getSupersededCount();
+    }
+
+    /** Number of images taken by the GL thread but not drawn because GL objects were not ready */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    private void releaseFrame(@NonNull Frame frame) {
+        final ByteBuffer buffer = frame.buffer;
+        final Image image = frame.image;
+        frame.clear();
+        release(buffer, image);
+    }
+
+    private void release(@Nullable ByteBuffer buffer, @Nullable Image image) {
+        final FrameReleaseListener listener = mFrameReleaseListener;
+        if (buffer != null && listener != null) {
+            listener.onFrameReleased(buffer);
+        }
+        if (image != null) {
+            final ImageReleaseListener imageListener = mImageReleaseListener;
+            if (imageListener != null) {
+                imageListener.onImageReleased(image);
+            } else {
+                image.close();
+            }
+        }
+    }
+
+    private float[] getScaleMatrix(int imageWidth, int imageHeight, boolean mirrored) {
+        if (imageWidth == mMatrixImageWidth && imageHeight == mMatrixImageHeight && mirrored == mMatrixMirrored
+                && mViewportWidth == mMatrixViewportWidth && mViewportHeight == mMatrixViewportHeight) {
+            return mMatrix;
+        }
+        final float viewportRatio = ((float)mViewportWidth) / ((float)mViewportHeight);
+        final float imageRatio = ((float)imageWidth) / ((float)imageHeight);
+        final float xScale = imageRatio > viewportRatio ? imageRatio / viewportRatio : 1.0f;
+        mMatrix[0] = mirrored ? -xScale : xScale; /* x scale */
+        mMatrix[5] = viewportRatio > imageRatio  ? viewportRatio / imageRatio : 1.0f; /* y scale */
+        mMatrixImageWidth = imageWidth;
+        mMatrixImageHeight = imageHeight;
+        mMatrixViewportWidth = mViewportWidth;
+        mMatrixViewportHeight = mViewportHeight;
+        mMatrixMirrored = mirrored;
+        return mMatrix;
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        if (mIsCreated) {
+            /* the previous context was lost, its objects are gone with it */
+            destroy(false);
+        }
+        /* a new context starts with the default state and without programs */
+        mState.invalidate();
+        if (mProgramCache != null) {
+            mProgramCache.onContextCreated();
+        }
         create();
     }
 
@@ -194,71 +601,57 @@ public class GLI420Renderer implements GLSurfaceView.Renderer {
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        final ByteBuffer[] planes = mPlanes;
-        final int[] planeStrides = mPlaneStrides;
-        final Size[] planeSizes = mPlaneSizes;
-        final int imageOrientation = mImageOrientation;
-        if (mPlanes != null) {
-            mPlaneStrides = null;
-            mPlanes = null;
-            mPlaneSizes = null;
-        } else {
+        mState.beginFrame();
+        final Frame frame = mMailbox.consume();
+        if (frame == null) {
             /* Nothing to draw */
             return;
         }
+        final int imageOrientation = frame.orientation;
 
         if (!mIsCreated) {
+            mDroppedFrameCount.incrementAndGet();
+            releaseFrame(frame);
             return;
         }
 
         /* scaling */
         final boolean flipSizes = imageOrientation == 90 ||  imageOrientation == 270;
-        final int imageWidth = flipSizes ? planeSizes[0].getHeight() : planeSizes[0].getWidth();
-        final int imageHeight = flipSizes ? planeSizes[0].getWidth() : planeSizes[0].getHeight();
-        final float viewportRatio = ((float)mViewportWidth) / ((float)mViewportHeight);
-        final float imageRatio = ((float)imageWidth) / ((float)imageHeight);
-        final float xScale = imageRatio > viewportRatio ? imageRatio / viewportRatio : 1.0f;
-        final float yScale = viewportRatio > imageRatio  ? viewportRatio / imageRatio : 1.0f;
-
-        final float[] mat4 = {
-                xScale, 0.0f, 0.0f, 0.0f,
-                0.0f, yScale, 0.0f, 0.0f,
-                0.0f, 0.0f, 1.0f, 0.0f,
-                0.0f, 0.0f, 0.0f, 1.0f
-        };
+        final int imageWidth = flipSizes ? frame.heights[0] : frame.widths[0];
+        final int imageHeight = flipSizes ? frame.widths[0] : frame.heights[0];
+        final float[] mat4 = getScaleMatrix(imageWidth, imageHeight, frame.mirrored);
 
         /* clear background */
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
+        final int layout = frame.layout;
+        final GLShaderProgram shaderProgram = getShaderProgram(layout);
+        if (shaderProgram == null) {
+            mDroppedFrameCount.incrementAndGet();
+            releaseFrame(frame);
+            return;
+        }
+        final int[] uniformTextures = mUniformTextures[layout];
+        final int planesNumber = LAYOUT_BYTES_PER_PIXEL[layout].length;
+
         /* bind vertex array */
-        mShaderProgram.use();
-        GLES30.glBindVertexArray(mVAO[0]);
-
-        for (int i = 0; i < texturesNumber; i++) {
-            final int width = planeSizes[i].getWidth();
-            final int height = planeSizes[i].getHeight();
-            final ByteBuffer data = planes[i];
-            final int stride = planeStrides[i];
-
-            /* update texture */
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[i]);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
-            GLES30.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, stride);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, width, height, 0, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, data);
-
-            /* set uniforms */
-            mShaderProgram.setUniformTexture(mUniformTexture[i], i);
+        mState.useProgram(shaderProgram);
+        mState.bindVertexArray(mVAO[0]);
+
+        /* update textures, plane N ends up bound to texture unit N */
+        mUploader.upload(planesNumber, frame.planes, frame.strides, frame.widths, frame.heights, LAYOUT_BYTES_PER_PIXEL[layout]);
+        /* planes are copied by the uploader, the frame memory may be reused from now on */
+        releaseFrame(frame);
+
+        /* set uniforms */
+        for (int i = 0; i < planesNumber; i++) {
+            mState.uniform1i(shaderProgram, uniformTextures[i], i);
         }
-        GLES30.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
-        mShaderProgram.setUniformMat4(mUniformMatrix, mat4);
+        mState.uniformMatrix4(shaderProgram, mUniformMatrices[layout], mat4);
 
         /* draw */
         final int drawingSurfaceGeometryOffset = ((imageOrientation / 90) % 4) * vertLen;
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, drawingSurfaceGeometryOffset, vertLen);
-
-        /* clear */
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-        GLES30.glBindVertexArray(0);
-        mShaderProgram.unuse();
+        /* program, vertex array and textures stay bound, the context is used by this renderer only */
     }
 }
@@ -0,0 +1,149 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.opengl.GLES20;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of linked shader programs keyed by a hash of their sources.
+ * The cache owns the programs it returns, they are kept in memory until the owner reports a new
+ * EGL context through {@link #onContextCreated()} or until {@link #release()},
+ * linked binaries are persisted in a {@link ProgramBinaryStore} so a new context, e.g. after
+ * an activity restart, skips compilation. Stored binaries are invalidated when the GL driver
+ * or the system build changes. Must be used on the GL thread.
+ */
+public class GLProgramCache {
+    private static final String TAG = "GLProgramCache";
+
+    @Nullable
+    private final ProgramBinaryStore mStore;
+    private final HashMap<String, GLShaderProgram> mPrograms = new HashMap<>();
+    /* null until read from the current context */
+    @Nullable
+    private String mDriverFingerprint = null;
+
+    private final AtomicLong mMemoryHitCount = new AtomicLong();
+    private final AtomicLong mDiskHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mCompileTimeNanos = new AtomicLong();
+    private final AtomicLong mBinaryLoadTimeNanos = new AtomicLong();
+
+    /**
+     * @param store storage of program binaries, null keeps programs in memory only
+     */
+    public GLProgramCache(@Nullable ProgramBinaryStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Returns the program built from the given sources, compiling it only if neither
+     * the current context nor the store has it.
+     */
+    @NonNull
+    public GLShaderProgram obtain(@NonNull String vertexShaderSource, @NonNull String fragmentShaderSource) throws Exception {
+        if (mDriverFingerprint == null) {
+            mDriverFingerprint = readDriverFingerprint();
+        }
+        final String key = ProgramBinaryStore.keyOf(vertexShaderSource, fragmentShaderSource);
+        GLShaderProgram program = mPrograms.get(key);
+        if (program != null) {
+            mMemoryHitCount.incrementAndGet();
+            return program;
+        }
+
+        if (mStore != null) {
+            final long start = System.nanoTime();
+            final ProgramBinaryStore.Entry entry = mStore.load(key, mDriverFingerprint);
+            if (entry != null) {
+                program = GLShaderProgram.fromBinary(entry.format, entry.binary);
+                if (program == null) {
+                    /* the driver may reject a binary even if its version did not change */
+                    mStore.delete(key);
+                }
+            }
+            if (program != null) {
+                mBinaryLoadTimeNanos.addAndGet(System.nanoTime() - start);
+                mDiskHitCount.incrementAndGet();
+                mPrograms.put(key, program);
+                return program;
+            }
+        }
+
+        final long start = System.nanoTime();
+        program = new GLShaderProgram(vertexShaderSource, fragmentShaderSource);
+        final long compileTime = System.nanoTime() - start;
+        mCompileTimeNanos.addAndGet(compileTime);
+        mMissCount.incrementAndGet();
+        Log.i(TAG, "Program " + key.substring(0, 8) + " compiled in " + compileTime / 1000 + " us");
+        mPrograms.put(key, program);
+
+        if (mStore != null) {
+            final ProgramBinaryStore.Entry entry = program.getBinary();
+            if (entry != null) {
+                mStore.save(key, mDriverFingerprint, entry);
+            }
+        }
+        return program;
+    }
+
+    /**
+     * Deletes the programs of the current context, they must not be used afterwards.
+     * Stored binaries are kept.
+     */
+    public void release() {
+        for (GLShaderProgram program : mPrograms.values()) {
+            program.release();
+        }
+        mPrograms.clear();
+        mDriverFingerprint = null;
+    }
+
+    /**
+     * Forgets the programs of the previous context, they are gone together with it. Must be called
+     * from GLSurfaceView.Renderer#onSurfaceCreated(), which is the only reliable signal of a new context:
+     * EGLContext handles of a destroyed and a new context may compare equal.
+     */
+    public void onContextCreated() {
+        for (GLShaderProgram program : mPrograms.values()) {
+            program.onContextLost();
+        }
+        mPrograms.clear();
+        mDriverFingerprint = null;
+    }
+
+    public long getMemoryHitCount() {
+        return mMemoryHitCount.get();
+    }
+
+    public long getDiskHitCount() {
+        return mDiskHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /** Total time spent compiling and linking programs from sources */
+    public long getCompileTimeNanos() {
+        return mCompileTimeNanos.get();
+    }
+
+    /** Total time spent reading and loading stored binaries */
+    public long getBinaryLoadTimeNanos() {
+        return mBinaryLoadTimeNanos.get();
+    }
+
+    @NonNull
+    private static String readDriverFingerprint() {
+        return GLES20.glGetString(GLES20.GL_VENDOR) + '|'
+                + GLES20.glGetString(GLES20.GL_RENDERER) + '|'
+                + GLES20.glGetString(GLES20.GL_VERSION) + '|'
+                + Build.FINGERPRINT;
+    }
+}
@@ -0,0 +1,60 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Process wide count of live GL objects created by this app.
+ * Objects are counted when created and uncounted when deleted or lost together with their context,
+ * a count that keeps growing across activity restarts points to GPU memory that is never freed.
+ */
+public final class GLResourceRegistry {
+    private static final String TAG = "GLResourceRegistry";
+
+    public enum Kind {
+        TEXTURE,
+        BUFFER,
+        VERTEX_ARRAY,
+        PROGRAM
+    }
+
+    private static final AtomicIntegerArray sLiveCounts = new AtomicIntegerArray(Kind.values().length);
+
+    private GLResourceRegistry() {
+    }
+
+    public static void onCreated(@NonNull Kind kind) {
+        sLiveCounts.incrementAndGet(kind.ordinal());
+    }
+
+    /* Called when an object is deleted, or when its context is gone */
+    public static void onReleased(@NonNull Kind kind) {
+        if (sLiveCounts.decrementAndGet(kind.ordinal()) < 0) {
+            Log.e(TAG, kind + " released more times than created");
+        }
+    }
+
+    public static int getLiveCount(@NonNull Kind kind) {
+        return sLiveCounts.get(kind.ordinal());
+    }
+
+    public static int getTotalLiveCount() {
+        int total = 0;
+        for (int i = 0; i < sLiveCounts.length(); i++) {
+            total += sLiveCounts.get(i);
+        }
+        return total;
+    }
+
+    /** Logs the live objects of every kind */
+    public static void logLiveObjects() {
+        final StringBuilder report = new StringBuilder("Live GL objects:");
+        for (Kind kind : Kind.values()) {
+            report.append(' ').append(kind).append('=').append(getLiveCount(kind));
+        }
+        Log.i(TAG, report.toString());
+    }
+}
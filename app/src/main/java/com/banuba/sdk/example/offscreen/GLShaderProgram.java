@@ -1,11 +1,29 @@
 package com.banuba.sdk.example.offscreen;
 
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
 
 public class GLShaderProgram {
     private static final String TAG = "GLShaderProgram";
+    private static final int MAT4_SIZE = 16;
     private int mShaderProgram = 0;
 
+    /* uniform locations by name, looked up once */
+    private final HashMap<String, Integer> mUniformLocations = new HashMap<>();
+    /* last values set through GLStateCache, uniforms are few so lookups are linear */
+    private int[] mIntUniformLocations = new int[0];
+    private int[] mIntUniformValues = new int[0];
+    private int[] mMatUniformLocations = new int[0];
+    private float[][] mMatUniformValues = new float[0][];
+
     GLShaderProgram(String vertexShaderSource, String fragmentShaderSource) throws Exception {
         int vertexShaderObject = 0;
         int fragmentShaderObject = 0;
@@ -13,6 +31,7 @@ public class GLShaderProgram {
             vertexShaderObject = compileShaderObject(vertexShaderSource, GLES20.GL_VERTEX_SHADER);
             fragmentShaderObject = compileShaderObject(fragmentShaderSource, GLES20.GL_FRAGMENT_SHADER);
             mShaderProgram = linkShaderProgram(vertexShaderObject, fragmentShaderObject);
+            GLResourceRegistry.onCreated(GLResourceRegistry.Kind.PROGRAM);
         } catch (Exception e) {
             throw e;
         } finally {
@@ -25,6 +44,73 @@ public class GLShaderProgram {
         }
     }
 
+    private GLShaderProgram(int shaderProgram) {
+        mShaderProgram = shaderProgram;
+        GLResourceRegistry.onCreated(GLResourceRegistry.Kind.PROGRAM);
+    }
+
+    /**
+     * Creates a program from a binary previously obtained by {@link #getBinary()}.
+     *
+     * @return null if the driver rejected the binary, the program has to be built from sources then
+     */
+    @Nullable
+    static GLShaderProgram fromBinary(int format, @NonNull byte[] binary) {
+        final int shaderProgram = GLES20.glCreateProgram();
+        if (shaderProgram == 0) {
+            return null;
+        }
+        final ByteBuffer data = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+        data.put(binary).position(0);
+        GLES30.glProgramBinary(shaderProgram, format, data, binary.length);
+
+        final int[] status = new int[1];
+        GLES20.glGetProgramiv(shaderProgram, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == GLES20.GL_FALSE) {
+            GLES20.glDeleteProgram(shaderProgram);
+            return null;
+        }
+        return new GLShaderProgram(shaderProgram);
+    }
+
+    /**
+     * Linked binary of the program to be stored across runs.
+     *
+     * @return null if the driver does not provide one
+     */
+    @Nullable
+    ProgramBinaryStore.Entry getBinary() {
+        final int[] length = new int[1];
+        GLES20.glGetProgramiv(mShaderProgram, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return null;
+        }
+        final ByteBuffer data = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        final int[] format = new int[1];
+        /* errors of earlier calls would be taken for a failure of this one, every read clears one flag */
+        while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            /* clear */
+        }
+        GLES30.glGetProgramBinary(mShaderProgram, length[0], length, 0, format, 0, data);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) {
+            return null;
+        }
+        final byte[] binary = new byte[length[0]];
+        data.get(binary);
+        return new ProgramBinaryStore.Entry(format[0], binary);
+    }
+
+    /**
+     * Checks the program against the current GL state, a debugging aid,
+     * the result depends on the bound textures and is meaningful right before a draw call only.
+     */
+    public boolean validate() {
+        final int[] status = new int[1];
+        GLES20.glValidateProgram(mShaderProgram);
+        GLES20.glGetProgramiv(mShaderProgram, GLES20.GL_VALIDATE_STATUS, status, 0);
+        return status[0] != GLES20.GL_FALSE;
+    }
+
     public void use() {
         GLES20.glUseProgram(mShaderProgram);
     }
@@ -42,24 +128,86 @@ public class GLShaderProgram {
     }
 
     public int getUniformLocation(String uniformName) throws Exception {
+        final Integer cached = mUniformLocations.get(uniformName);
+        if (cached != null) {
+            return cached;
+        }
         final int uniform = GLES20.glGetUniformLocation(mShaderProgram, uniformName);
         if (uniform == -1) {
             doThrow("Unknown uniform name: " + uniformName);
         }
+        mUniformLocations.put(uniformName, uniform);
         return uniform;
     }
 
+    int getProgram() {
+        return mShaderProgram;
+    }
+
+    /* Remembers the value of an int uniform, returns false if it already has this value */
+    boolean updateUniform(int uniform, int value) {
+        for (int i = 0; i < mIntUniformLocations.length; i++) {
+            if (mIntUniformLocations[i] == uniform) {
+                if (mIntUniformValues[i] == value) {
+                    return false;
+                }
+                mIntUniformValues[i] = value;
+                return true;
+            }
+        }
+        final int index = mIntUniformLocations.length;
+        mIntUniformLocations = Arrays.copyOf(mIntUniformLocations, index + 1);
+        mIntUniformValues = Arrays.copyOf(mIntUniformValues, index + 1);
+        mIntUniformLocations[index] = uniform;
+        mIntUniformValues[index] = value;
+        return true;
+    }
+
+    /* Remembers the value of a mat4 uniform, returns false if it already has this value */
+    boolean updateUniform(int uniform, float[] mat4) {
+        for (int i = 0; i < mMatUniformLocations.length; i++) {
+            if (mMatUniformLocations[i] == uniform) {
+                final float[] current = mMatUniformValues[i];
+                if (Arrays.equals(current, mat4)) {
+                    return false;
+                }
+                System.arraycopy(mat4, 0, current, 0, MAT4_SIZE);
+                return true;
+            }
+        }
+        final int index = mMatUniformLocations.length;
+        mMatUniformLocations = Arrays.copyOf(mMatUniformLocations, index + 1);
+        mMatUniformValues = Arrays.copyOf(mMatUniformValues, index + 1);
+        mMatUniformLocations[index] = uniform;
+        mMatUniformValues[index] = Arrays.copyOf(mat4, MAT4_SIZE);
+        return true;
+    }
+
+    /* Sets the uniform unconditionally, GLStateCache skips unchanged values */
     public void setUniformTexture(int uniform, int texture) {
+        updateUniform(uniform, texture);
         GLES20.glUniform1i(uniform, texture);
     }
 
     public void setUniformMat4(int uniform, float[] mat4) {
+        updateUniform(uniform, mat4);
         GLES20.glUniformMatrix4fv(uniform, 1, false, mat4, 0);
     }
 
-    protected void finalize() {
+    /* Deletes the program, must be called on the GL thread with the context the program was created in */
+    public void release() {
         if (mShaderProgram != 0) {
             deleteShaderProgram(mShaderProgram);
+            mShaderProgram = 0;
+            GLResourceRegistry.onReleased(GLResourceRegistry.Kind.PROGRAM);
+        }
+    }
+
+    /* Forgets the program that was destroyed together with its context, makes no GL calls */
+    public void onContextLost() {
+        if (mShaderProgram != 0) {
+            mShaderProgram = 0;
+            GLResourceRegistry.onReleased(GLResourceRegistry.Kind.PROGRAM);
         }
     }
 
@@ -91,9 +239,8 @@ public class GLShaderProgram {
 
         GLES20.glAttachShader(shaderProgram, vertexShaderObject);
         GLES20.glAttachShader(shaderProgram, fragmentShaderObject);
-        GLES20.glLinkProgram(shaderProgram);
-
-        // Link the program
+        /* allow getBinary(), must be set before linking */
+        GLES30.glProgramParameteri(shaderProgram, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
         GLES20.glLinkProgram(shaderProgram);
 
         /* check link status */
@@ -106,13 +253,6 @@ public class GLShaderProgram {
             doThrow("Link shader error: " + errorMessage);
         }
 
-        /* validate program */
-        GLES20.glValidateProgram(shaderProgram);
-        GLES20.glGetProgramiv(shaderProgram, GLES20.GL_VALIDATE_STATUS, status, 0);
-        if(status[0] == GLES20.GL_FALSE) {
-            deleteShaderProgram(shaderProgram);
-            doThrow("Validate shader program error." );
-        }
         /* detach shader objects */
         GLES20.glDetachShader(shaderProgram, vertexShaderObject);
         GLES20.glDetachShader(shaderProgram, fragmentShaderObject);
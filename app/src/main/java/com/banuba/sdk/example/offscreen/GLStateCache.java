@@ -0,0 +1,216 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Tracks the GL state this app changes and skips calls that would set it to its current value.
+ * Every skipped call saves a JNI crossing and driver validation. Uniform values are tracked per
+ * {@link GLShaderProgram}, as they are program state. The tracked state is only valid as long as
+ * nobody else changes it, call {@link #invalidate()} when the context is (re)created.
+ * Must be used on the GL thread.
+ */
+public class GLStateCache {
+    private static final int UNKNOWN = -1;
+    private static final int TRACKED_TEXTURE_UNITS = 8;
+
+    private int mProgram = UNKNOWN;
+    private int mActiveTextureUnit = UNKNOWN;
+    private final int[] mTextures = new int[TRACKED_TEXTURE_UNITS];
+    private int mVertexArray = UNKNOWN;
+    private int mArrayBuffer = UNKNOWN;
+    private int mPixelUnpackBuffer = UNKNOWN;
+    private int mUnpackAlignment = UNKNOWN;
+    private int mUnpackRowLength = UNKNOWN;
+
+    /* counters of the frame in progress, GL thread only */
+    private int mFrameIssuedCount = 0;
+    private int mFrameElidedCount = 0;
+    /* published by beginFrame() */
+    private volatile int mLastFrameIssuedCount = 0;
+    private volatile int mLastFrameElidedCount = 0;
+    private volatile long mIssuedCount = 0;
+    private volatile long mElidedCount = 0;
+
+    public GLStateCache() {
+        invalidate();
+    }
+
+    /** Forgets the tracked state, the next call of every kind is issued */
+    public void invalidate() {
+        mProgram = UNKNOWN;
+        mActiveTextureUnit = UNKNOWN;
+        for (int i = 0; i < mTextures.length; i++) {
+            mTextures[i] = UNKNOWN;
+        }
+        mVertexArray = UNKNOWN;
+        mArrayBuffer = UNKNOWN;
+        mPixelUnpackBuffer = UNKNOWN;
+        mUnpackAlignment = UNKNOWN;
+        mUnpackRowLength = UNKNOWN;
+    }
+
+    /** Publishes counters of the previous frame and starts counting a new one */
+    public void beginFrame() {
+        mLastFrameIssuedCount = mFrameIssuedCount;
+        mLastFrameElidedCount = mFrameElidedCount;
+        mIssuedCount += mFrameIssuedCount;
+        mElidedCount += mFrameElidedCount;
+        mFrameIssuedCount = 0;
+        mFrameElidedCount = 0;
+    }
+
+    public void useProgram(int program) {
+        if (mProgram == program) {
+            mFrameElidedCount++;
+            return;
+        }
+        GLES20.glUseProgram(program);
+        mProgram = program;
+        mFrameIssuedCount++;
+    }
+
+    public void useProgram(@NonNull GLShaderProgram program) {
+        useProgram(program.getProgram());
+    }
+
+    public void activeTexture(int unit) {
+        if (mActiveTextureUnit == unit) {
+            mFrameElidedCount++;
+            return;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        mActiveTextureUnit = unit;
+        mFrameIssuedCount++;
+    }
+
+    /* Binds a 2D texture to the active unit */
+    public void bindTexture(int texture) {
+        final int unit = mActiveTextureUnit;
+        if (unit >= 0 && unit < mTextures.length && mTextures[unit] == texture) {
+            mFrameElidedCount++;
+            return;
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        if (unit >= 0 && unit < mTextures.length) {
+            mTextures[unit] = texture;
+        }
+        mFrameIssuedCount++;
+    }
+
+    /* Binds a 2D texture to the unit, activating the unit only if the texture is not bound yet */
+    public void bindTexture(int unit, int texture) {
+        if (unit < mTextures.length && mTextures[unit] == texture) {
+            mFrameElidedCount++;
+            return;
+        }
+        activeTexture(unit);
+        bindTexture(texture);
+    }
+
+    public void bindVertexArray(int vertexArray) {
+        if (mVertexArray == vertexArray) {
+            mFrameElidedCount++;
+            return;
+        }
+        GLES30.glBindVertexArray(vertexArray);
+        mVertexArray = vertexArray;
+        mFrameIssuedCount++;
+    }
+
+    /* Supports GL_ARRAY_BUFFER and GL_PIXEL_UNPACK_BUFFER, other targets are not tracked */
+    public void bindBuffer(int target, int buffer) {
+        if ((target == GLES20.GL_ARRAY_BUFFER && mArrayBuffer == buffer)
+                || (target == GLES30.GL_PIXEL_UNPACK_BUFFER && mPixelUnpackBuffer == buffer)) {
+            mFrameElidedCount++;
+            return;
+        }
+        GLES20.glBindBuffer(target, buffer);
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            mArrayBuffer = buffer;
+        } else if (target == GLES30.GL_PIXEL_UNPACK_BUFFER) {
+            mPixelUnpackBuffer = buffer;
+        }
+        mFrameIssuedCount++;
+    }
+
+    /* Supports GL_UNPACK_ALIGNMENT and GL_UNPACK_ROW_LENGTH, other parameters are not tracked */
+    public void pixelStorei(int name, int value) {
+        if ((name == GLES20.GL_UNPACK_ALIGNMENT && mUnpackAlignment == value)
+                || (name == GLES30.GL_UNPACK_ROW_LENGTH && mUnpackRowLength == value)) {
+            mFrameElidedCount++;
+            return;
+        }
+        GLES20.glPixelStorei(name, value);
+        if (name == GLES20.GL_UNPACK_ALIGNMENT) {
+            mUnpackAlignment = value;
+        } else if (name == GLES30.GL_UNPACK_ROW_LENGTH) {
+            mUnpackRowLength = value;
+        }
+        mFrameIssuedCount++;
+    }
+
+    /* Sets an int uniform of the program, which must be in use */
+    public void uniform1i(@NonNull GLShaderProgram program, int location, int value) {
+        if (!program.updateUniform(location, value)) {
+            mFrameElidedCount++;
+            return;
+        }
+        GLES20.glUniform1i(location, value);
+        mFrameIssuedCount++;
+    }
+
+    /* Sets a mat4 uniform of the program, which must be in use */
+    public void uniformMatrix4(@NonNull GLShaderProgram program, int location, @NonNull float[] value) {
+        if (!program.updateUniform(location, value)) {
+            mFrameElidedCount++;
+            return;
+        }
+        GLES20.glUniformMatrix4fv(location, 1, false, value, 0);
+        mFrameIssuedCount++;
+    }
+
+    /* Deleted objects are unbound by GL, keep the tracked state in line */
+    public void onTextureDeleted(int texture) {
+        for (int i = 0; i < mTextures.length; i++) {
+            if (mTextures[i] == texture) {
+                mTextures[i] = 0;
+            }
+        }
+    }
+
+    public void onBufferDeleted(int buffer) {
+        if (mArrayBuffer == buffer) {
+            mArrayBuffer = 0;
+        }
+        if (mPixelUnpackBuffer == buffer) {
+            mPixelUnpackBuffer = 0;
+        }
+    }
+
+    public void onVertexArrayDeleted(int vertexArray) {
+        if (mVertexArray == vertexArray) {
+            mVertexArray = 0;
+        }
+    }
+
+    /** State changing calls issued during the last completed frame */
+    public int getLastFrameIssuedCount() {
+        return mLastFrameIssuedCount;
+    }
+
+    /** State changing calls skipped during the last completed frame */
+    public int getLastFrameElidedCount() {
+        return mLastFrameElidedCount;
+    }
+
+    public long getIssuedCount() {
+        return mIssuedCount;
+    }
+
+    public long getElidedCount() {
+        return mElidedCount;
+    }
+}
@@ -0,0 +1,53 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * GL calls used by {@link TextureUploader}. Pixels are 8 bit per channel,
+ * 1 byte per pixel planes are single channel textures, 2 bytes per pixel planes are two channel ones.
+ */
+public interface GLUploadBackend {
+    int createTexture();
+
+    void deleteTexture(int texture);
+
+    /* Makes the unit active and binds the texture to it */
+    void bindTexture(int unit, int texture);
+
+    /* Allocates immutable storage for the bound texture */
+    void allocateTextureStorage(int width, int height, int bytesPerPixel);
+
+    void setUnpackRowLength(int pixels);
+
+    /* Updates the bound texture from client memory */
+    void texSubImage(int width, int height, int bytesPerPixel, @NonNull ByteBuffer data);
+
+    /* Updates the bound texture from the bound pixel unpack buffer */
+    void texSubImageFromUnpackBuffer(int width, int height, int bytesPerPixel, int offset);
+
+    int createBuffer();
+
+    void deleteBuffer(int buffer);
+
+    /* Binds a pixel unpack buffer, 0 restores client memory uploads */
+    void bindUnpackBuffer(int buffer);
+
+    /* Allocates storage of the bound unpack buffer, its old contents are dropped */
+    void allocateUnpackBuffer(int size);
+
+    /**
+     * Copies the remaining bytes of data into the bound unpack buffer at offset. The caller makes sure
+     * with a fence that no upload still reads from it, so the driver neither waits nor copies aside.
+     */
+    void writeUnpackBuffer(int offset, @NonNull ByteBuffer data);
+
+    /* Inserts a fence after the commands issued so far, @return the fence, 0 if it could not be created */
+    long insertFence();
+
+    /* Blocks until the commands before the fence are complete and deletes the fence */
+    void waitFence(long fence);
+
+    void deleteFence(long fence);
+}
@@ -1,18 +1,24 @@
 package com.banuba.sdk.example.offscreen
 
 import android.Manifest
+import android.app.ActivityManager
 import android.app.Application
 import android.content.pm.PackageManager
+import android.media.Image
 import android.opengl.GLSurfaceView
+import android.os.Build
 import android.os.Bundle
 import android.os.Handler
 import android.os.Looper
+import android.os.PowerManager
+import android.os.SystemClock
 import android.util.Log
 import android.util.Size
 import android.widget.Button
 import android.widget.Toast
 import androidx.appcompat.app.AppCompatActivity
 import androidx.core.content.ContextCompat
+import com.banuba.sdk.effect_player.CameraOrientation
 import com.banuba.sdk.effect_player.ConsistencyMode
 import com.banuba.sdk.effect_player.EffectPlayer
 import com.banuba.sdk.effect_player.EffectPlayerConfiguration
@@ -21,9 +27,19 @@ import com.banuba.sdk.example.R
 import com.banuba.sdk.example.SampleApp
 import com.banuba.sdk.example.VideoEditorLaunchContract
 import com.banuba.sdk.manager.BanubaSdkManager
+import com.banuba.sdk.offscreen.ImageOrientation
 import com.banuba.sdk.offscreen.ImageProcessResult
 import com.banuba.sdk.offscreen.OffscreenEffectPlayer
 import com.banuba.sdk.offscreen.OffscreenSimpleConfig
+import com.banuba.sdk.types.FullImageData
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.asExecutor
+import kotlinx.coroutines.launch
 
 class OffscreenActivity : AppCompatActivity() {
 
@@ -34,39 +50,175 @@ class OffscreenActivity : AppCompatActivity() {
 
         private const val SAMPLE_EFFECT_NAME = "AsaiLines"
 
-        private val CAMERA_CAPTURE_SIZE = Size(1280, 720)
+        // Capture size, frame rate and processing size from the lowest quality, the view upscales
+        // processed frames. QualityController steps between levels with the load of the device
+        private val QUALITY_LEVELS = listOf(
+            QualityController.Level("low", 640, 360, 15, 15, 480, 270),
+            QualityController.Level("medium", 1280, 720, 24, 24, 640, 360),
+            QualityController.Level("high", 1280, 720, 30, 30, 1280, 720)
+        )
+
+        // Camera frames handed to the effect player before it reports one processed
+        private const val MAX_FRAMES_IN_FLIGHT = 2
+
+        // Frames the effect player never reports are written off after this time
+        private const val LOST_FRAME_TIMEOUT_MS = 1000L
+
+        // Downscaled frames come from one slab sized for this many frames of the largest processing size
+        private const val ARENA_FRAMES = MAX_FRAMES_IN_FLIGHT + 2
+
+        // Number of frames of the size the effect player requests kept ready in BuffersQueue
+        private const val PREWARM_BUFFERS_COUNT = 3
+
+        // Set to PARANOID to find frames that are never given back to BuffersQueue
+        private val BUFFERS_LEAK_DETECTION = BufferLeakDetector.Level.DISABLED
+
+        // Interval of the GL state call counters in the log while the renderer draws
+        private const val GL_STATS_INTERVAL_MS = 5000L
+
+        // Directory with linked shader programs, code cache is cleared by the system on app update
+        private const val PROGRAM_BINARIES_DIR = "gl_programs"
 
         private val REQUIRED_PERMISSIONS = arrayOf(
             Manifest.permission.CAMERA,
         )
     }
 
-    private val buffersQueue = BuffersQueue()
-    private var glI420Renderer: GLI420Renderer = GLI420Renderer()
+    // The effect player picks the size of its frames, buffers are pre-warmed once it asks for one
+    private val buffersQueue = BuffersQueue().apply {
+        setPrewarmOnMiss(Dispatchers.IO.asExecutor(), PREWARM_BUFFERS_COUNT)
+    }
+    private val frameArena = FrameArena(
+        FrameArena.budgetFor(
+            QUALITY_LEVELS.maxOf { FrameArena.alignedI420Size(it.processingWidth, it.processingHeight) },
+            ARENA_FRAMES
+        )
+    )
+    private lateinit var programCache: GLProgramCache
+    private lateinit var glI420Renderer: GLI420Renderer
+
+    private val stripeExecutor = StripeExecutor(StripeExecutor.defaultWorkerCount(), "Downscale")
+    private var downscaleStage: DownscaleStage? = null
+
+    private var qualityController: QualityController? = null
+    private var thermalStatusListener: PowerManager.OnThermalStatusChangedListener? = null
 
     private var camera: Camera2Simple? = null
+    // Camera images not closed yet, a resized camera session waits for them before closing its reader
+    private val heldImages = AtomicInteger()
+    @Volatile
     private var offscreenEffectPlayer: OffscreenEffectPlayer? = null
+    // Arena leases of frames handed to the effect player and their generations. A released player
+    // never reports its frames, their leases are given back to the arena when it is released
+    private val playerLeases = HashMap<FrameArena.Lease, Int>()
+    // Effect to load again into an effect player recreated for another processing size, main thread only
+    private var loadedEffectUri: String? = null
     private var glSurfaceView: GLSurfaceView? = null
+    @Volatile
     private var loadEffect = false
+    private val mainHandler = Handler(Looper.getMainLooper())
+    // Camera images are only handed to the renderer while it draws, main thread only
+    private var isRendering = false
 
     private val effectHelper = BanubaEffectHelper()
 
+    // Reports how many GL state calls the renderer issued and skipped, main thread only
+    private val glStatsReporter = object : Runnable {
+        override fun run() {
+            val state = glI420Renderer.glStateCache
+            Log.i(
+                TAG,
+                "GL state calls in the last frame: issued ${state.lastFrameIssuedCount}, " +
+                    "elided ${state.lastFrameElidedCount}; in total: issued ${state.issuedCount}, " +
+                    "elided ${state.elidedCount}"
+            )
+            mainHandler.postDelayed(this, GL_STATS_INTERVAL_MS)
+        }
+    }
+
     private val videoEditorLauncher = registerForActivityResult<Application, String?>(
         VideoEditorLaunchContract()
     ) {}
 
-    private val frameReadyCallback =
+    private class CameraFrame(val image: Image, val orientation: ImageOrientation)
+
+    // Newer camera frames replace the waiting one while the effect player is busy
+    private val frameThrottle = FrameThrottle<CameraFrame>(
+        MAX_FRAMES_IN_FLIGHT,
+        FrameThrottle.Policy.DROP_OLDEST,
+        LOST_FRAME_TIMEOUT_MS,
+        SystemClock::uptimeMillis,
+        { frame -> deliverFrame(frame) },
+        { frame -> closeImage(frame.image) }
+    )
+
+    private val cameraFrameCallback =
         Camera2Simple.FrameReadyCallback { image, imageOrientation ->
-            offscreenEffectPlayer?.processImage(
-                image,
-                imageOrientation
+            heldImages.incrementAndGet()
+            frameThrottle.offer(CameraFrame(image, imageOrientation), image.timestamp)
+        }
+
+    // The effect player holds the arena lease of a frame until it is done with it,
+    // frames that did not fit into the arena have no lease and are left to the garbage collector
+    private val downscaledFrameListener =
+        DownscaleStage.FrameListener { frame, width, height, yStride, uvStride, imageOrientation, timestamp ->
+            val lease = frameArena.leaseOf(frame)
+            val generation = lease?.generation() ?: 0
+            val player = offscreenEffectPlayer
+            if (player == null) {
+                lease?.release(generation)
+                postFrameProcessed(timestamp)
+                return@FrameListener
+            }
+            lease?.let { synchronized(playerLeases) { playerLeases[it] = generation } }
+            player.processFullImageData(
+                toFullImageData(frame, width, height, yStride, uvStride, imageOrientation),
+                { lease?.let { releasePlayerLease(it, generation) } },
+                timestamp
             )
+            if (player !== offscreenEffectPlayer) {
+                // the player was released meanwhile, possibly after its leases were given back
+                lease?.let { releasePlayerLease(it, generation) }
+            }
         }
 
+    // Gives the lease back unless the frame was already reported or its player released
+    private fun releasePlayerLease(lease: FrameArena.Lease, generation: Int) {
+        val tracked = synchronized(playerLeases) {
+            (playerLeases[lease] == generation).also { if (it) playerLeases.remove(lease) }
+        }
+        if (tracked) {
+            lease.release(generation)
+        }
+    }
+
+    // Called after the effect player is released, it will not report the frames it holds
+    private fun releasePlayerLeases() {
+        val leases = synchronized(playerLeases) {
+            HashMap(playerLeases).also { playerLeases.clear() }
+        }
+        if (leases.isNotEmpty()) {
+            Log.d(TAG, "Give back ${leases.size} frames held by the released effect player")
+        }
+        leases.forEach { (lease, generation) -> lease.release(generation) }
+    }
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_offscreen)
-
+        applicationContext.registerComponentCallbacks(buffersQueue)
+        buffersQueue.setLeakDetectionLevel(BUFFERS_LEAK_DETECTION)
+
+        programCache = GLProgramCache(ProgramBinaryStore(File(codeCacheDir, PROGRAM_BINARIES_DIR)))
+        glI420Renderer = GLI420Renderer(0, programCache)
+        glI420Renderer.setFrameReleaseListener { frame -> buffersQueue.retainBuffer(frame) }
+        // Camera images with a chroma order the renderer can not tell are de-interleaved into pooled frames
+        glI420Renderer.setRepacker(YuvRepacker(buffersQueue, stripeExecutor))
+        glI420Renderer.setImageReleaseListener { image ->
+            val timestamp = image.timestamp
+            closeImage(image)
+            postFrameProcessed(timestamp)
+        }
         glSurfaceView = findViewById<GLSurfaceView>(R.id.surfaceView)?.apply {
             setEGLContextClientVersion(3)
             setRenderer(glI420Renderer)
@@ -85,6 +237,7 @@ class OffscreenActivity : AppCompatActivity() {
     override fun onStart() {
         super.onStart()
         Log.d(TAG, "onStart")
+        registerThermalStatusListener()
         if (checkAllPermissionsGranted()) {
             handleGrantedPermissions()
         } else {
@@ -93,9 +246,30 @@ class OffscreenActivity : AppCompatActivity() {
         }
     }
 
+    override fun onResume() {
+        super.onResume()
+        glSurfaceView?.onResume()
+        isRendering = true
+        mainHandler.postDelayed(glStatsReporter, GL_STATS_INTERVAL_MS)
+    }
+
+    override fun onPause() {
+        super.onPause()
+        isRendering = false
+        mainHandler.removeCallbacks(glStatsReporter)
+        // GL objects are deleted on the GL thread before GLSurfaceView destroys the context
+        glSurfaceView?.queueEvent {
+            glI420Renderer.release()
+            programCache.release()
+            GLResourceRegistry.logLiveObjects()
+        }
+        glSurfaceView?.onPause()
+    }
+
     override fun onStop() {
         super.onStop()
         Log.d(TAG, "onStop")
+        unregisterThermalStatusListener()
         stopCameraPreview()
     }
 
@@ -103,6 +277,8 @@ class OffscreenActivity : AppCompatActivity() {
         super.onDestroy()
         Log.d(TAG, "onDestroy")
         releaseOffscreen()
+        stripeExecutor.close()
+        applicationContext.unregisterComponentCallbacks(buffersQueue)
     }
 
     override fun onRequestPermissionsResult(
@@ -128,9 +304,28 @@ class OffscreenActivity : AppCompatActivity() {
     private fun toggleEffect() {
         loadEffect = !loadEffect
         if (loadEffect) {
-            val effect = effectHelper.prepareEffect(assets, SAMPLE_EFFECT_NAME)
-            offscreenEffectPlayer?.loadEffect(effect.uri.toString())
+            // Extraction reads and writes files, the effect is loaded on the main thread once it is done
+            CoroutineScope(Dispatchers.IO).launch {
+                val effect = try {
+                    effectHelper.prepareEffect(applicationContext, SAMPLE_EFFECT_NAME)
+                } catch (e: IOException) {
+                    Log.e(TAG, "Cannot load effect $SAMPLE_EFFECT_NAME", e)
+                    mainHandler.post {
+                        Toast.makeText(applicationContext, "Cannot load effect", Toast.LENGTH_LONG).show()
+                        loadEffect = false
+                    }
+                    return@launch
+                }
+                mainHandler.post {
+                    // The effect may have been turned off while it was extracted
+                    if (loadEffect) {
+                        loadedEffectUri = effect.uri.toString()
+                        offscreenEffectPlayer?.loadEffect(effect.uri.toString())
+                    }
+                }
+            }
         } else {
+            loadedEffectUri = null
             offscreenEffectPlayer?.unloadEffect()
         }
     }
@@ -144,40 +339,239 @@ class OffscreenActivity : AppCompatActivity() {
 
     private fun prepareOffscreen() {
         Log.d(TAG, "Prepare Offscreen")
+        val initialLevel = chooseInitialQualityLevel()
+        val level = QUALITY_LEVELS[initialLevel]
+        val processingSize = Size(level.processingWidth, level.processingHeight)
+        qualityController = QualityController(
+            QUALITY_LEVELS,
+            initialLevel,
+            SystemClock::uptimeMillis
+        ) { index, newLevel, reason ->
+            Log.i(TAG, "Quality level $index ($newLevel): $reason")
+            applyQualityLevel(newLevel)
+        }
+
+        val stage = DownscaleStage(
+            frameArena,
+            YuvDownscaler(stripeExecutor, YuvDownscaler.Filter.BOX),
+            YuvRepacker(frameArena, stripeExecutor),
+            downscaledFrameListener
+        )
+        stage.setProcessingSize(processingSize)
+        downscaleStage = stage
+
+        // acquireLatestImage() needs two images on top of the ones held by the throttle,
+        // frames are downscaled on the image thread without delaying camera callbacks
         camera = Camera2Simple(
             applicationContext,
-            frameReadyCallback,
-            CAMERA_CAPTURE_SIZE
-        )
+            cameraFrameCallback,
+            Size(level.captureWidth, level.captureHeight),
+            frameThrottle.maxHeldFrames + 2,
+            true
+        ).apply {
+            setTargetFpsRange(level.minFps, level.maxFps)
+            setHeldImagesCounter { heldImages.get() }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            val powerManager = getSystemService(POWER_SERVICE) as PowerManager
+            qualityController?.onThermalStatus(powerManager.currentThermalStatus)
+        }
 
         BanubaSdkManager.deinitialize()
         BanubaSdkManager.initialize(applicationContext, SampleApp.LICENSE_TOKEN)
 
+        offscreenEffectPlayer = createEffectPlayer(processingSize)
+    }
+
+    private fun createEffectPlayer(processingSize: Size): OffscreenEffectPlayer? {
         val effectPlayerConfig = EffectPlayerConfiguration.create(
-            CAMERA_CAPTURE_SIZE.width,
-            CAMERA_CAPTURE_SIZE.height
+            processingSize.width,
+            processingSize.height
         )
 
-        offscreenEffectPlayer = EffectPlayer.create(effectPlayerConfig)?.let { player ->
+        return EffectPlayer.create(effectPlayerConfig)?.let { player ->
             val oepConfig = OffscreenSimpleConfig.newBuilder(buffersQueue).build()
 
             player.setRenderConsistencyMode(ConsistencyMode.ASYNCHRONOUS_CONSISTENT)
             OffscreenEffectPlayer(
                 this@OffscreenActivity.applicationContext,
                 player,
-                CAMERA_CAPTURE_SIZE,
+                processingSize,
                 oepConfig
             )
+        }?.apply {
+            setImageProcessListener({ result ->
+                handleProcessedImageResult(result)
+            }, Handler(Looper.getMainLooper()))
+        }
+    }
+
+    // Low RAM devices never go above the medium level
+    private fun chooseInitialQualityLevel(): Int {
+        val activityManager = getSystemService(ACTIVITY_SERVICE) as ActivityManager
+        return if (activityManager.isLowRamDevice) QUALITY_LEVELS.size - 2 else QUALITY_LEVELS.size - 1
+    }
+
+    // Called on the image or main thread, the effect player is resized on the main thread
+    private fun applyQualityLevel(level: QualityController.Level) {
+        val processingSize = Size(level.processingWidth, level.processingHeight)
+        mainHandler.post { resizeEffectPlayer(processingSize) }
+        camera?.apply {
+            setTargetFpsRange(level.minFps, level.maxFps)
+            setPreferredPreviewSize(Size(level.captureWidth, level.captureHeight))
+        }
+    }
+
+    // The effect player renders at the size it was created with, so it is recreated for a new
+    // processing size before downscaled frames change size. Frames in flight are never reported
+    // by the released player, their arena leases are given back, the throttle forgets them and
+    // closes the pending camera image
+    private fun resizeEffectPlayer(processingSize: Size) {
+        val stage = downscaleStage ?: return
+        if (stage.processingSize == processingSize) {
+            return
         }
+        Log.i(TAG, "Recreate the effect player for ${processingSize.width}x${processingSize.height}")
+        val oldPlayer = offscreenEffectPlayer
+        // frames handed over from now on see the player gone and give their leases back themselves
+        offscreenEffectPlayer = null
+        oldPlayer?.release()
+        releasePlayerLeases()
+        val player = createEffectPlayer(processingSize)
+        loadedEffectUri?.let { player?.loadEffect(it) }
+        offscreenEffectPlayer = player
+        frameThrottle.reset()
+        stage.setProcessingSize(processingSize)
+    }
 
-        offscreenEffectPlayer?.setImageProcessListener({ result ->
-            handleProcessedImageResult(result)
-        }, Handler(Looper.getMainLooper()))
+    // Without an effect camera images go straight to the renderer, which converts NV21/NV12 on the GPU.
+    // Called on the image thread, the renderer takes images on the main thread as it does processed frames
+    private fun deliverFrame(frame: CameraFrame) {
+        if (!loadEffect) {
+            mainHandler.post {
+                if (!isRendering) {
+                    // the renderer would keep the image past the camera release
+                    val timestamp = frame.image.timestamp
+                    closeImage(frame.image)
+                    postFrameProcessed(timestamp)
+                    return@post
+                }
+                glI420Renderer.drawImage(
+                    frame.image,
+                    frame.orientation.imageOrientationAngle,
+                    frame.orientation.isRequireMirroring
+                )
+                glSurfaceView?.requestRender()
+            }
+            return
+        }
+        val stage = downscaleStage
+        if (stage == null) {
+            val timestamp = frame.image.timestamp
+            closeImage(frame.image)
+            postFrameProcessed(timestamp)
+            return
+        }
+        try {
+            stage.onFrameReady(frame.image, frame.orientation)
+        } finally {
+            // the stage has closed the image, its pixels were copied
+            heldImages.decrementAndGet()
+        }
+    }
+
+    private fun closeImage(image: Image) {
+        image.close()
+        heldImages.decrementAndGet()
+    }
+
+    // Reports a frame done by the effect player or the renderer, the throttle runs on the image thread.
+    // Frames are known by the camera timestamp, which the effect player hands back with the result
+    private fun postFrameProcessed(timestamp: Long) {
+        val imageHandler = camera?.imageHandler
+        if (imageHandler != null) {
+            imageHandler.post { onFrameProcessed(timestamp) }
+        } else {
+            onFrameProcessed(timestamp)
+        }
+    }
+
+    private fun onFrameProcessed(timestamp: Long) {
+        val latency = frameThrottle.onFrameProcessed(timestamp)
+        if (latency >= 0) {
+            qualityController?.onFrameLatency(latency)
+        }
+    }
+
+    private fun registerThermalStatusListener() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || thermalStatusListener != null) {
+            return
+        }
+        val powerManager = getSystemService(POWER_SERVICE) as PowerManager
+        val listener = PowerManager.OnThermalStatusChangedListener { status ->
+            qualityController?.onThermalStatus(status)
+        }
+        powerManager.addThermalStatusListener(ContextCompat.getMainExecutor(this), listener)
+        thermalStatusListener = listener
+    }
+
+    private fun unregisterThermalStatusListener() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return
+        }
+        thermalStatusListener?.let {
+            (getSystemService(POWER_SERVICE) as PowerManager).removeThermalStatusListener(it)
+        }
+        thermalStatusListener = null
+    }
+
+    // Wraps an I420 frame of DownscaleStage for the effect player
+    private fun toFullImageData(
+        frame: ByteBuffer,
+        width: Int,
+        height: Int,
+        yStride: Int,
+        uvStride: Int,
+        imageOrientation: ImageOrientation
+    ): FullImageData {
+        val lumaSize = yStride * height
+        val chromaSize = uvStride * ((height + 1) / 2)
+        fun plane(offset: Int, size: Int): ByteBuffer = frame.duplicate().apply {
+            limit(offset + size)
+            position(offset)
+        }.slice()
+
+        return FullImageData(
+            Size(width, height),
+            plane(0, lumaSize),
+            plane(lumaSize, chromaSize),
+            plane(lumaSize + chromaSize, chromaSize),
+            yStride, uvStride, uvStride,
+            1, 1, 1,
+            FullImageData.Orientation(
+                toCameraOrientation(imageOrientation.imageOrientationAngle),
+                imageOrientation.isRequireMirroring,
+                0
+            )
+        )
+    }
+
+    private fun toCameraOrientation(angle: Int): CameraOrientation = when (angle) {
+        0 -> CameraOrientation.DEG_0
+        90 -> CameraOrientation.DEG_90
+        180 -> CameraOrientation.DEG_180
+        270 -> CameraOrientation.DEG_270
+        else -> throw IllegalArgumentException("Unsupported image orientation angle: $angle")
     }
 
     private fun releaseOffscreen() {
         Log.d(TAG, "Release Offscreen")
+        val player = offscreenEffectPlayer
         offscreenEffectPlayer = null
+        player?.release()
+        releasePlayerLeases()
+        downscaleStage = null
+        qualityController = null
         BanubaSdkManager.deinitialize()
     }
 
@@ -188,8 +582,14 @@ class OffscreenActivity : AppCompatActivity() {
 
     private fun stopCameraPreview() {
         Log.d(TAG, "Stop Camera")
-        camera?.closeCamera()
+        camera?.release()
         camera = null
+        frameThrottle.reset()
+        Log.d(
+            TAG,
+            "Frames delivered: ${frameThrottle.deliveredCount}, " +
+                "dropped: ${frameThrottle.droppedCount}, lost: ${frameThrottle.lostCount}"
+        )
     }
 
     private fun handleGrantedPermissions() {
@@ -203,14 +603,19 @@ class OffscreenActivity : AppCompatActivity() {
     }
 
     private fun handleProcessedImageResult(result: ImageProcessResult) {
-        buffersQueue.retainBuffer(result.buffer)
+        // A pending frame is delivered by this call, keep its processing off the main thread
+        postFrameProcessed(result.timestamp)
+
+        // The buffer goes back to BuffersQueue once the renderer has uploaded it
+        buffersQueue.leakDetector.touch(result.buffer, GLI420Renderer::class.java.simpleName)
 
         glI420Renderer.drawI420Image(
             result.getPlaneBuffer(0), result.getBytesPerRowOfPlane(0),
             result.getPlaneBuffer(1), result.getBytesPerRowOfPlane(1),
             result.getPlaneBuffer(2), result.getBytesPerRowOfPlane(2),
             result.width, result.height,
-            result.orientation.imageOrientationAngle
+            result.orientation.imageOrientationAngle,
+            result.buffer
         )
         glSurfaceView?.requestRender()
     }
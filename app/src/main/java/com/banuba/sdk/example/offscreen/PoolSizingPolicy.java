@@ -0,0 +1,130 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.content.ComponentCallbacks2;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how many buffers per size class {@link BuffersQueue} keeps.
+ * Memory pressure shrinks the target to the low watermark (or to zero in background),
+ * after a quiet period the target follows the peak number of buffers in flight
+ * observed during the last window, bounded by the watermarks.
+ * Allocations report to the policy without taking a lock: the peak and the window are atomics
+ * and the caller that ends a window computes the next target.
+ * Time and memory signals are passed in, so the policy has no Android runtime dependencies.
+ */
+public class PoolSizingPolicy {
+    public interface Clock {
+        long uptimeMillis();
+    }
+
+    private final int mLowWatermark;
+    private final int mHighWatermark;
+    private final long mWindowMillis;
+    @NonNull
+    private final Clock mClock;
+
+    private volatile int mTarget;
+    private final AtomicInteger mPeakInFlight = new AtomicInteger();
+    private final AtomicLong mWindowStart;
+    private volatile long mLastPressureTime;
+
+    /**
+     * @param lowWatermark buffers per size class kept under memory pressure
+     * @param highWatermark maximum buffers per size class
+     * @param windowMillis length of the in-flight observation window, also the quiet period after pressure
+     */
+    public PoolSizingPolicy(int lowWatermark, int highWatermark, long windowMillis, @NonNull Clock clock) {
+        if (lowWatermark < 0 || highWatermark < Math.max(1, lowWatermark)) {
+            throw new IllegalArgumentException("Invalid watermarks: " + lowWatermark + ", " + highWatermark);
+        }
+        mLowWatermark = lowWatermark;
+        mHighWatermark = highWatermark;
+        mWindowMillis = windowMillis;
+        mClock = clock;
+        mTarget = highWatermark;
+        final long now = clock.uptimeMillis();
+        mWindowStart = new AtomicLong(now);
+        mLastPressureTime = now - windowMillis;
+    }
+
+    public int getLowWatermark() {
+        return mLowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return mHighWatermark;
+    }
+
+    public int getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * Handles a {@link ComponentCallbacks2} trim level.
+     *
+     * @return the new number of buffers per size class to keep
+     */
+    public int onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mTarget = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mTarget = Math.min(mTarget, mLowWatermark);
+        } else {
+            return mTarget;
+        }
+        final long now = mClock.uptimeMillis();
+        mLastPressureTime = now;
+        mPeakInFlight.set(0);
+        mWindowStart.set(now);
+        return mTarget;
+    }
+
+    /**
+     * Records the current number of buffers handed out and not yet returned.
+     * Lock free, called for every allocation.
+     *
+     * @return the number of buffers per size class to keep
+     */
+    public int onInFlight(int inFlight) {
+        int peak = mPeakInFlight.get();
+        while (inFlight > peak && !mPeakInFlight.compareAndSet(peak, inFlight)) {
+            peak = mPeakInFlight.get();
+        }
+        peak = Math.max(peak, inFlight);
+
+        final long now = mClock.uptimeMillis();
+        final boolean quiet = now - mLastPressureTime >= mWindowMillis;
+        final long windowStart = mWindowStart.get();
+        if (now - windowStart < mWindowMillis) {
+            /* Grow right away when the pipeline needs more buffers than kept, unless under pressure */
+            if (quiet) {
+                raiseTarget(clamp(peak));
+            }
+            return mTarget;
+        }
+
+        /* End of the window: the caller that closes it follows its peak in both directions */
+        if (mWindowStart.compareAndSet(windowStart, now)) {
+            final int windowPeak = mPeakInFlight.getAndSet(inFlight);
+            if (quiet) {
+                mTarget = clamp(Math.max(windowPeak, inFlight));
+            }
+        }
+        return mTarget;
+    }
+
+    private void raiseTarget(int value) {
+        /* a concurrent trim may lower the target in between, the next allocation raises it again if still needed */
+        if (value > mTarget) {
+            mTarget = value;
+        }
+    }
+
+    private int clamp(int value) {
+        return Math.max(mLowWatermark, Math.min(mHighWatermark, value));
+    }
+}
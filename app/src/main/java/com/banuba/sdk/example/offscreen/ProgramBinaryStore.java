@@ -0,0 +1,136 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk storage of linked shader program binaries.
+ * Every entry is keyed by a hash of the shader sources and tagged with the driver
+ * fingerprint it was produced by, an entry from another driver is deleted on load.
+ * Has no GL dependencies.
+ */
+public class ProgramBinaryStore {
+    private static final int MAGIC = 0x42505247; /* "BPRG" */
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".bin";
+
+    public static final class Entry {
+        public final int format;
+        @NonNull
+        public final byte[] binary;
+
+        public Entry(int format, @NonNull byte[] binary) {
+            this.format = format;
+            this.binary = binary;
+        }
+    }
+
+    @NonNull
+    private final File mDirectory;
+
+    public ProgramBinaryStore(@NonNull File directory) {
+        mDirectory = directory;
+    }
+
+    /** Key of a program, a SHA-256 of its sources */
+    @NonNull
+    public static String keyOf(@NonNull String vertexShaderSource, @NonNull String fragmentShaderSource) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(vertexShaderSource.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(fragmentShaderSource.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return stored binary or null if there is none for the key or it was produced by another driver
+     */
+    @Nullable
+    public Entry load(@NonNull String key, @NonNull String driverFingerprint) {
+        final File file = fileOf(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION
+                    || !driverFingerprint.equals(input.readUTF())) {
+                delete(key);
+                return null;
+            }
+            final int format = input.readInt();
+            final int length = input.readInt();
+            /* a corrupted length must not make us allocate more than the file holds */
+            if (length < 0 || length > file.length()) {
+                delete(key);
+                return null;
+            }
+            final byte[] binary = new byte[length];
+            input.readFully(binary);
+            return new Entry(format, binary);
+        } catch (IOException | RuntimeException e) {
+            delete(key);
+            return null;
+        }
+    }
+
+    /** Writes the binary atomically, returns false if it could not be stored */
+    public boolean save(@NonNull String key, @NonNull String driverFingerprint, @NonNull Entry entry) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return false;
+        }
+        final File file = fileOf(key);
+        final File temp = new File(mDirectory, key + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temp))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(driverFingerprint);
+            output.writeInt(entry.format);
+            output.writeInt(entry.binary.length);
+            output.write(entry.binary);
+        } catch (IOException e) {
+            temp.delete();
+            return false;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    public void delete(@NonNull String key) {
+        fileOf(key).delete();
+    }
+
+    /** Removes all stored binaries */
+    public void clear() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File fileOf(String key) {
+        return new File(mDirectory, key + SUFFIX);
+    }
+}
@@ -0,0 +1,215 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks a quality level from the processing latency of frames and the thermal status of the device.
+ * Latency is smoothed with an exponentially weighted moving average and compared to the frame budget
+ * of the current level: the level steps down when the average stays above the budget for a while and
+ * steps up only after a longer period of low load, if the latency scaled by the processed pixels of the
+ * next level fits its budget. Every change is followed by a quiet period and an upgrade that has to be
+ * taken back doubles the wait before the next one, so the controller does not oscillate between
+ * two levels. Thermal throttling caps the level right away.
+ * Time and thermal status are passed in, so the controller has no Android runtime dependencies and
+ * can be replayed against recorded latency traces.
+ */
+public class QualityController {
+    /* Values of PowerManager.THERMAL_STATUS_* */
+    public static final int THERMAL_STATUS_NONE = 0;
+    public static final int THERMAL_STATUS_LIGHT = 1;
+    public static final int THERMAL_STATUS_MODERATE = 2;
+    public static final int THERMAL_STATUS_SEVERE = 3;
+
+    /* weight of a new sample in the latency average */
+    private static final double LATENCY_SMOOTHING = 0.1;
+    /* share of the frame budget above which the level steps down */
+    private static final double DOWNGRADE_LOAD = 0.9;
+    /* share of the frame budget below which the level may step up */
+    private static final double UPGRADE_LOAD = 0.5;
+    private static final long DOWNGRADE_HOLD_MILLIS = 1000;
+    private static final long UPGRADE_HOLD_MILLIS = 5000;
+    private static final long MIN_LEVEL_MILLIS = 3000;
+    /* an upgrade taken back within this time doubles the upgrade hold */
+    private static final long UPGRADE_PROBATION_MILLIS = 10000;
+    private static final int MAX_UPGRADE_BACKOFF = 16;
+
+    public static final class Level {
+        @NonNull
+        public final String name;
+        public final int captureWidth;
+        public final int captureHeight;
+        public final int minFps;
+        public final int maxFps;
+        public final int processingWidth;
+        public final int processingHeight;
+
+        public Level(@NonNull String name, int captureWidth, int captureHeight, int minFps, int maxFps,
+                     int processingWidth, int processingHeight) {
+            this.name = name;
+            this.captureWidth = captureWidth;
+            this.captureHeight = captureHeight;
+            this.minFps = minFps;
+            this.maxFps = maxFps;
+            this.processingWidth = processingWidth;
+            this.processingHeight = processingHeight;
+        }
+
+        /* Processing time that keeps up with the frame rate */
+        public long getFrameBudgetMillis() {
+            return 1000 / maxFps;
+        }
+
+        int getProcessingPixels() {
+            return processingWidth * processingHeight;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name + " capture " + captureWidth + "x" + captureHeight + " @ [" + minFps + ", " + maxFps + "]"
+                    + ", processing " + processingWidth + "x" + processingHeight;
+        }
+    }
+
+    public interface Listener {
+        /* Called under the controller lock, must not block */
+        void onLevelChanged(int index, @NonNull Level level, @NonNull String reason);
+    }
+
+    @NonNull
+    private final List<Level> mLevels;
+    private final int mMaxIndex;
+    @NonNull
+    private final PoolSizingPolicy.Clock mClock;
+    @NonNull
+    private final Listener mListener;
+
+    private int mIndex;
+    private int mThermalStatus = THERMAL_STATUS_NONE;
+    private double mAverageLatency = -1;
+    private long mLevelStartTime;
+    /* start of the current period of high or low load, -1 if the load is in between */
+    private long mOverloadStartTime = -1;
+    private long mUnderloadStartTime = -1;
+    private boolean mUpgraded = false;
+    private int mUpgradeBackoff = 1;
+
+    /**
+     * @param levels       levels from the lowest quality to the highest
+     * @param initialIndex starting level, the controller never goes above it
+     */
+    public QualityController(@NonNull List<Level> levels, int initialIndex,
+                             @NonNull PoolSizingPolicy.Clock clock, @NonNull Listener listener) {
+        if (levels.isEmpty() || initialIndex < 0 || initialIndex >= levels.size()) {
+            throw new IllegalArgumentException("Invalid initial level " + initialIndex + " of " + levels.size());
+        }
+        mLevels = new ArrayList<>(levels);
+        mMaxIndex = initialIndex;
+        mIndex = initialIndex;
+        mClock = clock;
+        mListener = listener;
+        mLevelStartTime = clock.uptimeMillis();
+    }
+
+    public synchronized int getLevelIndex() {
+        return mIndex;
+    }
+
+    @NonNull
+    public synchronized Level getLevel() {
+        return mLevels.get(mIndex);
+    }
+
+    /* Smoothed processing latency, -1 before the first frame of the level */
+    public synchronized double getAverageLatencyMillis() {
+        return mAverageLatency;
+    }
+
+    public synchronized void onFrameLatency(long latencyMillis) {
+        final long now = mClock.uptimeMillis();
+        mAverageLatency = mAverageLatency < 0
+                ? latencyMillis
+                : mAverageLatency + LATENCY_SMOOTHING * (latencyMillis - mAverageLatency);
+
+        final long budget = mLevels.get(mIndex).getFrameBudgetMillis();
+        if (mAverageLatency > budget * DOWNGRADE_LOAD) {
+            mUnderloadStartTime = -1;
+            if (mOverloadStartTime < 0) {
+                mOverloadStartTime = now;
+            }
+        } else if (mAverageLatency < budget * UPGRADE_LOAD) {
+            mOverloadStartTime = -1;
+            if (mUnderloadStartTime < 0) {
+                mUnderloadStartTime = now;
+            }
+        } else {
+            mOverloadStartTime = -1;
+            mUnderloadStartTime = -1;
+        }
+
+        if (mUpgraded && now - mLevelStartTime >= UPGRADE_PROBATION_MILLIS) {
+            /* the last upgrade held */
+            mUpgraded = false;
+            mUpgradeBackoff = 1;
+        }
+        if (now - mLevelStartTime < MIN_LEVEL_MILLIS) {
+            return;
+        }
+        if (mOverloadStartTime >= 0 && now - mOverloadStartTime >= DOWNGRADE_HOLD_MILLIS && mIndex > 0) {
+            if (mUpgraded) {
+                mUpgradeBackoff = Math.min(MAX_UPGRADE_BACKOFF, mUpgradeBackoff * 2);
+            }
+            setLevel(mIndex - 1, now, false,
+                    "latency " + formatLatency() + " ms over the budget of " + budget + " ms");
+        } else if (mUnderloadStartTime >= 0 && now - mUnderloadStartTime >= UPGRADE_HOLD_MILLIS * mUpgradeBackoff
+                && mIndex < thermalCap()) {
+            final Level next = mLevels.get(mIndex + 1);
+            final double predicted = mAverageLatency * next.getProcessingPixels() / mLevels.get(mIndex).getProcessingPixels();
+            if (predicted < next.getFrameBudgetMillis() * DOWNGRADE_LOAD) {
+                setLevel(mIndex + 1, now, true, "latency " + formatLatency() + " ms well under the budget of "
+                        + budget + " ms, " + Math.round(predicted) + " ms expected");
+            }
+        }
+    }
+
+    /**
+     * @param status one of PowerManager.THERMAL_STATUS_* values
+     */
+    public synchronized void onThermalStatus(int status) {
+        mThermalStatus = status;
+        final int cap = thermalCap();
+        if (mIndex > cap) {
+            setLevel(cap, mClock.uptimeMillis(), false, "thermal status " + status);
+        }
+    }
+
+    /* Highest level allowed by the thermal status, LIGHT only stops upgrades */
+    private int thermalCap() {
+        if (mThermalStatus >= THERMAL_STATUS_SEVERE) {
+            return 0;
+        } else if (mThermalStatus >= THERMAL_STATUS_MODERATE) {
+            return Math.max(0, mMaxIndex - 1);
+        } else if (mThermalStatus >= THERMAL_STATUS_LIGHT) {
+            return mIndex;
+        }
+        return mMaxIndex;
+    }
+
+    private void setLevel(int index, long now, boolean upgrade, @NonNull String reason) {
+        mIndex = index;
+        mLevelStartTime = now;
+        mUpgraded = upgrade;
+        /* the new level has its own cost, old samples would trigger another change */
+        mAverageLatency = -1;
+        mOverloadStartTime = -1;
+        mUnderloadStartTime = -1;
+        mListener.onLevelChanged(index, mLevels.get(index), reason);
+    }
+
+    private String formatLatency() {
+        return String.valueOf(Math.round(mAverageLatency));
+    }
+}
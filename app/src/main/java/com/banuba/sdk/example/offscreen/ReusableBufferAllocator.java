@@ -0,0 +1,14 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+
+import com.banuba.sdk.offscreen.BufferAllocator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link BufferAllocator} that takes buffers back once their consumer is done with them
+ */
+public interface ReusableBufferAllocator extends BufferAllocator {
+    void retainBuffer(@NonNull ByteBuffer buffer);
+}
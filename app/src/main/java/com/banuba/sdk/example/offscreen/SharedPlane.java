@@ -0,0 +1,43 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A source plane read by several stripes at once. Camera images hand out new plane buffers every frame,
+ * so instead of a view per buffer rows are copied through the position of the buffer itself under its lock.
+ * Nothing is allocated or kept after {@link #detach}, which gives the caller its position and limit back.
+ */
+final class SharedPlane {
+    @Nullable
+    private ByteBuffer mBuffer;
+    private int mPosition;
+    private int mLimit;
+
+    void attach(@NonNull ByteBuffer buffer) {
+        mBuffer = buffer;
+        mPosition = buffer.position();
+        mLimit = buffer.limit();
+    }
+
+    /* Copies length bytes starting at the absolute index, may be called from any stripe */
+    void read(int index, @NonNull byte[] destination, int length) {
+        final ByteBuffer buffer = mBuffer;
+        synchronized (buffer) {
+            buffer.limit(buffer.capacity());
+            buffer.position(index);
+            buffer.get(destination, 0, length);
+        }
+    }
+
+    void detach() {
+        final ByteBuffer buffer = mBuffer;
+        if (buffer != null) {
+            buffer.limit(mLimit);
+            buffer.position(mPosition);
+            mBuffer = null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Splits a range of rows into stripes and runs them on a fixed set of daemon worker threads,
+ * the calling thread takes the first stripe and waits for the rest.
+ * Workers are parked between jobs and coordinated by a generation counter and a countdown,
+ * so running a job allocates nothing. One job runs at a time.
+ */
+public class StripeExecutor {
+    public interface StripeTask {
+        /**
+         * Processes rows [from, to), stripes run concurrently.
+         *
+         * @param stripe index of the stripe, 0 is run by the calling thread
+         */
+        void run(int stripe, int from, int to);
+    }
+
+    private final Thread[] mWorkers;
+    private final AtomicInteger mPending = new AtomicInteger();
+    /* job parameters, published to the workers by the volatile write of mGeneration */
+    private StripeTask mTask;
+    private int mRows;
+    private int mStripes;
+    private Thread mCaller;
+    private volatile int mGeneration = 0;
+    private volatile Throwable mFailure;
+    private volatile boolean mClosed = false;
+
+    /**
+     * @param workerCount number of threads besides the calling one, 0 runs every job on the calling thread
+     */
+    public StripeExecutor(int workerCount, @NonNull String name) {
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            final int stripe = i + 1;
+            mWorkers[i] = new Thread(() -> workerLoop(stripe), name + "-" + stripe);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /* Worker count that leaves one core to the rest of the app */
+    public static int defaultWorkerCount() {
+        return Math.max(0, Math.min(3, Runtime.getRuntime().availableProcessors() - 2));
+    }
+
+    /** Maximum number of stripes a job is split into */
+    public int getParallelism() {
+        return mWorkers.length + 1;
+    }
+
+    /**
+     * Runs the task over rows [0, rows) and returns when every stripe is done.
+     *
+     * @param minRowsPerStripe lower bound of a stripe height, small jobs use fewer threads
+     */
+    public synchronized void execute(int rows, int minRowsPerStripe, @NonNull StripeTask task) {
+        if (mClosed) {
+            throw new IllegalStateException("StripeExecutor is closed");
+        }
+        final int stripes = Math.max(1, Math.min(getParallelism(), rows / Math.max(1, minRowsPerStripe)));
+        if (stripes == 1) {
+            task.run(0, 0, rows);
+            return;
+        }
+        mTask = task;
+        mRows = rows;
+        mStripes = stripes;
+        mCaller = Thread.currentThread();
+        mFailure = null;
+        /* every worker acknowledges every job, so none can pick up parameters of the next one late */
+        mPending.set(mWorkers.length);
+        mGeneration++;
+        for (Thread worker : mWorkers) {
+            LockSupport.unpark(worker);
+        }
+
+        Throwable failure = null;
+        try {
+            task.run(0, 0, stripeEnd(0, rows, stripes));
+        } catch (Throwable e) {
+            failure = e;
+        }
+        while (mPending.get() != 0) {
+            LockSupport.park(this);
+        }
+        mTask = null;
+        mCaller = null;
+
+        if (failure == null) {
+            failure = mFailure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    /** Stops the workers, a job in progress is completed first */
+    public synchronized void close() {
+        mClosed = true;
+        for (Thread worker : mWorkers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void workerLoop(int stripe) {
+        int seenGeneration = 0;
+        while (true) {
+            int generation;
+            while ((generation = mGeneration) == seenGeneration && !mClosed) {
+                LockSupport.park(this);
+            }
+            if (generation == seenGeneration) {
+                return;
+            }
+            seenGeneration = generation;
+            final int stripes = mStripes;
+            final Thread caller = mCaller;
+            if (stripe < stripes) {
+                final int rows = mRows;
+                try {
+                    mTask.run(stripe, stripeEnd(stripe - 1, rows, stripes), stripeEnd(stripe, rows, stripes));
+                } catch (Throwable e) {
+                    mFailure = e;
+                }
+            }
+            if (mPending.decrementAndGet() == 0) {
+                LockSupport.unpark(caller);
+            }
+        }
+    }
+
+    private static int stripeEnd(int stripe, int rows, int stripes) {
+        return (int) ((long) rows * (stripe + 1) / stripes);
+    }
+}
@@ -0,0 +1,203 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Uploads image planes into textures whose storage is allocated once per plane size.
+ * Planes either go straight from client memory with glTexSubImage2D, or are streamed
+ * through a ring of pixel unpack buffers: the CPU copy of a frame lands in one buffer while
+ * the GPU may still be reading the previous one, so the copy overlaps with drawing.
+ * Unpack buffers keep their storage and are written in place, a fence per buffer tells
+ * when the GPU is done with it. Uploads do not allocate once textures and buffers exist.
+ * Either way the plane memory is no longer needed when {@link #upload} returns.
+ * Must be used on the GL thread.
+ */
+public class TextureUploader {
+    private final GLUploadBackend mGL;
+    private final int[] mTextures;
+    private final int[] mTextureWidths;
+    private final int[] mTextureHeights;
+    private final int[] mTextureBytesPerPixel;
+    private final int[] mUnpackBuffers;
+    private final int[] mUnpackBufferSizes;
+    private final long[] mUnpackFences;
+    private final int[] mPlaneOffsets;
+    private int mNextUnpackBuffer = 0;
+    private long mUploadedBytes = 0;
+
+    /**
+     * @param unpackBufferCount number of pixel unpack buffers to stream through, 0 uploads from client memory
+     */
+    public TextureUploader(@NonNull GLUploadBackend gl, int planeCount, int unpackBufferCount) {
+        mGL = gl;
+        mTextures = new int[planeCount];
+        mTextureWidths = new int[planeCount];
+        mTextureHeights = new int[planeCount];
+        mTextureBytesPerPixel = new int[planeCount];
+        mUnpackBuffers = new int[unpackBufferCount];
+        mUnpackBufferSizes = new int[unpackBufferCount];
+        mUnpackFences = new long[unpackBufferCount];
+        mPlaneOffsets = new int[planeCount];
+    }
+
+    /* Texture holding the plane, 0 before the first upload */
+    public int getTexture(int plane) {
+        return mTextures[plane];
+    }
+
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    /**
+     * Uploads the first planeCount planes, texture of plane N stays bound to texture unit N.
+     * A plane may hold less than a full last row (e.g. interleaved chroma of Camera2 images),
+     * the missing tail is left as is.
+     */
+    public void upload(int planeCount, @NonNull ByteBuffer[] planes, @NonNull int[] strides,
+                       @NonNull int[] widths, @NonNull int[] heights, @NonNull int[] bytesPerPixel) {
+        for (int i = 0; i < planeCount; i++) {
+            ensureTexture(i, widths[i], heights[i], bytesPerPixel[i]);
+        }
+        if (mUnpackBuffers.length == 0) {
+            uploadFromClientMemory(planeCount, planes, strides, widths, heights, bytesPerPixel);
+        } else {
+            uploadThroughUnpackBuffer(planeCount, planes, strides, widths, heights, bytesPerPixel);
+        }
+        /* the row length is left as is, every upload sets its own, so equal strides need no call next frame */
+    }
+
+    /* Deletes GL objects, the uploader can be used again afterwards */
+    public void release() {
+        forget(true);
+    }
+
+    /* Forgets GL objects that were destroyed together with their context, makes no GL calls */
+    public void onContextLost() {
+        forget(false);
+    }
+
+    private void forget(boolean delete) {
+        for (int i = 0; i < mTextures.length; i++) {
+            if (mTextures[i] != 0) {
+                if (delete) {
+                    mGL.deleteTexture(mTextures[i]);
+                }
+                GLResourceRegistry.onReleased(GLResourceRegistry.Kind.TEXTURE);
+                mTextures[i] = 0;
+                mTextureWidths[i] = mTextureHeights[i] = mTextureBytesPerPixel[i] = 0;
+            }
+        }
+        for (int i = 0; i < mUnpackBuffers.length; i++) {
+            if (mUnpackFences[i] != 0) {
+                if (delete) {
+                    mGL.deleteFence(mUnpackFences[i]);
+                }
+                mUnpackFences[i] = 0;
+            }
+            if (mUnpackBuffers[i] != 0) {
+                if (delete) {
+                    mGL.deleteBuffer(mUnpackBuffers[i]);
+                }
+                GLResourceRegistry.onReleased(GLResourceRegistry.Kind.BUFFER);
+                mUnpackBuffers[i] = 0;
+                mUnpackBufferSizes[i] = 0;
+            }
+        }
+        mNextUnpackBuffer = 0;
+    }
+
+    private void ensureTexture(int plane, int width, int height, int bytesPerPixel) {
+        if (mTextures[plane] != 0 && mTextureWidths[plane] == width
+                && mTextureHeights[plane] == height && mTextureBytesPerPixel[plane] == bytesPerPixel) {
+            return;
+        }
+        /* Immutable storage can not be respecified, a new size needs a new texture */
+        if (mTextures[plane] != 0) {
+            mGL.deleteTexture(mTextures[plane]);
+            GLResourceRegistry.onReleased(GLResourceRegistry.Kind.TEXTURE);
+        }
+        mTextures[plane] = mGL.createTexture();
+        GLResourceRegistry.onCreated(GLResourceRegistry.Kind.TEXTURE);
+        mGL.bindTexture(plane, mTextures[plane]);
+        mGL.allocateTextureStorage(width, height, bytesPerPixel);
+        mTextureWidths[plane] = width;
+        mTextureHeights[plane] = height;
+        mTextureBytesPerPixel[plane] = bytesPerPixel;
+    }
+
+    private void uploadFromClientMemory(int planeCount, ByteBuffer[] planes, int[] strides,
+                                        int[] widths, int[] heights, int[] bytesPerPixel) {
+        for (int i = 0; i < planeCount; i++) {
+            final ByteBuffer data = planes[i];
+            final int rowBytes = widths[i] * bytesPerPixel[i];
+            final int fullRows = fullRows(data.remaining(), strides[i], rowBytes, heights[i]);
+
+            mGL.bindTexture(i, mTextures[i]);
+            mGL.setUnpackRowLength(strides[i] / bytesPerPixel[i]);
+            mGL.texSubImage(widths[i], fullRows, bytesPerPixel[i], data);
+            mUploadedBytes += (long) fullRows * rowBytes;
+        }
+    }
+
+    private void uploadThroughUnpackBuffer(int planeCount, ByteBuffer[] planes, int[] strides,
+                                           int[] widths, int[] heights, int[] bytesPerPixel) {
+        int total = 0;
+        for (int i = 0; i < planeCount; i++) {
+            mPlaneOffsets[i] = total;
+            final int planeBytes = Math.min(planes[i].remaining(), strides[i] * heights[i]);
+            /* keep every plane 4 bytes aligned inside the buffer */
+            total += (planeBytes + 3) & ~3;
+        }
+
+        final int slot = mNextUnpackBuffer;
+        mNextUnpackBuffer = (mNextUnpackBuffer + 1) % mUnpackBuffers.length;
+        if (mUnpackBuffers[slot] == 0) {
+            mUnpackBuffers[slot] = mGL.createBuffer();
+            GLResourceRegistry.onCreated(GLResourceRegistry.Kind.BUFFER);
+        }
+        mGL.bindUnpackBuffer(mUnpackBuffers[slot]);
+        /* storage is allocated once and only grows, so the driver never has to orphan it */
+        if (mUnpackBufferSizes[slot] < total) {
+            mGL.allocateUnpackBuffer(total);
+            mUnpackBufferSizes[slot] = total;
+        }
+        /* uploads of the previous round must be done before the buffer is written again */
+        if (mUnpackFences[slot] != 0) {
+            mGL.waitFence(mUnpackFences[slot]);
+            mUnpackFences[slot] = 0;
+        }
+
+        for (int i = 0; i < planeCount; i++) {
+            final ByteBuffer data = planes[i];
+            final int limit = data.limit();
+            data.limit(data.position() + Math.min(data.remaining(), strides[i] * heights[i]));
+            mGL.writeUnpackBuffer(mPlaneOffsets[i], data);
+            data.limit(limit);
+        }
+
+        for (int i = 0; i < planeCount; i++) {
+            final int rowBytes = widths[i] * bytesPerPixel[i];
+            final int fullRows = fullRows(planes[i].remaining(), strides[i], rowBytes, heights[i]);
+            mGL.bindTexture(i, mTextures[i]);
+            mGL.setUnpackRowLength(strides[i] / bytesPerPixel[i]);
+            mGL.texSubImageFromUnpackBuffer(widths[i], fullRows, bytesPerPixel[i], mPlaneOffsets[i]);
+            mUploadedBytes += (long) fullRows * rowBytes;
+        }
+        mUnpackFences[slot] = mGL.insertFence();
+        mGL.bindUnpackBuffer(0);
+    }
+
+    /* Number of rows of the plane that are completely present in the buffer */
+    private static int fullRows(int available, int stride, int rowBytes, int height) {
+        if (available >= stride * (height - 1) + rowBytes) {
+            return height;
+        }
+        if (available < rowBytes) {
+            return 0;
+        }
+        return Math.min(height, (available - rowBytes) / stride + 1);
+    }
+}
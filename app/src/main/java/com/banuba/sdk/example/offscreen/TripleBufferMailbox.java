@@ -0,0 +1,82 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free latest-value mailbox between one producer and one consumer thread.
+ * Three preallocated slots rotate between the producer (back), the mailbox (middle)
+ * and the consumer (front), the producer and the consumer only exchange slots with
+ * the middle one by an atomic swap, so neither side ever waits for the other and
+ * the consumer always gets the newest published value.
+ */
+public class TripleBufferMailbox<T> {
+    /* State layout: bits 0-1 index of the middle slot, bit 2 set if it holds an unconsumed value */
+    private static final int INDEX_MASK = 0x3;
+    private static final int DIRTY = 0x4;
+
+    private final Object[] mSlots;
+    private final AtomicInteger mState = new AtomicInteger(1);
+    private int mBack = 0;  /* owned by the producer */
+    private int mFront = 2; /* owned by the consumer */
+
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mSupersededCount = new AtomicLong();
+
+    public TripleBufferMailbox(@NonNull T first, @NonNull T second, @NonNull T third) {
+        mSlots = new Object[]{first, second, third};
+    }
+
+    /** Slot the producer fills before {@link #publish()}, producer thread only */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    public T producerSlot() {
+        return (T) mSlots[mBack];
+    }
+
+    /**
+     * Hands the producer slot to the consumer, producer thread only.
+     *
+     * @return true if the previously published value was never consumed, it is now
+     * in {@link #producerSlot()} and the producer is responsible for recycling it
+     */
+    public boolean publish() {
+        final int previous = mState.getAndSet(mBack | DIRTY);
+        mBack = previous & INDEX_MASK;
+        mPublishedCount.incrementAndGet();
+        if ((previous & DIRTY) != 0) {
+            mSupersededCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the newest published value, consumer thread only.
+     * The value stays valid until the next call.
+     *
+     * @return null if nothing was published since the previous call
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public T consume() {
+        if ((mState.get() & DIRTY) == 0) {
+            return null;
+        }
+        final int previous = mState.getAndSet(mFront);
+        mFront = previous & INDEX_MASK;
+        return (T) mSlots[mFront];
+    }
+
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+
+    /** Number of values replaced by a newer one before the consumer took them */
+    public long getSupersededCount() {
+        return mSupersededCount.get();
+    }
+}
@@ -0,0 +1,299 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Downscales 4:2:0 images with any row and chroma pixel strides into I420, packed or with padded rows.
+ * Box filtering averages every source pixel covered by an output pixel, bilinear filtering
+ * samples the four nearest ones and is cheaper for ratios below 2. Column tables are built once
+ * per size, rows are split into stripes run by a {@link StripeExecutor}. Source planes are read through
+ * {@link SharedPlane}, so camera buffers that change every frame are neither duplicated nor kept; views of
+ * output buffers seen before are kept between frames, so scaling into pooled buffers does not allocate.
+ * One image is scaled at a time.
+ */
+public class YuvDownscaler {
+    public enum Filter {
+        BOX,
+        BILINEAR
+    }
+
+    private static final int FIXED_SHIFT = 16;
+    private static final int FIXED_ONE = 1 << FIXED_SHIFT;
+    private static final int MIN_ROWS_PER_STRIPE = 8;
+    /* outputs of a few pooled frames */
+    private static final int VIEWS_PER_STRIPE = 8;
+
+    @Nullable
+    private final StripeExecutor mExecutor;
+    @NonNull
+    private final Filter mFilter;
+    private final Stripe[] mStripes;
+    private final StripeExecutor.StripeTask mTask = this::scaleStripe;
+    private final PlaneScale mLuma = new PlaneScale();
+    private final PlaneScale mChroma = new PlaneScale();
+    private final SharedPlane mY = new SharedPlane();
+    private final SharedPlane mU = new SharedPlane();
+    private final SharedPlane mV = new SharedPlane();
+
+    /* parameters of the image in progress */
+    private int mYStride;
+    private int mUvStride;
+    private int mOutputWidth;
+    private int mOutputHeight;
+    private int mOutputYStride;
+    private int mOutputUvStride;
+
+    /**
+     * @param executor executor to split the work across, null scales on the calling thread
+     */
+    public YuvDownscaler(@Nullable StripeExecutor executor, @NonNull Filter filter) {
+        mExecutor = executor;
+        mFilter = filter;
+        mStripes = new Stripe[executor != null ? executor.getParallelism() : 1];
+        for (int i = 0; i < mStripes.length; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Scales planes of a 4:2:0 image into the output as packed I420, plane data and output start at index 0.
+     * U and V planes share the row and pixel strides, as in YUV_420_888. Output size must not exceed the input one.
+     * Planes are read through their own positions and must not be used by other threads meanwhile.
+     */
+    public void downscale(@NonNull ByteBuffer y, int yStride,
+                          @NonNull ByteBuffer u, @NonNull ByteBuffer v, int uvStride, int uvPixelStride,
+                          int width, int height,
+                          @NonNull ByteBuffer output, int outputWidth, int outputHeight) {
+        downscale(y, yStride, u, v, uvStride, uvPixelStride, width, height,
+                output, outputWidth, outputHeight, outputWidth, (outputWidth + 1) / 2);
+    }
+
+    /**
+     * Like {@link #downscale(ByteBuffer, int, ByteBuffer, ByteBuffer, int, int, int, int, ByteBuffer, int, int)}
+     * with rows of the output planes outputYStride and outputUvStride bytes apart, planes follow each other
+     * without padding between them, see {@link #outputSize(int, int, int, int)}.
+     */
+    public void downscale(@NonNull ByteBuffer y, int yStride,
+                          @NonNull ByteBuffer u, @NonNull ByteBuffer v, int uvStride, int uvPixelStride,
+                          int width, int height,
+                          @NonNull ByteBuffer output, int outputWidth, int outputHeight,
+                          int outputYStride, int outputUvStride) {
+        if (outputWidth > width || outputHeight > height || outputWidth <= 0 || outputHeight <= 0) {
+            throw new IllegalArgumentException("Can not scale " + width + "x" + height + " to " + outputWidth + "x" + outputHeight);
+        }
+        if (outputYStride < outputWidth || outputUvStride < (outputWidth + 1) / 2) {
+            throw new IllegalArgumentException("Output strides " + outputYStride + ", " + outputUvStride
+                    + " are smaller than the width " + outputWidth);
+        }
+        if (output.capacity() < outputSize(outputHeight, outputYStride, outputUvStride)) {
+            throw new IllegalArgumentException("Output buffer of " + output.capacity() + " bytes is too small");
+        }
+        mYStride = yStride;
+        mUvStride = uvStride;
+        mOutputWidth = outputWidth;
+        mOutputHeight = outputHeight;
+        mOutputYStride = outputYStride;
+        mOutputUvStride = outputUvStride;
+        mLuma.prepare(mFilter, width, height, outputWidth, outputHeight, 1);
+        mChroma.prepare(mFilter, (width + 1) / 2, (height + 1) / 2, (outputWidth + 1) / 2, (outputHeight + 1) / 2, uvPixelStride);
+
+        final int sourceRowBytes = Math.max(width, ((width + 1) / 2 - 1) * uvPixelStride + 1);
+        for (Stripe stripe : mStripes) {
+            stripe.prepare(output, sourceRowBytes, outputWidth);
+        }
+        mY.attach(y);
+        mU.attach(u);
+        mV.attach(v);
+        try {
+            /* stripes cover output chroma rows, two luma rows each */
+            final int chromaRows = (outputHeight + 1) / 2;
+            if (mExecutor != null) {
+                mExecutor.execute(chromaRows, MIN_ROWS_PER_STRIPE, mTask);
+            } else {
+                scaleStripe(0, 0, chromaRows);
+            }
+        } finally {
+            mY.detach();
+            mU.detach();
+            mV.detach();
+            for (Stripe stripe : mStripes) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /** Size of an I420 frame whose planes have the given row strides */
+    public static int outputSize(int outputHeight, int outputYStride, int outputUvStride) {
+        return outputYStride * outputHeight + 2 * outputUvStride * ((outputHeight + 1) / 2);
+    }
+
+    private void scaleStripe(int index, int fromChromaRow, int toChromaRow) {
+        final Stripe stripe = mStripes[index];
+        final int outputWidth = mOutputWidth;
+        final int outputHeight = mOutputHeight;
+        final int yStride = mOutputYStride;
+        final int uvStride = mOutputUvStride;
+        final int chromaWidth = (outputWidth + 1) / 2;
+        final int chromaSize = uvStride * ((outputHeight + 1) / 2);
+        final int lumaSize = yStride * outputHeight;
+
+        final int toRow = Math.min(outputHeight, toChromaRow * 2);
+        for (int row = fromChromaRow * 2; row < toRow; row++) {
+            scaleRow(mLuma, stripe, mY, mYStride, row);
+            write(stripe.rowOut, stripe.output, row * yStride, outputWidth);
+        }
+        for (int row = fromChromaRow; row < toChromaRow; row++) {
+            scaleRow(mChroma, stripe, mU, mUvStride, row);
+            write(stripe.rowOut, stripe.output, lumaSize + row * uvStride, chromaWidth);
+            scaleRow(mChroma, stripe, mV, mUvStride, row);
+            write(stripe.rowOut, stripe.output, lumaSize + chromaSize + row * uvStride, chromaWidth);
+        }
+    }
+
+    /* Produces one output row of the plane in stripe.rowOut */
+    private void scaleRow(PlaneScale plane, Stripe stripe, SharedPlane source, int stride, int row) {
+        final int outputWidth = plane.outputWidth;
+        final int[] accumulator = stripe.accumulator;
+        final byte[] rowIn = stripe.rowIn;
+        final byte[] rowOut = stripe.rowOut;
+        final int[] columnStart = plane.columnStart;
+        final int[] columnParameter = plane.columnParameter;
+        final int pixelStride = plane.pixelStride;
+        final int rowBytes = (plane.width - 1) * pixelStride + 1;
+
+        if (plane.filter == Filter.BOX) {
+            final int fromRow = plane.rowStart[row];
+            final int toRow = plane.rowStart[row + 1];
+            for (int x = 0; x < outputWidth; x++) {
+                accumulator[x] = 0;
+            }
+            for (int sourceRow = fromRow; sourceRow < toRow; sourceRow++) {
+                source.read(sourceRow * stride, rowIn, rowBytes);
+                for (int x = 0; x < outputWidth; x++) {
+                    int sum = 0;
+                    for (int s = columnStart[x], end = columnStart[x + 1]; s < end; s++) {
+                        sum += rowIn[s * pixelStride] & 0xFF;
+                    }
+                    accumulator[x] += sum;
+                }
+            }
+            final int rows = toRow - fromRow;
+            for (int x = 0; x < outputWidth; x++) {
+                /* columnParameter holds the column count, the average is rounded to nearest */
+                final int area = columnParameter[x] * rows;
+                rowOut[x] = (byte) ((accumulator[x] + (area >> 1)) / area);
+            }
+        } else {
+            final int top = plane.rowStart[row];
+            final int bottom = Math.min(top + 1, plane.height - 1);
+            final int rowWeight = plane.rowParameter[row];
+            final byte[] rowIn2 = stripe.rowIn2;
+            source.read(top * stride, rowIn, rowBytes);
+            source.read(bottom * stride, rowIn2, rowBytes);
+            final int lastColumn = plane.width - 1;
+            for (int x = 0; x < outputWidth; x++) {
+                final int left = columnStart[x];
+                final int right = Math.min(left + 1, lastColumn);
+                final int columnWeight = columnParameter[x];
+                /* horizontal results keep 8 fractional bits */
+                final int topValue = lerp((rowIn[left * pixelStride] & 0xFF) << 8, (rowIn[right * pixelStride] & 0xFF) << 8, columnWeight);
+                final int bottomValue = lerp((rowIn2[left * pixelStride] & 0xFF) << 8, (rowIn2[right * pixelStride] & 0xFF) << 8, columnWeight);
+                rowOut[x] = (byte) ((lerp(topValue, bottomValue, rowWeight) + (1 << 7)) >> 8);
+            }
+        }
+    }
+
+    /* a + (b - a) * weight, weight is 16.16 */
+    private static int lerp(int a, int b, int weight) {
+        return a + (int) (((long) (b - a) * weight) >> FIXED_SHIFT);
+    }
+
+    private static void write(byte[] row, ByteBuffer output, int offset, int length) {
+        output.limit(offset + length);
+        output.position(offset);
+        output.put(row, 0, length);
+        output.limit(output.capacity());
+    }
+
+    /* Source sampling tables of one plane, rebuilt only when sizes change */
+    private static final class PlaneScale {
+        Filter filter;
+        int width;
+        int height;
+        int outputWidth;
+        int outputHeight;
+        int pixelStride;
+        /* BOX: first source column of every output column plus an end marker,
+         * BILINEAR: left source column */
+        int[] columnStart = new int[0];
+        /* BOX: column count, BILINEAR: 16.16 weight of the right column */
+        int[] columnParameter = new int[0];
+        int[] rowStart = new int[0];
+        int[] rowParameter = new int[0];
+
+        void prepare(Filter filter, int width, int height, int outputWidth, int outputHeight, int pixelStride) {
+            this.pixelStride = pixelStride;
+            if (this.filter == filter && this.width == width && this.height == height
+                    && this.outputWidth == outputWidth && this.outputHeight == outputHeight) {
+                return;
+            }
+            this.filter = filter;
+            this.width = width;
+            this.height = height;
+            this.outputWidth = outputWidth;
+            this.outputHeight = outputHeight;
+            columnStart = new int[outputWidth + 1];
+            columnParameter = new int[outputWidth];
+            rowStart = new int[outputHeight + 1];
+            rowParameter = new int[outputHeight];
+            fill(filter, width, outputWidth, columnStart, columnParameter);
+            fill(filter, height, outputHeight, rowStart, rowParameter);
+        }
+
+        private static void fill(Filter filter, int size, int outputSize, int[] start, int[] parameter) {
+            for (int i = 0; i < outputSize; i++) {
+                if (filter == Filter.BOX) {
+                    start[i] = (int) ((long) i * size / outputSize);
+                    final int end = (int) ((long) (i + 1) * size / outputSize);
+                    parameter[i] = end - start[i];
+                } else {
+                    /* centers of output pixels mapped onto the source */
+                    final long center = (((2L * i + 1) * size << FIXED_SHIFT) / (2L * outputSize)) - (FIXED_ONE >> 1);
+                    final long clamped = Math.max(0, center);
+                    start[i] = (int) (clamped >> FIXED_SHIFT);
+                    parameter[i] = (int) (clamped & (FIXED_ONE - 1));
+                }
+            }
+            start[outputSize] = size;
+        }
+    }
+
+    /* Output view and scratch rows of one stripe, the view has its own position and limit */
+    private static final class Stripe {
+        final BufferViews outputViews = new BufferViews(VIEWS_PER_STRIPE);
+        ByteBuffer output;
+        byte[] rowIn = new byte[0];
+        byte[] rowIn2 = new byte[0];
+        byte[] rowOut = new byte[0];
+        int[] accumulator = new int[0];
+
+        void prepare(ByteBuffer output, int sourceRowBytes, int outputWidth) {
+            this.output = outputViews.viewOf(output);
+            if (rowIn.length < sourceRowBytes) {
+                rowIn = new byte[sourceRowBytes];
+                rowIn2 = new byte[sourceRowBytes];
+            }
+            if (rowOut.length < outputWidth) {
+                rowOut = new byte[outputWidth];
+                accumulator = new int[outputWidth];
+            }
+        }
+
+        void clear() {
+            output = null;
+        }
+    }
+}
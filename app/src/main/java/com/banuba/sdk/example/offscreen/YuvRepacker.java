@@ -0,0 +1,227 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.banuba.sdk.offscreen.BufferAllocator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Repacks YUV_420_888 images with any row and pixel strides into tightly packed I420 or NV12.
+ * Work is split into stripes of chroma rows (two luma rows each) run by a {@link StripeExecutor},
+ * output buffers come from a {@link BufferAllocator}. Source planes are read through {@link SharedPlane}, so
+ * camera buffers that change every frame are neither duplicated nor kept; scratch rows and views of output buffers
+ * seen before are kept between frames, so repacking into pooled buffers does not allocate.
+ * One image is repacked at a time.
+ */
+public class YuvRepacker {
+    public static final int FORMAT_I420 = 0;
+    public static final int FORMAT_NV12 = 1;
+
+    /* stripes shorter than this are not worth a thread handoff */
+    private static final int MIN_CHROMA_ROWS_PER_STRIPE = 16;
+    /* outputs of a few pooled frames */
+    private static final int VIEWS_PER_STRIPE = 8;
+
+    @NonNull
+    private final BufferAllocator mAllocator;
+    @Nullable
+    private final StripeExecutor mExecutor;
+    private final Stripe[] mStripes;
+    private final StripeExecutor.StripeTask mTask = this::repackStripe;
+    private final SharedPlane mY = new SharedPlane();
+    private final SharedPlane mU = new SharedPlane();
+    private final SharedPlane mV = new SharedPlane();
+
+    /* parameters of the image in progress */
+    private int mWidth;
+    private int mHeight;
+    private int mFormat;
+    private int mYRowStride;
+    private int mUvRowStride;
+    private int mUvPixelStride;
+
+    /**
+     * @param executor executor to split the work across, null repacks on the calling thread
+     */
+    public YuvRepacker(@NonNull BufferAllocator allocator, @Nullable StripeExecutor executor) {
+        mAllocator = allocator;
+        mExecutor = executor;
+        mStripes = new Stripe[executor != null ? executor.getParallelism() : 1];
+        for (int i = 0; i < mStripes.length; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /* Size in bytes of a packed I420 or NV12 image */
+    public static int packedSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Repacks the image into a buffer taken from the allocator.
+     * The buffer holds the Y plane followed by U and V planes (I420) or by the interleaved UV plane (NV12),
+     * its limit is set to {@link #packedSize}.
+     */
+    @NonNull
+    public ByteBuffer repack(@NonNull Image image, int format) {
+        final Image.Plane[] planes = image.getPlanes();
+        return repack(
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                image.getWidth(), image.getHeight(), format
+        );
+    }
+
+    /**
+     * Repacks planes of a 4:2:0 image into a buffer taken from the allocator,
+     * see {@link #repack(Image, int)} and {@link #repack(ByteBuffer, int, ByteBuffer, ByteBuffer, int, int, int, int, int, ByteBuffer)}.
+     */
+    @NonNull
+    public ByteBuffer repack(@NonNull ByteBuffer y, int yRowStride,
+                             @NonNull ByteBuffer u, @NonNull ByteBuffer v, int uvRowStride, int uvPixelStride,
+                             int width, int height, int format) {
+        final ByteBuffer output = mAllocator.allocateBuffer(packedSize(width, height));
+        output.clear();
+        output.limit(packedSize(width, height));
+        repack(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, format, output);
+        return output;
+    }
+
+    /**
+     * Repacks planes of a 4:2:0 image into the output buffer, plane data and output start at index 0.
+     * U and V planes share the row and pixel strides, as in YUV_420_888.
+     * Positions and limits of the arguments are the same when it returns, planes are read through their
+     * own positions meanwhile and must not be used by other threads.
+     */
+    public void repack(@NonNull ByteBuffer y, int yRowStride,
+                       @NonNull ByteBuffer u, @NonNull ByteBuffer v, int uvRowStride, int uvPixelStride,
+                       int width, int height, int format, @NonNull ByteBuffer output) {
+        if (output.capacity() < packedSize(width, height)) {
+            throw new IllegalArgumentException("Output buffer of " + output.capacity() + " bytes is too small");
+        }
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mYRowStride = yRowStride;
+        mUvRowStride = uvRowStride;
+        mUvPixelStride = uvPixelStride;
+
+        final int chromaWidth = (width + 1) / 2;
+        final int uvRowBytes = (chromaWidth - 1) * uvPixelStride + 1;
+        for (Stripe stripe : mStripes) {
+            stripe.prepare(output, uvRowBytes, width);
+        }
+        mY.attach(y);
+        mU.attach(u);
+        mV.attach(v);
+        try {
+            final int chromaHeight = (height + 1) / 2;
+            if (mExecutor != null) {
+                mExecutor.execute(chromaHeight, MIN_CHROMA_ROWS_PER_STRIPE, mTask);
+            } else {
+                repackStripe(0, 0, chromaHeight);
+            }
+        } finally {
+            mY.detach();
+            mU.detach();
+            mV.detach();
+            for (Stripe stripe : mStripes) {
+                stripe.clear();
+            }
+        }
+    }
+
+    private void repackStripe(int index, int fromChromaRow, int toChromaRow) {
+        final Stripe stripe = mStripes[index];
+        final int width = mWidth;
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (mHeight + 1) / 2;
+
+        /* luma */
+        final int toRow = Math.min(mHeight, toChromaRow * 2);
+        for (int row = fromChromaRow * 2; row < toRow; row++) {
+            mY.read(row * mYRowStride, stripe.rowOut, width);
+            write(stripe.rowOut, stripe.output, row * width, width);
+        }
+
+        /* chroma */
+        final int lumaSize = width * mHeight;
+        final int uvRowBytes = (chromaWidth - 1) * mUvPixelStride + 1;
+        for (int row = fromChromaRow; row < toChromaRow; row++) {
+            final int sourceOffset = row * mUvRowStride;
+            if (mFormat == FORMAT_I420) {
+                final int uOffset = lumaSize + row * chromaWidth;
+                final int vOffset = lumaSize + chromaWidth * chromaHeight + row * chromaWidth;
+                if (mUvPixelStride == 1) {
+                    mU.read(sourceOffset, stripe.rowOut, chromaWidth);
+                    write(stripe.rowOut, stripe.output, uOffset, chromaWidth);
+                    mV.read(sourceOffset, stripe.rowOut, chromaWidth);
+                    write(stripe.rowOut, stripe.output, vOffset, chromaWidth);
+                } else {
+                    deinterleave(stripe, mU, sourceOffset, uvRowBytes, uOffset, chromaWidth, mUvPixelStride);
+                    deinterleave(stripe, mV, sourceOffset, uvRowBytes, vOffset, chromaWidth, mUvPixelStride);
+                }
+            } else {
+                mU.read(sourceOffset, stripe.rowU, uvRowBytes);
+                mV.read(sourceOffset, stripe.rowV, uvRowBytes);
+                final byte[] rowU = stripe.rowU;
+                final byte[] rowV = stripe.rowV;
+                final byte[] rowOut = stripe.rowOut;
+                final int pixelStride = mUvPixelStride;
+                for (int x = 0, s = 0; x < chromaWidth; x++, s += pixelStride) {
+                    rowOut[2 * x] = rowU[s];
+                    rowOut[2 * x + 1] = rowV[s];
+                }
+                write(rowOut, stripe.output, lumaSize + row * 2 * chromaWidth, 2 * chromaWidth);
+            }
+        }
+    }
+
+    private static void deinterleave(Stripe stripe, SharedPlane source, int sourceOffset, int rowBytes,
+                                     int outputOffset, int chromaWidth, int pixelStride) {
+        final byte[] row = stripe.rowU;
+        final byte[] rowOut = stripe.rowOut;
+        source.read(sourceOffset, row, rowBytes);
+        for (int x = 0, s = 0; x < chromaWidth; x++, s += pixelStride) {
+            rowOut[x] = row[s];
+        }
+        write(rowOut, stripe.output, outputOffset, chromaWidth);
+    }
+
+    private static void write(byte[] row, ByteBuffer output, int outputOffset, int length) {
+        output.limit(outputOffset + length);
+        output.position(outputOffset);
+        output.put(row, 0, length);
+        output.limit(output.capacity());
+    }
+
+    /* Output view and scratch rows of one stripe, the view has its own position and limit */
+    private static final class Stripe {
+        final BufferViews outputViews = new BufferViews(VIEWS_PER_STRIPE);
+        ByteBuffer output;
+        byte[] rowU = new byte[0];
+        byte[] rowV = new byte[0];
+        byte[] rowOut = new byte[0];
+
+        void prepare(ByteBuffer output, int uvRowBytes, int width) {
+            this.output = outputViews.viewOf(output);
+            if (rowU.length < uvRowBytes) {
+                rowU = new byte[uvRowBytes];
+                rowV = new byte[uvRowBytes];
+            }
+            /* a luma row or an interleaved chroma row */
+            final int rowOutBytes = Math.max(width, 2 * ((width + 1) / 2));
+            if (rowOut.length < rowOutBytes) {
+                rowOut = new byte[rowOutBytes];
+            }
+        }
+
+        void clear() {
+            output = null;
+        }
+    }
+}
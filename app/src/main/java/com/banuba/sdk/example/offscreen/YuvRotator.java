@@ -0,0 +1,195 @@
+package com.banuba.sdk.example.offscreen;
+
+import androidx.annotation.NonNull;
+
+import com.banuba.sdk.offscreen.ImageOrientation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rotates and mirrors I420 and NV12 images on the CPU in one pass, the way {@link GLI420Renderer}
+ * shows them: the image is turned counter-clockwise by the orientation angle, then optionally
+ * mirrored horizontally. Planes are processed in square tiles that fit in the L1 cache, every tile
+ * is read row by row, transformed in a scratch array and written row by row, so neither side is
+ * walked by columns. Output planes are tightly packed. One image is rotated at a time.
+ */
+public class YuvRotator {
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    private final int mTileSize;
+    private final byte[] mTileIn;
+    private final byte[] mTileOut;
+
+    public YuvRotator() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param tileSize side of a tile in pixels, 16 to 64 is a good range for 32 KB L1 caches
+     */
+    public YuvRotator(int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        }
+        mTileSize = tileSize;
+        /* up to 2 bytes per pixel for interleaved chroma */
+        mTileIn = new byte[tileSize * tileSize * 2];
+        mTileOut = new byte[tileSize * tileSize * 2];
+    }
+
+    /* Width of the image after rotation by the angle */
+    public static int rotatedWidth(int width, int height, int angle) {
+        return angle == 90 || angle == 270 ? height : width;
+    }
+
+    public static int rotatedHeight(int width, int height, int angle) {
+        return angle == 90 || angle == 270 ? width : height;
+    }
+
+    public void rotateI420(@NonNull ByteBuffer y, int yStride, @NonNull ByteBuffer u, int uStride,
+                           @NonNull ByteBuffer v, int vStride, int width, int height,
+                           @NonNull ImageOrientation orientation, @NonNull ByteBuffer output) {
+        rotateI420(y, yStride, u, uStride, v, vStride, width, height,
+                orientation.getImageOrientationAngle(), orientation.isRequireMirroring(), output);
+    }
+
+    /**
+     * Writes the rotated image into the output as packed I420, starting at index 0.
+     *
+     * @param angle 0, 90, 180 or 270 degrees counter-clockwise
+     */
+    public void rotateI420(@NonNull ByteBuffer y, int yStride, @NonNull ByteBuffer u, int uStride,
+                           @NonNull ByteBuffer v, int vStride, int width, int height,
+                           int angle, boolean mirror, @NonNull ByteBuffer output) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        final int outWidth = rotatedWidth(width, height, angle);
+        final int outChromaWidth = rotatedWidth(chromaWidth, chromaHeight, angle);
+        final int chromaSize = chromaWidth * chromaHeight;
+        rotatePlane(y, yStride, width, height, 1, angle, mirror, output, 0, outWidth);
+        rotatePlane(u, uStride, chromaWidth, chromaHeight, 1, angle, mirror, output, width * height, outChromaWidth);
+        rotatePlane(v, vStride, chromaWidth, chromaHeight, 1, angle, mirror, output, width * height + chromaSize, outChromaWidth);
+    }
+
+    public void rotateNV12(@NonNull ByteBuffer y, int yStride, @NonNull ByteBuffer uv, int uvStride,
+                           int width, int height, @NonNull ImageOrientation orientation, @NonNull ByteBuffer output) {
+        rotateNV12(y, yStride, uv, uvStride, width, height,
+                orientation.getImageOrientationAngle(), orientation.isRequireMirroring(), output);
+    }
+
+    /**
+     * Writes the rotated image into the output as packed NV12, starting at index 0.
+     * Works for NV21 as well, chroma pairs are moved as a whole.
+     *
+     * @param angle 0, 90, 180 or 270 degrees counter-clockwise
+     */
+    public void rotateNV12(@NonNull ByteBuffer y, int yStride, @NonNull ByteBuffer uv, int uvStride,
+                           int width, int height, int angle, boolean mirror, @NonNull ByteBuffer output) {
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        final int outWidth = rotatedWidth(width, height, angle);
+        final int outChromaWidth = rotatedWidth(chromaWidth, chromaHeight, angle);
+        rotatePlane(y, yStride, width, height, 1, angle, mirror, output, 0, outWidth);
+        rotatePlane(uv, uvStride, chromaWidth, chromaHeight, 2, angle, mirror, output, width * height, 2 * outChromaWidth);
+    }
+
+    /**
+     * Rotates one plane. Strides are in bytes, positions and limits of the buffers are restored.
+     *
+     * @param pixelBytes 1, or 2 for interleaved chroma
+     */
+    public void rotatePlane(@NonNull ByteBuffer source, int sourceStride, int width, int height, int pixelBytes,
+                            int angle, boolean mirror,
+                            @NonNull ByteBuffer output, int outputOffset, int outputStride) {
+        /* destination coordinates are x' = ax * x + bx * y + cx, y' = ay * x + by * y + cy */
+        final int ax;
+        final int bx;
+        final int ay;
+        final int by;
+        switch (angle) {
+            case 0:
+                ax = 1; bx = 0; ay = 0; by = 1;
+                break;
+            case 90:
+                ax = 0; bx = 1; ay = -1; by = 0;
+                break;
+            case 180:
+                ax = -1; bx = 0; ay = 0; by = -1;
+                break;
+            case 270:
+                ax = 0; bx = -1; ay = 1; by = 0;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported angle: " + angle);
+        }
+        final int mirrorSign = mirror ? -1 : 1;
+        final int mx = mirrorSign * ax;
+        final int nx = mirrorSign * bx;
+        /* constant terms map the source corners into [0, outWidth) x [0, outHeight) */
+        final int cx = -Math.min(0, mx * (width - 1)) - Math.min(0, nx * (height - 1));
+        final int cy = -Math.min(0, ay * (width - 1)) - Math.min(0, by * (height - 1));
+
+        final int sourcePosition = source.position();
+        final int sourceLimit = source.limit();
+        final int outputPosition = output.position();
+        final int outputLimit = output.limit();
+        source.limit(source.capacity());
+        output.limit(output.capacity());
+
+        final int tile = mTileSize;
+        final byte[] tileIn = mTileIn;
+        final byte[] tileOut = mTileOut;
+        for (int ty = 0; ty < height; ty += tile) {
+            final int th = Math.min(tile, height - ty);
+            for (int tx = 0; tx < width; tx += tile) {
+                final int tw = Math.min(tile, width - tx);
+
+                /* read the tile */
+                final int rowBytes = tw * pixelBytes;
+                for (int j = 0; j < th; j++) {
+                    source.position((ty + j) * sourceStride + tx * pixelBytes);
+                    source.get(tileIn, j * rowBytes, rowBytes);
+                }
+
+                /* destination tile, its width is th for 90 and 270 */
+                final int dtw = ax != 0 ? tw : th;
+                final int dth = ax != 0 ? th : tw;
+                final int dx0 = Math.min(mx * tx + nx * ty, mx * (tx + tw - 1) + nx * (ty + th - 1)) + cx;
+                final int dy0 = Math.min(ay * tx + by * ty, ay * (tx + tw - 1) + by * (ty + th - 1)) + cy;
+                /* index steps in the destination tile for the next source column and row */
+                final int stepI = ay * dtw + mx;
+                final int stepJ = by * dtw + nx;
+                final int start = (ay * tx + by * ty + cy - dy0) * dtw + (mx * tx + nx * ty + cx - dx0);
+
+                if (pixelBytes == 1) {
+                    for (int j = 0, rowStart = start; j < th; j++, rowStart += stepJ) {
+                        final int in = j * tw;
+                        for (int i = 0, index = rowStart; i < tw; i++, index += stepI) {
+                            tileOut[index] = tileIn[in + i];
+                        }
+                    }
+                } else {
+                    for (int j = 0, rowStart = start; j < th; j++, rowStart += stepJ) {
+                        final int in = j * tw * 2;
+                        for (int i = 0, index = rowStart; i < tw; i++, index += stepI) {
+                            tileOut[2 * index] = tileIn[in + 2 * i];
+                            tileOut[2 * index + 1] = tileIn[in + 2 * i + 1];
+                        }
+                    }
+                }
+
+                /* write the tile */
+                final int outRowBytes = dtw * pixelBytes;
+                for (int j = 0; j < dth; j++) {
+                    output.position(outputOffset + (dy0 + j) * outputStride + dx0 * pixelBytes);
+                    output.put(tileOut, j * outRowBytes, outRowBytes);
+                }
+            }
+        }
+
+        source.limit(sourceLimit);
+        source.position(sourcePosition);
+        output.limit(outputLimit);
+        output.position(outputPosition);
+    }
+}
@@ -0,0 +1,312 @@
+package com.banuba.sdk.example.offscreen;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Locale;
+
+/**
+ * CPU conversion of limited range I420, NV12 and NV21 images to ARGB_8888, for snapshots,
+ * thumbnails and checking the colors of {@link GLI420Renderer} without a GPU.
+ * The renderer shaders take their BT.601 math from {@link ColorStandard#shaderColor()},
+ * the converter computes it in 16.16 fixed point.
+ * Rows are split into stripes run by a {@link StripeExecutor}, scratch rows and the
+ * output buffer are kept between images. One image is converted at a time.
+ */
+public class YuvToArgbConverter {
+    public enum ColorStandard {
+        BT601(1.5960267860, 0.3917622901, 0.8129676472, 2.0172321430),
+        BT709(1.7927410714, 0.2132486143, 0.5329093286, 2.1124017857);
+
+        final int vToR;
+        final int uToG;
+        final int vToG;
+        final int uToB;
+        /* GLSL vec4 of the same conversion, see shaderColor() */
+        private final String mShaderColor;
+
+        ColorStandard(double vToR, double uToG, double vToG, double uToB) {
+            this.vToR = fixed(vToR);
+            this.uToG = fixed(uToG);
+            this.vToG = fixed(vToG);
+            this.uToB = fixed(uToB);
+            /* samples are bytes divided by 255, offsets fold in the 16 and 128 subtracted from them */
+            final double lumaOffset = Y_SCALE_FACTOR * 16.0 / 255.0;
+            final double chroma = 128.0 / 255.0;
+            mShaderColor = String.format(Locale.ROOT,
+                    "vec4(\n" +
+                    "    %.10ff * y + %.10ff * v - %.10ff,\n" +
+                    "    %.10ff * y - %.10ff * u - %.10ff * v + %.10ff,\n" +
+                    "    %.10ff * y + %.10ff * u - %.10ff,\n" +
+                    "    1.0f)",
+                    Y_SCALE_FACTOR, vToR, lumaOffset + vToR * chroma,
+                    Y_SCALE_FACTOR, uToG, vToG, (uToG + vToG) * chroma - lumaOffset,
+                    Y_SCALE_FACTOR, uToB, lumaOffset + uToB * chroma);
+        }
+
+        /**
+         * GLSL expression of the conversion, for shaders with float samples y, u and v as read from
+         * textures of the planes. {@link GLI420Renderer} builds its fragment shaders with it,
+         * so its colors match the ones of the converter.
+         */
+        @NonNull
+        public String shaderColor() {
+            return mShaderColor;
+        }
+    }
+
+    public enum PixelOrder {
+        /* int values are Color ints, 0xAARRGGBB, as taken by Bitmap.setPixels() */
+        ARGB,
+        /* memory layout of ARGB_8888 bitmaps, as taken by Bitmap.copyPixelsFromBuffer(), needs a native order buffer */
+        BITMAP
+    }
+
+    private static final int FIXED_SHIFT = 16;
+    private static final int FIXED_HALF = 1 << (FIXED_SHIFT - 1);
+    /* Y scale of limited range video, the same for both standards */
+    private static final double Y_SCALE_FACTOR = 1.164383562;
+    private static final int Y_SCALE = fixed(Y_SCALE_FACTOR);
+    private static final int MIN_ROWS_PER_STRIPE = 16;
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private static final int LAYOUT_I420 = 0;
+    private static final int LAYOUT_NV12 = 1;
+    private static final int LAYOUT_NV21 = 2;
+
+    @Nullable
+    private final StripeExecutor mExecutor;
+    @NonNull
+    private final ColorStandard mStandard;
+    @NonNull
+    private final PixelOrder mPixelOrder;
+    private final Stripe[] mStripes;
+    private final StripeExecutor.StripeTask mTask = this::convertStripe;
+    private IntBuffer mBitmapPixels;
+
+    /* parameters of the image in progress */
+    private int mLayout;
+    private int mWidth;
+    private int mHeight;
+    private int mYStride;
+    private int mUStride;
+    private int mVStride;
+    private int mOutputStride;
+
+    /**
+     * @param executor executor to split the work across, null converts on the calling thread
+     */
+    public YuvToArgbConverter(@Nullable StripeExecutor executor, @NonNull ColorStandard standard, @NonNull PixelOrder pixelOrder) {
+        mExecutor = executor;
+        mStandard = standard;
+        mPixelOrder = pixelOrder;
+        mStripes = new Stripe[executor != null ? executor.getParallelism() : 1];
+        for (int i = 0; i < mStripes.length; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Converts an I420 image, plane data and output start at index 0 of the buffers.
+     *
+     * @param outputStride distance between output rows in pixels
+     */
+    public void convertI420(@NonNull ByteBuffer y, int yStride, @NonNull ByteBuffer u, int uStride,
+                            @NonNull ByteBuffer v, int vStride, int width, int height,
+                            @NonNull IntBuffer output, int outputStride) {
+        convert(LAYOUT_I420, y, yStride, u, uStride, v, vStride, width, height, output, outputStride);
+    }
+
+    /**
+     * Converts an NV12 image, or an NV21 one if isVuOrder is set,
+     * plane data and output start at index 0 of the buffers.
+     *
+     * @param outputStride distance between output rows in pixels
+     */
+    public void convertSemiPlanar(@NonNull ByteBuffer y, int yStride, @NonNull ByteBuffer uv, int uvStride,
+                                  boolean isVuOrder, int width, int height,
+                                  @NonNull IntBuffer output, int outputStride) {
+        convert(isVuOrder ? LAYOUT_NV21 : LAYOUT_NV12, y, yStride, uv, uvStride, uv, uvStride, width, height, output, outputStride);
+    }
+
+    /**
+     * Converts an I420 image into a bitmap, the converter must use {@link PixelOrder#BITMAP}.
+     *
+     * @param reuse bitmap to draw into if it is mutable and has the image size
+     * @return the reused bitmap or a new one
+     */
+    @NonNull
+    public Bitmap convertI420ToBitmap(@NonNull ByteBuffer y, int yStride, @NonNull ByteBuffer u, int uStride,
+                                      @NonNull ByteBuffer v, int vStride, int width, int height, @Nullable Bitmap reuse) {
+        if (mPixelOrder != PixelOrder.BITMAP) {
+            throw new IllegalStateException("Bitmap output needs PixelOrder.BITMAP");
+        }
+        final int pixels = width * height;
+        if (mBitmapPixels == null || mBitmapPixels.capacity() < pixels) {
+            mBitmapPixels = ByteBuffer.allocateDirect(pixels * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        convertI420(y, yStride, u, uStride, v, vStride, width, height, mBitmapPixels, width);
+
+        final Bitmap bitmap = reuse != null && reuse.isMutable() && reuse.getWidth() == width
+                && reuse.getHeight() == height && reuse.getConfig() == Bitmap.Config.ARGB_8888
+                ? reuse
+                : Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mBitmapPixels.clear();
+        mBitmapPixels.limit(pixels);
+        bitmap.copyPixelsFromBuffer(mBitmapPixels);
+        return bitmap;
+    }
+
+    private void convert(int layout, ByteBuffer y, int yStride, ByteBuffer u, int uStride, ByteBuffer v, int vStride,
+                         int width, int height, IntBuffer output, int outputStride) {
+        if (output.capacity() < outputStride * (height - 1) + width) {
+            throw new IllegalArgumentException("Output buffer of " + output.capacity() + " pixels is too small");
+        }
+        mLayout = layout;
+        mWidth = width;
+        mHeight = height;
+        mYStride = yStride;
+        mUStride = uStride;
+        mVStride = vStride;
+        mOutputStride = outputStride;
+
+        final int chromaRowBytes = layout == LAYOUT_I420 ? (width + 1) / 2 : 2 * ((width + 1) / 2);
+        for (Stripe stripe : mStripes) {
+            stripe.prepare(y, u, v, output, width, chromaRowBytes);
+        }
+        /* stripes cover pairs of rows sharing a chroma row */
+        final int rowPairs = (height + 1) / 2;
+        if (mExecutor != null) {
+            mExecutor.execute(rowPairs, MIN_ROWS_PER_STRIPE, mTask);
+        } else {
+            convertStripe(0, 0, rowPairs);
+        }
+        for (Stripe stripe : mStripes) {
+            stripe.clear();
+        }
+    }
+
+    private void convertStripe(int index, int fromPair, int toPair) {
+        final Stripe stripe = mStripes[index];
+        final int width = mWidth;
+        final int chromaWidth = (width + 1) / 2;
+        final int height = mHeight;
+        for (int pair = fromPair; pair < toPair; pair++) {
+            if (mLayout == LAYOUT_I420) {
+                read(stripe.u, pair * mUStride, stripe.rowU, chromaWidth);
+                read(stripe.v, pair * mVStride, stripe.rowV, chromaWidth);
+            } else {
+                read(stripe.u, pair * mUStride, stripe.rowU, 2 * chromaWidth);
+            }
+            for (int row = pair * 2; row < pair * 2 + 2 && row < height; row++) {
+                read(stripe.y, row * mYStride, stripe.rowY, width);
+                convertRow(stripe, width);
+                write(stripe.rowOut, stripe.output, row * mOutputStride, width);
+            }
+        }
+    }
+
+    private void convertRow(Stripe stripe, int width) {
+        final byte[] rowY = stripe.rowY;
+        final byte[] rowU = stripe.rowU;
+        final byte[] rowV = stripe.rowV;
+        final int[] rowOut = stripe.rowOut;
+        final int layout = mLayout;
+        final int vToR = mStandard.vToR;
+        final int uToG = mStandard.uToG;
+        final int vToG = mStandard.vToG;
+        final int uToB = mStandard.uToB;
+        final boolean bitmapOrder = mPixelOrder == PixelOrder.BITMAP;
+
+        for (int x = 0; x < width; x++) {
+            final int c = x >> 1;
+            final int u;
+            final int v;
+            if (layout == LAYOUT_I420) {
+                u = (rowU[c] & 0xFF) - 128;
+                v = (rowV[c] & 0xFF) - 128;
+            } else if (layout == LAYOUT_NV12) {
+                u = (rowU[2 * c] & 0xFF) - 128;
+                v = (rowU[2 * c + 1] & 0xFF) - 128;
+            } else {
+                v = (rowU[2 * c] & 0xFF) - 128;
+                u = (rowU[2 * c + 1] & 0xFF) - 128;
+            }
+            final int luma = ((rowY[x] & 0xFF) - 16) * Y_SCALE + FIXED_HALF;
+            final int r = clamp((luma + vToR * v) >> FIXED_SHIFT);
+            final int g = clamp((luma - uToG * u - vToG * v) >> FIXED_SHIFT);
+            final int b = clamp((luma + uToB * u) >> FIXED_SHIFT);
+            rowOut[x] = bitmapOrder ? pack(r, g, b) : 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /* R, G, B, A bytes in memory when written to a native order buffer */
+    private static int pack(int r, int g, int b) {
+        return LITTLE_ENDIAN
+                ? 0xFF000000 | (b << 16) | (g << 8) | r
+                : (r << 24) | (g << 16) | (b << 8) | 0xFF;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static int fixed(double value) {
+        return (int) Math.round(value * (1 << FIXED_SHIFT));
+    }
+
+    private static void read(ByteBuffer source, int offset, byte[] row, int length) {
+        source.limit(offset + length);
+        source.position(offset);
+        source.get(row, 0, length);
+        source.limit(source.capacity());
+    }
+
+    private static void write(int[] row, IntBuffer output, int offset, int length) {
+        output.limit(offset + length);
+        output.position(offset);
+        output.put(row, 0, length);
+        output.limit(output.capacity());
+    }
+
+    /* Views and scratch rows of one stripe, views have their own position and limit */
+    private static final class Stripe {
+        ByteBuffer y;
+        ByteBuffer u;
+        ByteBuffer v;
+        IntBuffer output;
+        byte[] rowY = new byte[0];
+        byte[] rowU = new byte[0];
+        byte[] rowV = new byte[0];
+        int[] rowOut = new int[0];
+
+        void prepare(ByteBuffer y, ByteBuffer u, ByteBuffer v, IntBuffer output, int width, int chromaRowBytes) {
+            this.y = y.duplicate();
+            this.y.clear();
+            this.u = u.duplicate();
+            this.u.clear();
+            this.v = v.duplicate();
+            this.v.clear();
+            this.output = output.duplicate();
+            this.output.clear();
+            if (rowY.length < width) {
+                rowY = new byte[width];
+                rowOut = new int[width];
+            }
+            if (rowU.length < chromaRowBytes) {
+                rowU = new byte[chromaRowBytes];
+                rowV = new byte[chromaRowBytes];
+            }
+        }
+
+        void clear() {
+            y = u = v = null;
+            output = null;
+        }
+    }
+}
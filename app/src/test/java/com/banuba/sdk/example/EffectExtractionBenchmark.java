@@ -0,0 +1,230 @@
+package com.banuba.sdk.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Extraction of the bundled effects with the file operations of BanubaEffectHelper, which reads
+ * Android assets and can not run on the JVM, so this is a model of the helper rather than the helper.
+ * The helper logs its own timings on the device ("Extracted <effect> (cold)" under the BanubaEffectHelper
+ * tag), those are the numbers to trust. Cold hashes every file, stores it as a blob and links it,
+ * relink finds the blobs stored and only links them, as after an APK update, and verify is a warm
+ * start checking sizes and times against the manifest. Extraction runs on a shared pool or on a pool
+ * created per call like the helper used to.
+ * Run from the app directory with ./gradlew :app:jmh -Pjmh=EffectExtractionBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EffectExtractionBenchmark {
+    private static final int IO_THREADS = 4;
+    /* the working directory of the jmh task is the app project */
+    private static final File EFFECTS_DIR = new File("src/main/assets/bnb-resources/effects");
+
+    /* A bundled effect read into memory standing for the assets, and directories to extract it to */
+    @State(Scope.Benchmark)
+    public static class Effect {
+        @Param({"AsaiLines", "Beauty"})
+        public String effect;
+
+        final List<byte[]> mAssets = new ArrayList<>();
+        final List<String> mHashes = new ArrayList<>();
+        File mRoot;
+        File mBlobsDir;
+        File mEffectDir;
+        ExecutorService mSharedExecutor;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            final File effectDir = new File(EFFECTS_DIR, effect);
+            if (!effectDir.isDirectory()) {
+                throw new IOException("No effect at " + effectDir.getAbsolutePath());
+            }
+            try (Stream<Path> paths = Files.walk(effectDir.toPath())) {
+                /* aapt does not package hidden files */
+                for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)
+                        .filter(path -> !path.getFileName().toString().startsWith("."))
+                        .sorted()::iterator) {
+                    final byte[] asset = Files.readAllBytes(path);
+                    mAssets.add(asset);
+                    mHashes.add(sha256(ByteBuffer.wrap(asset)));
+                }
+            }
+            mRoot = Files.createTempDirectory("effects").toFile();
+            mBlobsDir = new File(mRoot, "blobs");
+            mEffectDir = new File(mRoot, "effect");
+            mSharedExecutor = Executors.newFixedThreadPool(IO_THREADS);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mSharedExecutor.shutdown();
+            deleteRecursively(mRoot);
+        }
+
+        File destFile(int index) {
+            return new File(mEffectDir, "file" + index);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Extraction {
+        @Param({"cold", "relink"})
+        public String mode;
+
+        @Setup(Level.Invocation)
+        public void setUp(Effect effect) {
+            deleteRecursively(effect.mEffectDir);
+            if (mode.equals("cold")) {
+                deleteRecursively(effect.mBlobsDir);
+            }
+            effect.mEffectDir.mkdirs();
+            effect.mBlobsDir.mkdirs();
+        }
+    }
+
+    /* An extracted effect and its manifest times */
+    @State(Scope.Thread)
+    public static class Extracted {
+        long[] mModified;
+
+        @Setup(Level.Trial)
+        public void setUp(Effect effect) throws Exception {
+            deleteRecursively(effect.mEffectDir);
+            effect.mEffectDir.mkdirs();
+            effect.mBlobsDir.mkdirs();
+            extract(effect, effect.mSharedExecutor);
+            mModified = new long[effect.mAssets.size()];
+            for (int i = 0; i < mModified.length; i++) {
+                mModified[i] = effect.destFile(i).lastModified();
+            }
+        }
+    }
+
+    @Benchmark
+    public int sharedPool(Effect effect, Extraction extraction) throws Exception {
+        return extract(effect, effect.mSharedExecutor);
+    }
+
+    @Benchmark
+    public int poolPerCall(Effect effect, Extraction extraction) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(IO_THREADS);
+        try {
+            return extract(effect, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public boolean verify(Effect effect, Extracted extracted) {
+        for (int i = 0; i < extracted.mModified.length; i++) {
+            final File file = effect.destFile(i);
+            if (!file.isFile() || file.length() != effect.mAssets.get(i).length
+                    || file.lastModified() != extracted.mModified[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int extract(Effect effect, ExecutorService executor) throws Exception {
+        final List<Callable<Boolean>> jobs = new ArrayList<>();
+        for (int i = 0; i < effect.mAssets.size(); i++) {
+            final int index = i;
+            jobs.add(() -> extractFile(effect, index));
+        }
+        int extracted = 0;
+        for (Future<Boolean> future : executor.invokeAll(jobs)) {
+            try {
+                extracted += future.get() ? 1 : 0;
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+        }
+        return extracted;
+    }
+
+    /* Stores the asset unless its blob exists, then links the blob through a temporary file */
+    private static boolean extractFile(Effect effect, int index) throws IOException {
+        final byte[] asset = effect.mAssets.get(index);
+        final File blob = new File(effect.mBlobsDir, effect.mHashes.get(index));
+        if (!blob.isFile() || blob.length() != asset.length) {
+            final File tempFile = File.createTempFile("blob", ".tmp", effect.mBlobsDir);
+            try (FileChannel output = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.wrap(asset);
+                if (!sha256(buffer.duplicate()).equals(blob.getName())) {
+                    throw new IOException("Content does not match the effect index");
+                }
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+            }
+            Files.move(tempFile.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        final File destFile = effect.destFile(index);
+        final File tempFile = new File(effect.mEffectDir, destFile.getName() + ".tmp");
+        Files.createLink(tempFile.toPath(), blob.toPath());
+        return tempFile.renameTo(destFile);
+    }
+
+    private static String sha256(ByteBuffer content) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content);
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new UncheckedIOException(new IOException("Could not delete " + file));
+        }
+    }
+}
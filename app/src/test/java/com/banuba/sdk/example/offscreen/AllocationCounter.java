@@ -0,0 +1,23 @@
+package com.banuba.sdk.example.offscreen;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Heap bytes allocated by the current thread, for tests that guard allocation free paths
+ */
+final class AllocationCounter {
+    private AllocationCounter() {
+    }
+
+    /* -1 if the JVM does not count allocations per thread */
+    static long currentThreadBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
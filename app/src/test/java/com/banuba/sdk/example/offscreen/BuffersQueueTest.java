@@ -0,0 +1,275 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class BuffersQueueTest {
+    private static final int I420_720P = 1280 * 720 * 3 / 2;
+    private static final int I420_1080P = 1920 * 1080 * 3 / 2;
+    private static final int I420_4K = 3840 * 2160 * 3 / 2;
+
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 20000;
+
+    private static BuffersQueue newQueue(int capacity) {
+        return new BuffersQueue(new PoolSizingPolicy(1, capacity, 5000, () -> 0));
+    }
+
+    @Test
+    public void countsHitsMissesAndAllocatedBytes() {
+        final BuffersQueue queue = newQueue(4);
+
+        final ByteBuffer first = queue.allocateBuffer(I420_720P);
+        assertEquals(0, queue.getHitCount());
+        assertEquals(1, queue.getMissCount());
+        assertEquals(I420_720P, queue.getAllocatedBytes());
+        assertEquals(1, queue.getInFlightCount());
+
+        queue.retainBuffer(first);
+        assertEquals(0, queue.getInFlightCount());
+
+        final ByteBuffer second = queue.allocateBuffer(I420_720P);
+        assertSame(first, second);
+        assertEquals(1, queue.getHitCount());
+        assertEquals(1, queue.getMissCount());
+        assertEquals(I420_720P, queue.getAllocatedBytes());
+    }
+
+    @Test
+    public void returnedBufferIsCleared() {
+        final BuffersQueue queue = newQueue(4);
+        final ByteBuffer buffer = queue.allocateBuffer(I420_720P);
+        buffer.position(100).limit(200);
+        queue.retainBuffer(buffer);
+
+        final ByteBuffer reused = queue.allocateBuffer(I420_720P);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+    }
+
+    @Test
+    public void framesFallIntoPowerOfTwoClasses() {
+        /* 1280x720 I420 lies in [2^20, 2^21), 1920x1080 I420 in [2^21, 2^22) */
+        assertEquals(20, 31 - Integer.numberOfLeadingZeros(I420_720P));
+        assertEquals(21, 31 - Integer.numberOfLeadingZeros(I420_1080P));
+
+        final BuffersQueue queue = newQueue(4);
+        final ByteBuffer hd = queue.allocateBuffer(I420_720P);
+        queue.retainBuffer(hd);
+
+        /* A 720p buffer is too small for a 1080p frame */
+        final ByteBuffer fullHd = queue.allocateBuffer(I420_1080P);
+        assertNotSame(hd, fullHd);
+        assertEquals(2, queue.getMissCount());
+        queue.retainBuffer(fullHd);
+
+        /* Both are pooled, each size takes its own buffer */
+        assertSame(hd, queue.allocateBuffer(I420_720P));
+        assertSame(fullHd, queue.allocateBuffer(I420_1080P));
+        assertEquals(2, queue.getHitCount());
+    }
+
+    @Test
+    public void smallerFrameIsServedFromNextClassOnly() {
+        final BuffersQueue queue = newQueue(4);
+        final ByteBuffer fullHd = queue.allocateBuffer(I420_1080P);
+        final ByteBuffer uhd = queue.allocateBuffer(I420_4K);
+        queue.retainBuffer(fullHd);
+        queue.retainBuffer(uhd);
+
+        /* The 1080p buffer is one class above 720p and fits */
+        assertSame(fullHd, queue.allocateBuffer(I420_720P));
+        /* The 4K buffer is three classes above and stays pooled */
+        final ByteBuffer hd = queue.allocateBuffer(I420_720P);
+        assertNotSame(uhd, hd);
+        assertEquals(I420_720P, hd.capacity());
+        assertSame(uhd, queue.allocateBuffer(I420_4K));
+    }
+
+    @Test
+    public void bestFitIsPreferred() {
+        final BuffersQueue queue = newQueue(4);
+        final ByteBuffer large = queue.allocateBuffer(I420_720P + 4096);
+        final ByteBuffer exact = queue.allocateBuffer(I420_720P);
+        queue.retainBuffer(large);
+        queue.retainBuffer(exact);
+
+        assertSame(exact, queue.allocateBuffer(I420_720P));
+        assertSame(large, queue.allocateBuffer(I420_720P));
+    }
+
+    @Test
+    public void doubleReturnIsRejectedWithLeakDetectionDisabled() {
+        final BuffersQueue queue = newQueue(4);
+        assertEquals(BufferLeakDetector.Level.DISABLED, queue.getLeakDetector().getLevel());
+        final ByteBuffer buffer = queue.allocateBuffer(I420_720P);
+        queue.retainBuffer(buffer);
+        queue.retainBuffer(buffer);
+
+        assertEquals(1, queue.getDoubleReturnCount());
+        assertEquals(1, queue.getPooledCount(I420_720P));
+        assertEquals(0, queue.getInFlightCount());
+        /* two consumers never get the same buffer */
+        assertSame(buffer, queue.allocateBuffer(I420_720P));
+        assertNotSame(buffer, queue.allocateBuffer(I420_720P));
+    }
+
+    @Test
+    public void trimMemoryShrinksPoolToTarget() {
+        final BuffersQueue queue = newQueue(4);
+        queue.prewarm(I420_720P, 4);
+        assertEquals(4, queue.getPooledCount(I420_720P));
+
+        queue.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(1, queue.getPooledCount(I420_720P));
+        queue.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(0, queue.getPooledCount(I420_720P));
+
+        /* returned buffers are dropped while the target is zero */
+        queue.retainBuffer(queue.allocateBuffer(I420_720P));
+        assertEquals(0, queue.getPooledCount(I420_720P));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void prewarmFillsUpToTarget() {
+        final BuffersQueue queue = newQueue(4);
+        queue.prewarm(I420_720P, 3);
+        assertEquals(3, queue.getPooledCount(I420_720P));
+        queue.prewarm(I420_720P, 6);
+        assertEquals(4, queue.getPooledCount(I420_720P));
+        assertEquals(4L * I420_720P, queue.getAllocatedBytes());
+    }
+
+    @Test
+    public void missPrewarmsBuffersOfTheRequestedSize() {
+        final BuffersQueue queue = newQueue(4);
+        final List<Runnable> scheduled = new ArrayList<>();
+        queue.setPrewarmOnMiss(scheduled::add, 3);
+
+        final ByteBuffer first = queue.allocateBuffer(I420_720P + 64);
+        /* one pre-warm at a time */
+        queue.allocateBuffer(I420_720P + 64);
+        assertEquals(1, scheduled.size());
+        scheduled.get(0).run();
+        assertEquals(3, queue.getPooledCount(I420_720P));
+
+        queue.retainBuffer(first);
+        final long misses = queue.getMissCount();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(I420_720P + 64, queue.allocateBuffer(I420_720P + 64).capacity());
+        }
+        assertEquals(misses, queue.getMissCount());
+
+        /* a new size is pre-warmed again */
+        queue.allocateBuffer(I420_1080P);
+        assertEquals(2, scheduled.size());
+    }
+
+    @Test
+    public void concurrentReturnsNeverOverfillClass() throws InterruptedException {
+        final int threads = 8;
+        final int buffersPerThread = 64;
+        final BuffersQueue queue = newQueue(4);
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < threads * buffersPerThread; i++) {
+            buffers.add(ByteBuffer.allocateDirect(I420_720P));
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final List<ByteBuffer> own = buffers.subList(t * buffersPerThread, (t + 1) * buffersPerThread);
+            final Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < own.size(); i++) {
+                    queue.retainBuffer(own.get(i));
+                    /* take one back now and then, so slots are emptied while others fill them */
+                    if (i % 3 == 0) {
+                        queue.retainBuffer(queue.allocateBuffer(I420_720P));
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(4, queue.getPooledCount(I420_720P));
+        final List<ByteBuffer> pooled = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            pooled.add(queue.allocateBuffer(I420_720P));
+        }
+        assertEquals(0, queue.getPooledCount(I420_720P));
+        final Set<ByteBuffer> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        distinct.addAll(pooled);
+        assertEquals("A buffer was pooled twice", 4, distinct.size());
+        final long missCount = queue.getMissCount();
+        final ByteBuffer extra = queue.allocateBuffer(I420_720P);
+        assertEquals(missCount + 1, queue.getMissCount());
+        for (ByteBuffer buffer : pooled) {
+            assertNotSame(buffer, extra);
+        }
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocateAt720p() {
+        assertSteadyStateAllocationFree(I420_720P);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocateAt1080p() {
+        assertSteadyStateAllocationFree(I420_1080P);
+    }
+
+    /* Runs frames through the pool with two in flight, as the offscreen pipeline does */
+    private static void assertSteadyStateAllocationFree(int frameSize) {
+        final BuffersQueue queue = newQueue(4);
+        runFrames(queue, frameSize, WARMUP_FRAMES);
+        final long missCount = queue.getMissCount();
+        final long allocatedBytes = queue.getAllocatedBytes();
+
+        final long heapBefore = AllocationCounter.currentThreadBytes();
+        runFrames(queue, frameSize, MEASURED_FRAMES);
+        final long heapAfter = AllocationCounter.currentThreadBytes();
+
+        assertEquals("No direct buffer is allocated once warm", missCount, queue.getMissCount());
+        assertEquals(allocatedBytes, queue.getAllocatedBytes());
+        assertEquals(WARMUP_FRAMES + MEASURED_FRAMES - missCount, queue.getHitCount());
+        if (heapBefore >= 0) {
+            /* Reading the counter may allocate a little, one object per frame would take 16 bytes or more */
+            final long heapBytes = heapAfter - heapBefore;
+            assertTrue("Heap bytes allocated in steady state: " + heapBytes, heapBytes < MEASURED_FRAMES);
+        }
+    }
+
+    private static void runFrames(BuffersQueue queue, int frameSize, int frames) {
+        ByteBuffer previous = queue.allocateBuffer(frameSize);
+        for (int i = 1; i < frames; i++) {
+            final ByteBuffer current = queue.allocateBuffer(frameSize);
+            queue.retainBuffer(previous);
+            previous = current;
+        }
+        queue.retainBuffer(previous);
+    }
+}
@@ -0,0 +1,333 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CameraStateMachineTest {
+    private static final int FRONT = 0;
+    private static final int BACK = 1;
+
+    /* Records actions, the test completes them */
+    private static final class RecordingActions implements CameraStateMachine.Actions {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void openCamera(int facing) {
+            calls.add("open " + facing);
+        }
+
+        @Override
+        public void configureSession() {
+            calls.add("configure");
+        }
+
+        @Override
+        public void closeCamera() {
+            calls.add("close");
+        }
+    }
+
+    private final RecordingActions mActions = new RecordingActions();
+    private final CameraStateMachine mMachine = new CameraStateMachine(mActions, FRONT);
+
+    private void assertCalls(String... calls) {
+        assertEquals(Arrays.asList(calls), mActions.calls);
+    }
+
+    @Test
+    public void openConfiguresAndStreams() {
+        mMachine.requestOpen(FRONT);
+        assertEquals(CameraStateMachine.State.OPENING, mMachine.getState());
+        mMachine.onOpened();
+        assertEquals(CameraStateMachine.State.CONFIGURING, mMachine.getState());
+        mMachine.onConfigured();
+
+        assertEquals(CameraStateMachine.State.STREAMING, mMachine.getState());
+        assertCalls("open 0", "configure");
+    }
+
+    @Test
+    public void switchingTwiceWhileOpeningKeepsTheCamera() {
+        mMachine.requestOpen(FRONT);
+        mMachine.requestSwitch(FRONT, BACK);
+        mMachine.requestSwitch(FRONT, BACK);
+        mMachine.onOpened();
+        mMachine.onConfigured();
+
+        assertEquals(CameraStateMachine.State.STREAMING, mMachine.getState());
+        assertCalls("open 0", "configure");
+        assertEquals(3, mMachine.getRequestCount());
+        assertEquals(2, mMachine.getActionCount());
+    }
+
+    @Test
+    public void switchingWhileStreamingReopens() {
+        streamFront();
+        mMachine.requestSwitch(FRONT, BACK);
+        assertEquals(CameraStateMachine.State.CLOSING, mMachine.getState());
+        mMachine.onClosed();
+        mMachine.onOpened();
+        mMachine.onConfigured();
+
+        assertEquals(CameraStateMachine.State.STREAMING, mMachine.getState());
+        assertEquals(BACK, mMachine.getRequestedFacing());
+        assertCalls("open 0", "configure", "close", "open 1", "configure");
+    }
+
+    @Test
+    public void switchingWhileClosingOpensTheNewFacing() {
+        streamFront();
+        mMachine.requestClose();
+        mMachine.requestSwitch(FRONT, BACK);
+        /* the close in progress completes first */
+        assertEquals(CameraStateMachine.State.CLOSING, mMachine.getState());
+        mMachine.onClosed();
+        assertEquals(CameraStateMachine.State.OPENING, mMachine.getState());
+        assertCalls("open 0", "configure", "close", "open 1");
+    }
+
+    @Test
+    public void closeWhileOpeningClosesOnceOpened() {
+        mMachine.requestOpen(FRONT);
+        mMachine.requestClose();
+        mMachine.onOpened();
+        assertEquals(CameraStateMachine.State.CLOSING, mMachine.getState());
+        mMachine.onClosed();
+
+        assertEquals(CameraStateMachine.State.CLOSED, mMachine.getState());
+        assertFalse(mMachine.isOpenRequested());
+        assertCalls("open 0", "close");
+    }
+
+    @Test
+    public void closeAndReopenWhileConfiguringKeepsTheSession() {
+        mMachine.requestOpen(FRONT);
+        mMachine.onOpened();
+        mMachine.requestClose();
+        mMachine.requestOpen(FRONT);
+        mMachine.onConfigured();
+
+        assertEquals(CameraStateMachine.State.STREAMING, mMachine.getState());
+        assertCalls("open 0", "configure");
+    }
+
+    @Test
+    public void reconfigureRequestsWhileConfiguringAreCoalesced() {
+        mMachine.requestOpen(FRONT);
+        mMachine.onOpened();
+        mMachine.requestReconfigure();
+        mMachine.requestReconfigure();
+        mMachine.onConfigured();
+        assertEquals(CameraStateMachine.State.CONFIGURING, mMachine.getState());
+        mMachine.onConfigured();
+
+        assertEquals(CameraStateMachine.State.STREAMING, mMachine.getState());
+        assertCalls("open 0", "configure", "configure");
+    }
+
+    @Test
+    public void reconfigureWhileStreamingRebuildsTheSession() {
+        streamFront();
+        mMachine.requestReconfigure();
+        assertEquals(CameraStateMachine.State.CONFIGURING, mMachine.getState());
+        mMachine.onConfigured();
+        assertCalls("open 0", "configure", "configure");
+    }
+
+    @Test
+    public void reconfigureWhileClosedDoesNotOpen() {
+        mMachine.requestReconfigure();
+        assertEquals(CameraStateMachine.State.CLOSED, mMachine.getState());
+
+        /* the next session is built for the latest configuration anyway */
+        streamFront();
+        assertCalls("open 0", "configure");
+    }
+
+    @Test
+    public void reconfigureWhileClosingIsAppliedByTheNextSession() {
+        streamFront();
+        mMachine.requestClose();
+        mMachine.requestReconfigure();
+        mMachine.requestOpen(FRONT);
+        mMachine.onClosed();
+        mMachine.onOpened();
+        mMachine.onConfigured();
+
+        assertEquals(CameraStateMachine.State.STREAMING, mMachine.getState());
+        assertCalls("open 0", "configure", "close", "open 0", "configure");
+    }
+
+    @Test
+    public void failedOpenIsNotRetried() {
+        mMachine.requestOpen(FRONT);
+        mMachine.onOpenFailed();
+
+        assertEquals(CameraStateMachine.State.CLOSED, mMachine.getState());
+        assertFalse(mMachine.isOpenRequested());
+        assertCalls("open 0");
+    }
+
+    @Test
+    public void failedConfigureClosesTheCamera() {
+        mMachine.requestOpen(FRONT);
+        mMachine.onOpened();
+        mMachine.onConfigureFailed();
+        assertEquals(CameraStateMachine.State.CLOSING, mMachine.getState());
+        mMachine.onClosed();
+
+        assertEquals(CameraStateMachine.State.CLOSED, mMachine.getState());
+        assertCalls("open 0", "configure", "close");
+    }
+
+    @Test
+    public void disconnectWhileConfiguringIgnoresLateCompletion() {
+        mMachine.requestOpen(FRONT);
+        mMachine.onOpened();
+        mMachine.onDisconnected();
+        assertEquals(CameraStateMachine.State.CLOSED, mMachine.getState());
+
+        mMachine.onConfigured();
+        mMachine.onClosed();
+        assertEquals(CameraStateMachine.State.CLOSED, mMachine.getState());
+        assertCalls("open 0", "configure");
+
+        mMachine.requestOpen(FRONT);
+        assertEquals(CameraStateMachine.State.OPENING, mMachine.getState());
+    }
+
+    @Test
+    public void completionsOfOtherStatesAreIgnored() {
+        streamFront();
+        mMachine.onOpened();
+        mMachine.onClosed();
+        mMachine.onOpenFailed();
+        mMachine.onConfigureFailed();
+
+        assertEquals(CameraStateMachine.State.STREAMING, mMachine.getState());
+        assertCalls("open 0", "configure");
+    }
+
+    /*
+     * Requests race from several threads while another thread completes actions like the camera
+     * thread does. At most one action may be in progress at any time, and once requests stop the
+     * machine settles on the last requested facing and open state.
+     */
+    @Test
+    public void concurrentRequestsSettleOnTheLastTarget() throws InterruptedException {
+        final int threads = 4;
+        final int requestsPerThread = 5000;
+        final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+        final AtomicInteger inProgress = new AtomicInteger();
+        final AtomicInteger maxInProgress = new AtomicInteger();
+        final AtomicInteger openedFacing = new AtomicInteger(-1);
+        final CameraStateMachine machine = new CameraStateMachine(new CameraStateMachine.Actions() {
+            @Override
+            public void openCamera(int facing) {
+                openedFacing.set(facing);
+                start("open");
+            }
+
+            @Override
+            public void configureSession() {
+                start("configure");
+            }
+
+            @Override
+            public void closeCamera() {
+                start("close");
+            }
+
+            private void start(String action) {
+                maxInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+                pending.add(action);
+            }
+        }, FRONT);
+
+        final CountDownLatch requestsDone = new CountDownLatch(threads);
+        final Thread completer = new Thread(() -> {
+            final Random random = new Random(1);
+            while (requestsDone.getCount() > 0 || !pending.isEmpty()) {
+                final String action = pending.poll();
+                if (action == null) {
+                    Thread.yield();
+                    continue;
+                }
+                inProgress.decrementAndGet();
+                switch (action) {
+                    case "open":
+                        if (random.nextInt(50) == 0) {
+                            machine.onOpenFailed();
+                        } else {
+                            machine.onOpened();
+                        }
+                        break;
+                    case "configure":
+                        machine.onConfigured();
+                        break;
+                    default:
+                        machine.onClosed();
+                        break;
+                }
+            }
+        });
+        completer.start();
+
+        final List<Thread> requesters = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(10 + t);
+            final Thread requester = new Thread(() -> {
+                for (int i = 0; i < requestsPerThread; i++) {
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            machine.requestOpen(random.nextBoolean() ? FRONT : BACK);
+                            break;
+                        case 1:
+                            machine.requestSwitch(FRONT, BACK);
+                            break;
+                        case 2:
+                            machine.requestReconfigure();
+                            break;
+                        default:
+                            machine.requestClose();
+                            break;
+                    }
+                }
+                requestsDone.countDown();
+            });
+            requesters.add(requester);
+            requester.start();
+        }
+        for (Thread requester : requesters) {
+            requester.join();
+        }
+        completer.join();
+
+        assertEquals(1, maxInProgress.get());
+        assertTrue(machine.getActionCount() < machine.getRequestCount());
+        if (machine.isOpenRequested()) {
+            assertEquals(CameraStateMachine.State.STREAMING, machine.getState());
+            assertEquals(machine.getRequestedFacing(), openedFacing.get());
+        } else {
+            assertEquals(CameraStateMachine.State.CLOSED, machine.getState());
+        }
+    }
+
+    private void streamFront() {
+        mMachine.requestOpen(FRONT);
+        mMachine.onOpened();
+        mMachine.onConfigured();
+        assertEquals(CameraStateMachine.State.STREAMING, mMachine.getState());
+    }
+}
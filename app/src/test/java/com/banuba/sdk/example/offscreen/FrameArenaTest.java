@@ -0,0 +1,112 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class FrameArenaTest {
+    private static final int PAGE = 4096;
+
+    @Test
+    public void leaseGoesBackAfterLastRelease() {
+        final FrameArena arena = new FrameArena(4 * PAGE, PAGE);
+        final FrameArena.Lease lease = arena.acquire(2 * PAGE);
+        assertNotNull(lease);
+        final int generation = lease.generation();
+        assertEquals(2 * PAGE, arena.getUsedBytes());
+
+        lease.retain(generation);
+        lease.release(generation);
+        assertEquals(2 * PAGE, arena.getUsedBytes());
+        lease.release(generation);
+        assertEquals(0, arena.getUsedBytes());
+        assertNull(arena.leaseOf(lease.buffer()));
+    }
+
+    @Test
+    public void staleReleaseDoesNotTouchNextGeneration() {
+        final FrameArena arena = new FrameArena(4 * PAGE, PAGE);
+        final FrameArena.Lease first = arena.acquire(PAGE);
+        final int firstGeneration = first.generation();
+        first.release(firstGeneration);
+
+        /* the same page run hands out the same lease object again */
+        final FrameArena.Lease second = arena.acquire(PAGE);
+        assertSame(first, second);
+        final int secondGeneration = second.generation();
+        assertNotEquals(firstGeneration, secondGeneration);
+
+        try {
+            first.release(firstGeneration);
+            fail("A release of a past generation must throw");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            first.retain(firstGeneration);
+            fail("A retain of a past generation must throw");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(PAGE, arena.getUsedBytes());
+        assertSame(second, arena.leaseOf(second.buffer()));
+
+        second.release(secondGeneration);
+        assertEquals(0, arena.getUsedBytes());
+    }
+
+    @Test
+    public void doubleReleaseThrows() {
+        final FrameArena arena = new FrameArena(4 * PAGE, PAGE);
+        final FrameArena.Lease lease = arena.acquire(PAGE);
+        final int generation = lease.generation();
+        lease.release(generation);
+        try {
+            lease.release(generation);
+            fail("A second release must throw");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(0, arena.getUsedBytes());
+    }
+
+    @Test
+    public void exhaustedBudgetOverflowsToDirectBuffers() {
+        final FrameArena arena = new FrameArena(2 * PAGE, PAGE);
+        final ByteBuffer inSlab = arena.allocateBuffer(2 * PAGE);
+        assertNotNull(arena.leaseOf(inSlab));
+
+        final ByteBuffer overflow = arena.allocateBuffer(PAGE);
+        assertNull(arena.leaseOf(overflow));
+        assertEquals(1, arena.getOverflowCount());
+
+        arena.retainBuffer(inSlab);
+        arena.retainBuffer(overflow);
+        assertEquals(0, arena.getUsedBytes());
+    }
+
+    @Test
+    public void freedPagesAreReusedFirstFit() {
+        final FrameArena arena = new FrameArena(4 * PAGE, PAGE);
+        final FrameArena.Lease a = arena.acquire(PAGE);
+        final FrameArena.Lease b = arena.acquire(2 * PAGE);
+        a.release(a.generation());
+        assertNull(arena.acquire(2 * PAGE));
+        final FrameArena.Lease c = arena.acquire(PAGE);
+        assertSame(a, c);
+        b.release(b.generation());
+        c.release(c.generation());
+        assertEquals(0, arena.getUsedBytes());
+    }
+
+    @Test
+    public void rowsArePaddedToAlignment() {
+        assertEquals(1280, FrameArena.alignedStride(1280));
+        assertEquals(704, FrameArena.alignedStride(642));
+        assertEquals(704 * 360 + 2 * 384 * 180, FrameArena.alignedI420Size(642, 360));
+    }
+}
@@ -0,0 +1,201 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FrameThrottleTest {
+    private static final long TIMEOUT_MS = 1000;
+
+    private long mNow = 100;
+    private final List<Integer> mDelivered = new ArrayList<>();
+    private final List<Integer> mReleased = new ArrayList<>();
+
+    private FrameThrottle<Integer> newThrottle(FrameThrottle.Policy policy) {
+        return new FrameThrottle<>(2, policy, TIMEOUT_MS, () -> mNow, mDelivered::add, mReleased::add);
+    }
+
+    /* frames are keyed by their number in these tests */
+    private static void offer(FrameThrottle<Integer> throttle, int frame) {
+        throttle.offer(frame, frame);
+    }
+
+    @Test
+    public void dropOldestKeepsNewestPending() {
+        final FrameThrottle<Integer> throttle = newThrottle(FrameThrottle.Policy.DROP_OLDEST);
+        for (int frame = 1; frame <= 5; frame++) {
+            offer(throttle, frame);
+        }
+
+        assertEquals(Arrays.asList(1, 2), mDelivered);
+        assertEquals(Arrays.asList(3, 4), mReleased);
+        assertEquals(3, throttle.getQueueDepth());
+        assertEquals(3, throttle.getMaxHeldFrames());
+
+        throttle.onFrameProcessed(1);
+        assertEquals(Arrays.asList(1, 2, 5), mDelivered);
+        assertEquals(2, throttle.getQueueDepth());
+    }
+
+    @Test
+    public void dropNewestReleasesIncomingFrames() {
+        final FrameThrottle<Integer> throttle = newThrottle(FrameThrottle.Policy.DROP_NEWEST);
+        for (int frame = 1; frame <= 4; frame++) {
+            offer(throttle, frame);
+        }
+
+        assertEquals(Arrays.asList(1, 2), mDelivered);
+        assertEquals(Arrays.asList(3, 4), mReleased);
+        assertEquals(2, throttle.getDroppedCount());
+        assertEquals(2, throttle.getQueueDepth());
+        assertEquals(2, throttle.getMaxHeldFrames());
+    }
+
+    /* A 30 fps source and a processor three times slower that works on one frame at a time */
+    @Test
+    public void slowProcessorGetsFreshFrames() {
+        /* the pending frame is replaced until a slot frees up, so the newest frame goes next */
+        assertEquals(Arrays.asList(0, 1, 3, 6, 9, 12), replaySlowProcessor(FrameThrottle.Policy.DROP_OLDEST));
+        /* frames arriving while both slots are taken are lost, the next one after a slot frees up goes */
+        assertEquals(Arrays.asList(0, 1, 4, 7, 10, 13), replaySlowProcessor(FrameThrottle.Policy.DROP_NEWEST));
+    }
+
+    @Test
+    public void latencyIsTakenFromDeliveryOfTheReportedFrame() {
+        final FrameThrottle<Integer> throttle = newThrottle(FrameThrottle.Policy.DROP_OLDEST);
+        offer(throttle, 1);
+        mNow += 10;
+        offer(throttle, 2);
+        mNow += 30;
+
+        /* out of delivery order */
+        assertEquals(30, throttle.onFrameProcessed(2));
+        mNow += 5;
+        assertEquals(45, throttle.onFrameProcessed(1));
+        assertEquals(0, throttle.getQueueDepth());
+    }
+
+    @Test
+    public void unknownKeysAreIgnored() {
+        final FrameThrottle<Integer> throttle = newThrottle(FrameThrottle.Policy.DROP_OLDEST);
+        offer(throttle, 1);
+        offer(throttle, 2);
+        offer(throttle, 3);
+
+        assertEquals(-1, throttle.onFrameProcessed(7));
+        assertEquals(Arrays.asList(1, 2), mDelivered);
+        assertEquals(3, throttle.getQueueDepth());
+        /* a second report of the same frame is ignored as well */
+        throttle.onFrameProcessed(1);
+        assertEquals(-1, throttle.onFrameProcessed(1));
+        assertEquals(2, throttle.getQueueDepth());
+    }
+
+    @Test
+    public void framesAreWrittenOffAfterTimeout() {
+        final FrameThrottle<Integer> throttle = newThrottle(FrameThrottle.Policy.DROP_OLDEST);
+        offer(throttle, 1);
+        offer(throttle, 2);
+        mNow += TIMEOUT_MS - 1;
+        offer(throttle, 3);
+        assertEquals(Arrays.asList(1, 2), mDelivered);
+        assertEquals(0, throttle.getLostCount());
+
+        mNow += 1;
+        offer(throttle, 4);
+        assertEquals(2, throttle.getLostCount());
+        assertEquals(Arrays.asList(1, 2, 4), mDelivered);
+        /* 3 stays pending, 4 took one of the two slots */
+        assertEquals(Arrays.asList(), mReleased);
+    }
+
+    @Test
+    public void lateReportOfWrittenOffFrameKeepsNewFramesInFlight() {
+        final FrameThrottle<Integer> throttle = newThrottle(FrameThrottle.Policy.DROP_OLDEST);
+        offer(throttle, 1);
+        offer(throttle, 2);
+        mNow += TIMEOUT_MS;
+        offer(throttle, 3);
+        offer(throttle, 4);
+        offer(throttle, 5);
+        assertEquals(Arrays.asList(1, 2, 3, 4), mDelivered);
+        assertEquals(3, throttle.getQueueDepth());
+
+        /* the frames written off complete after all, slots of 3 and 4 stay taken */
+        assertEquals(-1, throttle.onFrameProcessed(1));
+        assertEquals(-1, throttle.onFrameProcessed(2));
+        assertEquals(Arrays.asList(1, 2, 3, 4), mDelivered);
+        assertEquals(3, throttle.getQueueDepth());
+
+        mNow += 20;
+        assertEquals(20, throttle.onFrameProcessed(3));
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), mDelivered);
+    }
+
+    @Test
+    public void resetForgetsFramesInFlight() {
+        final FrameThrottle<Integer> throttle = newThrottle(FrameThrottle.Policy.DROP_OLDEST);
+        offer(throttle, 1);
+        offer(throttle, 2);
+        offer(throttle, 3);
+        throttle.reset();
+        assertEquals(Arrays.asList(3), mReleased);
+        assertEquals(0, throttle.getQueueDepth());
+
+        offer(throttle, 4);
+        offer(throttle, 5);
+        offer(throttle, 6);
+        assertEquals(-1, throttle.onFrameProcessed(1));
+        assertEquals(3, throttle.getQueueDepth());
+    }
+
+    @Test
+    public void failingConsumerFreesItsSlot() {
+        final FrameThrottle<Integer> throttle = new FrameThrottle<>(1, FrameThrottle.Policy.DROP_OLDEST, TIMEOUT_MS,
+                () -> mNow, frame -> {
+                    throw new IllegalStateException("frame " + frame);
+                }, mReleased::add);
+        try {
+            offer(throttle, 1);
+            fail("The consumer exception is passed on");
+        } catch (IllegalStateException expected) {
+            /* the frame is not in flight */
+        }
+        assertEquals(0, throttle.getQueueDepth());
+        assertEquals(-1, throttle.onFrameProcessed(1));
+    }
+
+    /* Frames arrive every 33 ms and take 100 ms each, returns the first delivered ones once all are accounted for */
+    private List<Integer> replaySlowProcessor(FrameThrottle.Policy policy) {
+        final int frames = 30;
+        final ArrayDeque<Integer> queue = new ArrayDeque<>();
+        final List<Integer> delivered = new ArrayList<>();
+        final FrameThrottle<Integer> throttle = new FrameThrottle<>(2, policy, TIMEOUT_MS, () -> mNow,
+                frame -> {
+                    delivered.add(frame);
+                    queue.add(frame);
+                }, mReleased::add);
+        long finishTime = -1;
+        for (mNow = 0; mNow < frames * 33 || !queue.isEmpty(); mNow++) {
+            if (finishTime == mNow) {
+                finishTime = -1;
+                throttle.onFrameProcessed(queue.poll());
+            }
+            if (mNow % 33 == 0 && mNow / 33 < frames) {
+                offer(throttle, (int) (mNow / 33));
+            }
+            if (finishTime < 0 && !queue.isEmpty()) {
+                finishTime = mNow + 100;
+            }
+        }
+        assertEquals(frames, throttle.getDeliveredCount() + throttle.getDroppedCount());
+        assertEquals(0, throttle.getQueueDepth());
+        return delivered.subList(0, 6);
+    }
+}
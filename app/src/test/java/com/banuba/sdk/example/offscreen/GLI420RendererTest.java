@@ -0,0 +1,154 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class GLI420RendererTest {
+    private static final int CHROMA_BYTES = 64 * 32 * 2;
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 32;
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 20000;
+
+    private static void assumeAddressesAreReadable() {
+        assumeTrue(DirectBuffers.addressOf(ByteBuffer.allocateDirect(1)) >= 0);
+    }
+
+    /* U and V planes of a YUV_420_888 image with pixel stride 2, as ImageReader hands them out */
+    private static ByteBuffer plane(ByteBuffer block, int offset) {
+        final ByteBuffer plane = block.duplicate();
+        plane.position(offset).limit(offset + CHROMA_BYTES - 1);
+        return plane.slice();
+    }
+
+    @Test
+    public void nv21MemoryIsDetected() {
+        assumeAddressesAreReadable();
+        final ByteBuffer block = ByteBuffer.allocateDirect(CHROMA_BYTES);
+        final ByteBuffer v = plane(block, 0);
+        final ByteBuffer u = plane(block, 1);
+        assertEquals(GLI420Renderer.CHROMA_ORDER_VU, GLI420Renderer.chromaOrder(u, v));
+    }
+
+    @Test
+    public void nv12MemoryIsDetected() {
+        assumeAddressesAreReadable();
+        final ByteBuffer block = ByteBuffer.allocateDirect(CHROMA_BYTES);
+        final ByteBuffer u = plane(block, 0);
+        final ByteBuffer v = plane(block, 1);
+        assertEquals(GLI420Renderer.CHROMA_ORDER_UV, GLI420Renderer.chromaOrder(u, v));
+    }
+
+    @Test
+    public void planePositionIsTakenIntoAccount() {
+        assumeAddressesAreReadable();
+        final ByteBuffer block = ByteBuffer.allocateDirect(CHROMA_BYTES);
+        final ByteBuffer v = block.duplicate();
+        final ByteBuffer u = block.duplicate();
+        u.position(1);
+        assertEquals(GLI420Renderer.CHROMA_ORDER_VU, GLI420Renderer.chromaOrder(u, v));
+        assertEquals(GLI420Renderer.CHROMA_ORDER_UV, GLI420Renderer.chromaOrder(v, u));
+    }
+
+    @Test
+    public void separatePlanesAreNotInterleaved() {
+        assumeAddressesAreReadable();
+        final ByteBuffer u = ByteBuffer.allocateDirect(CHROMA_BYTES);
+        final ByteBuffer v = ByteBuffer.allocateDirect(CHROMA_BYTES);
+        assertEquals(GLI420Renderer.CHROMA_ORDER_UNKNOWN, GLI420Renderer.chromaOrder(u, v));
+    }
+
+    /* Heap buffers have no readable address, their chroma order is unknown and they are de-interleaved */
+    @Test
+    public void unknownChromaOrderIsRepackedToI420() {
+        final GLI420Renderer renderer = new GLI420Renderer();
+        final List<ByteBuffer> released = new ArrayList<>();
+        renderer.setFrameReleaseListener(released::add);
+        renderer.setRepacker(new YuvRepacker(new BuffersQueue(new PoolSizingPolicy(1, 4, 5000, () -> 0)), null));
+
+        final ByteBuffer frame = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+        for (int i = 0; i < frame.capacity(); i++) {
+            frame.put(i, (byte) i);
+        }
+        final ByteBuffer y = plane(frame, 0, WIDTH * HEIGHT);
+        final ByteBuffer u = plane(frame, WIDTH * HEIGHT, WIDTH * HEIGHT / 2 - 1);
+        final ByteBuffer v = plane(frame, WIDTH * HEIGHT + 1, WIDTH * HEIGHT / 2 - 1);
+        assertEquals(GLI420Renderer.CHROMA_ORDER_UNKNOWN, GLI420Renderer.chromaOrder(u, v));
+
+        renderer.drawYuv420Image(y, WIDTH, u, WIDTH, v, WIDTH, 2, WIDTH, HEIGHT, 0, frame);
+        /* the pixels were copied, the frame is given back right away */
+        assertEquals(1, released.size());
+        assertSame(frame, released.get(0));
+
+        /* the next image supersedes the repacked one */
+        renderer.drawYuv420Image(y, WIDTH, u, WIDTH, v, WIDTH, 2, WIDTH, HEIGHT, 0, null);
+        assertEquals(2, released.size());
+        final ByteBuffer packed = released.get(1);
+        final int chromaSize = WIDTH * HEIGHT / 4;
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            assertEquals(frame.get(i), packed.get(i));
+        }
+        for (int i = 0; i < chromaSize; i++) {
+            assertEquals(u.get(2 * i), packed.get(WIDTH * HEIGHT + i));
+            assertEquals(v.get(2 * i), packed.get(WIDTH * HEIGHT + chromaSize + i));
+        }
+    }
+
+    @Test
+    public void unknownChromaOrderIsDroppedWithoutRepacker() {
+        final GLI420Renderer renderer = new GLI420Renderer();
+        final List<ByteBuffer> released = new ArrayList<>();
+        renderer.setFrameReleaseListener(released::add);
+        final ByteBuffer frame = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+        final ByteBuffer y = plane(frame, 0, WIDTH * HEIGHT);
+        final ByteBuffer u = plane(frame, WIDTH * HEIGHT, WIDTH * HEIGHT / 2 - 1);
+        final ByteBuffer v = plane(frame, WIDTH * HEIGHT + 1, WIDTH * HEIGHT / 2 - 1);
+
+        renderer.drawYuv420Image(y, WIDTH, u, WIDTH, v, WIDTH, 2, WIDTH, HEIGHT, 0, frame);
+        assertEquals(1, released.size());
+        assertEquals(1, renderer.getDroppedFrameCount());
+    }
+
+    /* Images pushed faster than they are drawn replace each other, which must not allocate either */
+    @Test
+    public void pushingImagesDoesNotAllocate() {
+        final GLI420Renderer renderer = new GLI420Renderer();
+        final long[] released = new long[1];
+        renderer.setFrameReleaseListener(frame -> released[0]++);
+        final ByteBuffer frame = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 3 / 2);
+        final ByteBuffer y = plane(frame, 0, WIDTH * HEIGHT);
+        final ByteBuffer u = plane(frame, WIDTH * HEIGHT, WIDTH * HEIGHT / 4);
+        final ByteBuffer v = plane(frame, WIDTH * HEIGHT * 5 / 4, WIDTH * HEIGHT / 4);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            renderer.drawI420Image(y, WIDTH, u, WIDTH / 2, v, WIDTH / 2, WIDTH, HEIGHT, 90, frame);
+        }
+
+        final long heapBefore = AllocationCounter.currentThreadBytes();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            renderer.drawI420Image(y, WIDTH, u, WIDTH / 2, v, WIDTH / 2, WIDTH, HEIGHT, 90, frame);
+        }
+        final long heapAfter = AllocationCounter.currentThreadBytes();
+
+        /* all but the newest image were superseded and given back */
+        assertEquals(WARMUP_FRAMES + MEASURED_FRAMES - 1, released[0]);
+        if (heapBefore >= 0) {
+            final long heapBytes = heapAfter - heapBefore;
+            assertTrue("Heap bytes allocated by pushing images: " + heapBytes, heapBytes < MEASURED_FRAMES);
+        }
+    }
+
+    private static ByteBuffer plane(ByteBuffer frame, int offset, int size) {
+        final ByteBuffer plane = frame.duplicate();
+        plane.position(offset).limit(offset + size);
+        return plane.slice();
+    }
+}
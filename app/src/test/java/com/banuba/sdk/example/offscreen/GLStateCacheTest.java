@@ -0,0 +1,87 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import org.junit.Test;
+
+/* GL calls are stubs off device, the counters tell which calls were issued */
+public class GLStateCacheTest {
+    private final GLStateCache mState = new GLStateCache();
+
+    private void assertLastFrame(int issued, int elided) {
+        mState.beginFrame();
+        assertEquals(issued, mState.getLastFrameIssuedCount());
+        assertEquals(elided, mState.getLastFrameElidedCount());
+    }
+
+    /* the calls a frame of the renderer makes */
+    private void drawFrame() {
+        mState.useProgram(3);
+        mState.bindVertexArray(4);
+        mState.bindBuffer(GLES20.GL_ARRAY_BUFFER, 5);
+        mState.pixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        mState.bindTexture(0, 10);
+        mState.bindTexture(1, 11);
+        mState.bindTexture(2, 12);
+    }
+
+    @Test
+    public void repeatedStateIsElided() {
+        drawFrame();
+        /* every texture bind activates its unit */
+        assertLastFrame(10, 0);
+
+        drawFrame();
+        assertLastFrame(0, 7);
+        assertEquals(10, mState.getIssuedCount());
+        assertEquals(7, mState.getElidedCount());
+    }
+
+    @Test
+    public void changedStateIsIssued() {
+        drawFrame();
+        mState.beginFrame();
+
+        mState.useProgram(6);
+        mState.bindTexture(1, 13);
+        mState.bindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 5);
+        mState.pixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 64);
+        /* the alignment is set already */
+        mState.pixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        assertLastFrame(5, 1);
+    }
+
+    @Test
+    public void invalidateIssuesEveryCallAgain() {
+        drawFrame();
+        mState.beginFrame();
+
+        mState.invalidate();
+        drawFrame();
+        assertLastFrame(10, 0);
+    }
+
+    @Test
+    public void deletedObjectsAreBoundAgain() {
+        drawFrame();
+        mState.beginFrame();
+
+        /* GL may hand the names of deleted objects out again */
+        mState.onTextureDeleted(11);
+        mState.onBufferDeleted(5);
+        mState.onVertexArrayDeleted(4);
+        drawFrame();
+        /* vertex array, buffer, unit 1 and its texture */
+        assertLastFrame(4, 4);
+    }
+
+    @Test
+    public void countersStartAtZero() {
+        assertLastFrame(0, 0);
+        assertEquals(0, mState.getIssuedCount());
+        assertEquals(0, mState.getElidedCount());
+    }
+}
@@ -0,0 +1,91 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+public class PoolSizingPolicyTest {
+    private static final long WINDOW = 1000;
+
+    private long mNow = 10000;
+    private final PoolSizingPolicy mPolicy = new PoolSizingPolicy(2, 6, WINDOW, () -> mNow);
+
+    @Test
+    public void startsAtHighWatermark() {
+        assertEquals(6, mPolicy.getTarget());
+    }
+
+    @Test
+    public void lightTrimLevelsKeepTarget() {
+        assertEquals(6, mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(6, mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW - 1));
+    }
+
+    @Test
+    public void runningLowShrinksToLowWatermark() {
+        assertEquals(2, mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(2, mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(2, mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+    }
+
+    @Test
+    public void backgroundLevelsDropEverything() {
+        assertEquals(0, mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertEquals(0, mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+        /* a lighter level afterwards does not grow the pool */
+        assertEquals(0, mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+    }
+
+    @Test
+    public void doesNotGrowDuringQuietPeriod() {
+        mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        mNow += WINDOW - 1;
+        assertEquals(2, mPolicy.onInFlight(5));
+        mNow += 1;
+        /* the quiet period is over, the window that ends follows its peak */
+        assertEquals(5, mPolicy.onInFlight(5));
+    }
+
+    @Test
+    public void growsRightAwayWhenPipelineNeedsMore() {
+        shrinkAndWaitOut();
+        assertEquals(2, mPolicy.onInFlight(1));
+        assertEquals(4, mPolicy.onInFlight(4));
+        assertEquals(6, mPolicy.onInFlight(9));
+    }
+
+    @Test
+    public void followsWindowPeakDown() {
+        mNow += 10;
+        mPolicy.onInFlight(3);
+        mNow += WINDOW;
+        /* the window peaked at 3 */
+        assertEquals(3, mPolicy.onInFlight(1));
+        mNow += WINDOW;
+        /* nothing above 1 in the last window, the low watermark bounds the target */
+        assertEquals(2, mPolicy.onInFlight(1));
+    }
+
+    @Test
+    public void pressureResetsWindowPeak() {
+        mPolicy.onInFlight(6);
+        mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        mNow += WINDOW;
+        /* the peak before the pressure is forgotten */
+        assertEquals(2, mPolicy.onInFlight(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedWatermarks() {
+        new PoolSizingPolicy(4, 3, WINDOW, () -> 0);
+    }
+
+    /* Shrinks to the low watermark and waits out the quiet period with a fresh window */
+    private void shrinkAndWaitOut() {
+        mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        mNow += WINDOW;
+        mPolicy.onInFlight(0);
+    }
+}
@@ -0,0 +1,150 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class ProgramBinaryStoreTest {
+    private static final String DRIVER = "vendor|renderer|OpenGL ES 3.2|build";
+    private static final int FORMAT = 0x8741;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File mDirectory;
+    private ProgramBinaryStore mStore;
+    private String mKey;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(folder.getRoot(), "programs");
+        mStore = new ProgramBinaryStore(mDirectory);
+        mKey = ProgramBinaryStore.keyOf("vertex", "fragment");
+    }
+
+    private static byte[] binary(int length) {
+        final byte[] binary = new byte[length];
+        for (int i = 0; i < length; i++) {
+            binary[i] = (byte) (i * 7);
+        }
+        return binary;
+    }
+
+    private File fileOf(String key) {
+        return new File(mDirectory, key + ".bin");
+    }
+
+    @Test
+    public void keyDependsOnBothSources() {
+        assertEquals(64, mKey.length());
+        assertEquals(mKey, ProgramBinaryStore.keyOf("vertex", "fragment"));
+        assertNotEquals(mKey, ProgramBinaryStore.keyOf("vertex", "fragment2"));
+        /* the separator keeps sources from running into each other */
+        assertNotEquals(ProgramBinaryStore.keyOf("ab", "c"), ProgramBinaryStore.keyOf("a", "bc"));
+    }
+
+    @Test
+    public void savedBinaryIsLoaded() {
+        assertTrue(mStore.save(mKey, DRIVER, new ProgramBinaryStore.Entry(FORMAT, binary(1000))));
+
+        final ProgramBinaryStore.Entry entry = mStore.load(mKey, DRIVER);
+        assertNotNull(entry);
+        assertEquals(FORMAT, entry.format);
+        assertArrayEquals(binary(1000), entry.binary);
+        /* no temporary file is left behind */
+        assertEquals(1, mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void missingBinaryIsNull() {
+        assertNull(mStore.load(mKey, DRIVER));
+    }
+
+    @Test
+    public void binaryOfAnotherDriverIsDeleted() {
+        mStore.save(mKey, DRIVER, new ProgramBinaryStore.Entry(FORMAT, binary(100)));
+
+        assertNull(mStore.load(mKey, DRIVER + " updated"));
+        assertFalse(fileOf(mKey).exists());
+    }
+
+    @Test
+    public void corruptedLengthIsRejectedWithoutAllocating() throws IOException {
+        mStore.save(mKey, DRIVER, new ProgramBinaryStore.Entry(FORMAT, binary(100)));
+        final File file = fileOf(mKey);
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            /* the length is the last int before the binary */
+            raw.seek(file.length() - 100 - 4);
+            raw.writeInt(Integer.MAX_VALUE - 8);
+        }
+
+        assertNull(mStore.load(mKey, DRIVER));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void negativeLengthIsRejected() throws IOException {
+        mStore.save(mKey, DRIVER, new ProgramBinaryStore.Entry(FORMAT, binary(100)));
+        final File file = fileOf(mKey);
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(file.length() - 100 - 4);
+            raw.writeInt(-1);
+        }
+
+        assertNull(mStore.load(mKey, DRIVER));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void truncatedBinaryIsDeleted() throws IOException {
+        mStore.save(mKey, DRIVER, new ProgramBinaryStore.Entry(FORMAT, binary(100)));
+        final File file = fileOf(mKey);
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.setLength(file.length() - 10);
+        }
+
+        assertNull(mStore.load(mKey, DRIVER));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void foreignFileIsDeleted() throws IOException {
+        assertTrue(mDirectory.mkdirs());
+        final File file = fileOf(mKey);
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.writeInt(0x12345678);
+        }
+
+        assertNull(mStore.load(mKey, DRIVER));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void saveReplacesAndClearRemoves() {
+        mStore.save(mKey, DRIVER, new ProgramBinaryStore.Entry(FORMAT, binary(100)));
+        mStore.save(mKey, DRIVER, new ProgramBinaryStore.Entry(FORMAT + 1, binary(50)));
+        final ProgramBinaryStore.Entry entry = mStore.load(mKey, DRIVER);
+        assertNotNull(entry);
+        assertEquals(FORMAT + 1, entry.format);
+        assertEquals(50, entry.binary.length);
+
+        final String other = ProgramBinaryStore.keyOf("vertex", "other");
+        mStore.save(other, DRIVER, new ProgramBinaryStore.Entry(FORMAT, binary(10)));
+        mStore.clear();
+        assertNull(mStore.load(mKey, DRIVER));
+        assertNull(mStore.load(other, DRIVER));
+    }
+}
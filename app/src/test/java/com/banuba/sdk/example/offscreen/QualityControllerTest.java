@@ -0,0 +1,153 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* Latency traces replayed against a fake clock, frames arrive every 10 ms */
+public class QualityControllerTest {
+    private static final long FRAME_INTERVAL = 10;
+    private static final long START = 10000;
+
+    /* every level has a budget of 33 ms, the high one processes 4 times the pixels of the middle one */
+    private static final List<QualityController.Level> LEVELS = Arrays.asList(
+            new QualityController.Level("low", 1280, 720, 15, 30, 640, 360),
+            new QualityController.Level("middle", 1280, 720, 15, 30, 960, 540),
+            new QualityController.Level("high", 1920, 1080, 15, 30, 1920, 1080)
+    );
+
+    private long mNow = START;
+    private final List<Integer> mChangedIndexes = new ArrayList<>();
+    private final List<Long> mChangeTimes = new ArrayList<>();
+    private final List<String> mReasons = new ArrayList<>();
+    private final QualityController mController = new QualityController(LEVELS, 2, () -> mNow,
+            (index, level, reason) -> {
+                mChangedIndexes.add(index);
+                mChangeTimes.add(mNow);
+                mReasons.add(reason);
+            });
+
+    /* Feeds the latency for the duration or until the level changes, returns the time of the change or -1 */
+    private long replay(long latencyMillis, long durationMillis) {
+        final int changes = mChangedIndexes.size();
+        final long end = mNow + durationMillis;
+        while (mNow < end) {
+            mNow += FRAME_INTERVAL;
+            mController.onFrameLatency(latencyMillis);
+            if (mChangedIndexes.size() > changes) {
+                return mNow;
+            }
+        }
+        return -1;
+    }
+
+    /* Moves to the middle level at the current time */
+    private void startAtMiddleLevel() {
+        mController.onThermalStatus(QualityController.THERMAL_STATUS_MODERATE);
+        mController.onThermalStatus(QualityController.THERMAL_STATUS_NONE);
+        assertEquals(1, mController.getLevelIndex());
+    }
+
+    @Test
+    public void downgradesAfterTheHold() {
+        /* within the budget, but not low enough to upgrade */
+        assertEquals(-1, replay(20, 3000));
+        /* the average crosses 90% of the budget on the 7th frame, the level holds one more second */
+        assertEquals(START + 3000 + 70 + 1000, replay(40, 2000));
+        assertEquals(1, mController.getLevelIndex());
+        assertEquals(-1, mController.getAverageLatencyMillis(), 0);
+    }
+
+    @Test
+    public void shortSpikesDoNotDowngrade() {
+        assertEquals(-1, replay(20, 3000));
+        for (int i = 0; i < 10; i++) {
+            /* 0.5 s over the budget, then back */
+            assertEquals(-1, replay(60, 500));
+            assertEquals(-1, replay(10, 1000));
+        }
+        assertEquals(2, mController.getLevelIndex());
+    }
+
+    @Test
+    public void upgradesOnlyWhenThePredictedLatencyFits() {
+        startAtMiddleLevel();
+        /* 10 ms is under half the budget, 4 times the pixels would take 40 ms */
+        assertEquals(-1, replay(10, 20000));
+        /* the average falls under 29.7 / 4 ms on the 19th frame of 7 ms */
+        assertEquals(START + 20000 + 190, replay(7, 1000));
+        assertEquals(2, mController.getLevelIndex());
+        assertTrue(mReasons.get(mReasons.size() - 1), mReasons.get(mReasons.size() - 1).endsWith("30 ms expected"));
+    }
+
+    @Test
+    public void revertedUpgradesDoubleTheWait() {
+        startAtMiddleLevel();
+        /* the first upgrade waits out the 5 s hold */
+        final long firstUpgrade = replay(5, 10000);
+        assertEquals(START + FRAME_INTERVAL + 5000, firstUpgrade);
+        /* the new level is too slow and is taken back after the minimum time at a level */
+        final long firstRevert = replay(40, 10000);
+        assertEquals(firstUpgrade + 3000, firstRevert);
+        assertEquals(1, mController.getLevelIndex());
+
+        /* the second upgrade waits twice as long */
+        final long secondUpgrade = replay(5, 20000);
+        assertEquals(firstRevert + FRAME_INTERVAL + 10000, secondUpgrade);
+        final long secondRevert = replay(40, 10000);
+
+        /* and the third one four times as long */
+        assertEquals(secondRevert + FRAME_INTERVAL + 20000, replay(5, 30000));
+        assertEquals(Arrays.asList(1, 2, 1, 2, 1, 2), mChangedIndexes);
+    }
+
+    @Test
+    public void upgradesThatHoldResetTheWait() {
+        startAtMiddleLevel();
+        replay(5, 10000);
+        replay(40, 10000);
+        /* the second upgrade holds past the probation */
+        final long secondUpgrade = replay(5, 20000);
+        assertEquals(-1, replay(20, 10000));
+        final long revert = replay(40, 10000);
+        assertEquals(secondUpgrade + 10000 + 70 + 1000, revert);
+
+        /* the revert came after the probation, the next upgrade waits the plain hold */
+        assertEquals(revert + FRAME_INTERVAL + 5000, replay(5, 20000));
+    }
+
+    @Test
+    public void thermalStatusCapsTheLevel() {
+        /* LIGHT keeps the level */
+        mController.onThermalStatus(QualityController.THERMAL_STATUS_LIGHT);
+        assertEquals(2, mController.getLevelIndex());
+        /* MODERATE allows one level below the initial one */
+        mController.onThermalStatus(QualityController.THERMAL_STATUS_MODERATE);
+        assertEquals(1, mController.getLevelIndex());
+        /* SEVERE allows the lowest level only */
+        mController.onThermalStatus(QualityController.THERMAL_STATUS_SEVERE);
+        assertEquals(0, mController.getLevelIndex());
+        assertEquals(Arrays.asList(1, 0), mChangedIndexes);
+        assertEquals(Arrays.asList(START, START), mChangeTimes);
+
+        /* under SEVERE and LIGHT low latency does not upgrade */
+        assertEquals(-1, replay(5, 10000));
+        mController.onThermalStatus(QualityController.THERMAL_STATUS_LIGHT);
+        assertEquals(-1, replay(5, 10000));
+        /* MODERATE lets it go one level up */
+        mController.onThermalStatus(QualityController.THERMAL_STATUS_MODERATE);
+        assertTrue(replay(5, 10000) > 0);
+        assertEquals(1, mController.getLevelIndex());
+        assertEquals(-1, replay(5, 20000));
+        /* and NONE up to the initial level */
+        mController.onThermalStatus(QualityController.THERMAL_STATUS_NONE);
+        assertTrue(replay(5, 10000) > 0);
+        assertEquals(2, mController.getLevelIndex());
+        assertEquals(-1, replay(1, 30000));
+    }
+}
@@ -0,0 +1,342 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TextureUploaderTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 32;
+    private static final int Y_STRIDE = 80;
+    private static final int UV_STRIDE = 48;
+
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 20000;
+
+    /* Records the GL calls, unpack buffers are kept in client memory */
+    static class RecordingBackend implements GLUploadBackend {
+        final List<String> calls = new ArrayList<>();
+        final Map<Integer, ByteBuffer> bufferStorage = new HashMap<>();
+        int boundBuffer = 0;
+        int lastName = 0;
+        long lastFence = 0;
+        long texSubImageBytes = 0;
+
+        int count(String prefix) {
+            int count = 0;
+            for (String call : calls) {
+                if (call.startsWith(prefix)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public int createTexture() {
+            calls.add("createTexture");
+            return ++lastName;
+        }
+
+        @Override
+        public void deleteTexture(int texture) {
+            calls.add("deleteTexture " + texture);
+        }
+
+        @Override
+        public void bindTexture(int unit, int texture) {
+            calls.add("bindTexture " + unit + " " + texture);
+        }
+
+        @Override
+        public void allocateTextureStorage(int width, int height, int bytesPerPixel) {
+            calls.add("allocateTextureStorage " + width + "x" + height);
+        }
+
+        @Override
+        public void setUnpackRowLength(int pixels) {
+            calls.add("setUnpackRowLength " + pixels);
+        }
+
+        @Override
+        public void texSubImage(int width, int height, int bytesPerPixel, @NonNull ByteBuffer data) {
+            assertEquals("Client memory upload with an unpack buffer bound", 0, boundBuffer);
+            calls.add("texSubImage " + width + "x" + height);
+            texSubImageBytes += (long) width * height * bytesPerPixel;
+        }
+
+        @Override
+        public void texSubImageFromUnpackBuffer(int width, int height, int bytesPerPixel, int offset) {
+            assertTrue(boundBuffer != 0);
+            calls.add("texSubImageFromUnpackBuffer " + boundBuffer + " " + offset);
+            texSubImageBytes += (long) width * height * bytesPerPixel;
+        }
+
+        @Override
+        public int createBuffer() {
+            calls.add("createBuffer");
+            return ++lastName;
+        }
+
+        @Override
+        public void deleteBuffer(int buffer) {
+            calls.add("deleteBuffer " + buffer);
+        }
+
+        @Override
+        public void bindUnpackBuffer(int buffer) {
+            boundBuffer = buffer;
+        }
+
+        @Override
+        public void allocateUnpackBuffer(int size) {
+            calls.add("allocateUnpackBuffer " + boundBuffer + " " + size);
+            bufferStorage.put(boundBuffer, ByteBuffer.allocateDirect(size));
+        }
+
+        @Override
+        public void writeUnpackBuffer(int offset, @NonNull ByteBuffer data) {
+            calls.add("writeUnpackBuffer " + boundBuffer + " " + offset);
+            final ByteBuffer storage = bufferStorage.get(boundBuffer);
+            assertTrue(offset + data.remaining() <= storage.capacity());
+            for (int i = 0; i < data.remaining(); i++) {
+                storage.put(offset + i, data.get(data.position() + i));
+            }
+        }
+
+        @Override
+        public long insertFence() {
+            calls.add("insertFence " + boundBuffer);
+            return ++lastFence;
+        }
+
+        @Override
+        public void waitFence(long fence) {
+            calls.add("waitFence " + fence);
+        }
+
+        @Override
+        public void deleteFence(long fence) {
+            calls.add("deleteFence " + fence);
+        }
+    }
+
+    /* Counts calls without allocating, for the allocation tests */
+    static class CountingBackend implements GLUploadBackend {
+        int lastName = 0;
+        long writtenBytes = 0;
+        long uploadCount = 0;
+
+        @Override
+        public int createTexture() {
+            return ++lastName;
+        }
+
+        @Override
+        public void deleteTexture(int texture) {
+        }
+
+        @Override
+        public void bindTexture(int unit, int texture) {
+        }
+
+        @Override
+        public void allocateTextureStorage(int width, int height, int bytesPerPixel) {
+        }
+
+        @Override
+        public void setUnpackRowLength(int pixels) {
+        }
+
+        @Override
+        public void texSubImage(int width, int height, int bytesPerPixel, @NonNull ByteBuffer data) {
+            uploadCount++;
+        }
+
+        @Override
+        public void texSubImageFromUnpackBuffer(int width, int height, int bytesPerPixel, int offset) {
+            uploadCount++;
+        }
+
+        @Override
+        public int createBuffer() {
+            return ++lastName;
+        }
+
+        @Override
+        public void deleteBuffer(int buffer) {
+        }
+
+        @Override
+        public void bindUnpackBuffer(int buffer) {
+        }
+
+        @Override
+        public void allocateUnpackBuffer(int size) {
+        }
+
+        @Override
+        public void writeUnpackBuffer(int offset, @NonNull ByteBuffer data) {
+            writtenBytes += data.remaining();
+        }
+
+        @Override
+        public long insertFence() {
+            return 1;
+        }
+
+        @Override
+        public void waitFence(long fence) {
+        }
+
+        @Override
+        public void deleteFence(long fence) {
+        }
+    }
+
+    private static final class Image {
+        final ByteBuffer[] planes = new ByteBuffer[3];
+        final int[] strides = {Y_STRIDE, UV_STRIDE, UV_STRIDE};
+        final int[] widths = {WIDTH, WIDTH / 2, WIDTH / 2};
+        final int[] heights = {HEIGHT, HEIGHT / 2, HEIGHT / 2};
+        final int[] bytesPerPixel = {1, 1, 1};
+
+        Image() {
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = ByteBuffer.allocateDirect(strides[i] * heights[i]);
+                for (int j = 0; j < planes[i].capacity(); j++) {
+                    planes[i].put(j, (byte) (i * 31 + j));
+                }
+            }
+        }
+
+        long visibleBytes() {
+            return (long) WIDTH * HEIGHT + 2L * (WIDTH / 2) * (HEIGHT / 2);
+        }
+
+        void uploadTo(TextureUploader uploader) {
+            uploader.upload(3, planes, strides, widths, heights, bytesPerPixel);
+        }
+    }
+
+    @Test
+    public void textureStorageIsAllocatedOncePerSize() {
+        final RecordingBackend gl = new RecordingBackend();
+        final TextureUploader uploader = new TextureUploader(gl, 3, 0);
+        final Image image = new Image();
+        for (int i = 0; i < 10; i++) {
+            image.uploadTo(uploader);
+        }
+
+        assertEquals(3, gl.count("allocateTextureStorage"));
+        assertEquals(30, gl.count("texSubImage "));
+        assertEquals(10 * image.visibleBytes(), uploader.getUploadedBytes());
+        assertEquals(uploader.getUploadedBytes(), gl.texSubImageBytes);
+    }
+
+    @Test
+    public void unpackBuffersAreAllocatedOnceAndFenced() {
+        final RecordingBackend gl = new RecordingBackend();
+        final TextureUploader uploader = new TextureUploader(gl, 3, 3);
+        final Image image = new Image();
+        for (int i = 0; i < 10; i++) {
+            image.uploadTo(uploader);
+        }
+
+        assertEquals(3, gl.count("createBuffer"));
+        assertEquals("Unpack buffer storage is never orphaned", 3, gl.count("allocateUnpackBuffer"));
+        assertEquals(10, gl.count("insertFence"));
+        /* every buffer after its first round waits for the fence of its previous use */
+        assertEquals(7, gl.count("waitFence"));
+        assertEquals(10 * image.visibleBytes(), uploader.getUploadedBytes());
+        assertEquals(uploader.getUploadedBytes(), gl.texSubImageBytes);
+        assertEquals(0, gl.boundBuffer);
+
+        /* frame 10 writes buffer 4 again: it waits for the fence of frame 7 and sets one after its uploads */
+        final int lastWait = gl.calls.lastIndexOf("waitFence 7");
+        assertEquals("writeUnpackBuffer 4 0", gl.calls.get(lastWait + 1));
+        assertEquals("insertFence 4", gl.calls.get(gl.calls.size() - 1));
+        assertEquals("texSubImageFromUnpackBuffer 4 " + offsetOfPlane(2), gl.calls.get(gl.calls.size() - 2));
+    }
+
+    @Test
+    public void unpackBufferHoldsPlanesAtTheirOffsets() {
+        final RecordingBackend gl = new RecordingBackend();
+        final TextureUploader uploader = new TextureUploader(gl, 3, 2);
+        final Image image = new Image();
+        image.uploadTo(uploader);
+
+        final ByteBuffer storage = gl.bufferStorage.get(4);
+        for (int i = 0; i < 3; i++) {
+            final int offset = offsetOfPlane(i);
+            for (int j = 0; j < image.planes[i].capacity(); j++) {
+                assertEquals(image.planes[i].get(j), storage.get(offset + j));
+            }
+        }
+    }
+
+    @Test
+    public void releaseDeletesPendingFences() {
+        final RecordingBackend gl = new RecordingBackend();
+        final TextureUploader uploader = new TextureUploader(gl, 3, 2);
+        final Image image = new Image();
+        image.uploadTo(uploader);
+        image.uploadTo(uploader);
+        uploader.release();
+
+        assertEquals(2, gl.count("deleteFence"));
+        assertEquals(2, gl.count("deleteBuffer"));
+        assertEquals(3, gl.count("deleteTexture"));
+    }
+
+    @Test
+    public void clientMemoryUploadsDoNotAllocate() {
+        assertSteadyStateAllocationFree(0);
+    }
+
+    @Test
+    public void unpackBufferUploadsDoNotAllocate() {
+        assertSteadyStateAllocationFree(3);
+    }
+
+    private static void assertSteadyStateAllocationFree(int unpackBufferCount) {
+        final CountingBackend gl = new CountingBackend();
+        final TextureUploader uploader = new TextureUploader(gl, 3, unpackBufferCount);
+        final Image image = new Image();
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            image.uploadTo(uploader);
+        }
+
+        final long heapBefore = AllocationCounter.currentThreadBytes();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            image.uploadTo(uploader);
+        }
+        final long heapAfter = AllocationCounter.currentThreadBytes();
+
+        assertEquals(3L * (WARMUP_FRAMES + MEASURED_FRAMES), gl.uploadCount);
+        if (heapBefore >= 0) {
+            /* Reading the counter may allocate a little, one object per frame would take 16 bytes or more */
+            final long heapBytes = heapAfter - heapBefore;
+            assertTrue("Heap bytes allocated by uploads: " + heapBytes, heapBytes < MEASURED_FRAMES);
+        }
+    }
+
+    /* Planes are packed 4 bytes aligned in the unpack buffer */
+    private static int offsetOfPlane(int plane) {
+        final int[] sizes = {Y_STRIDE * HEIGHT, UV_STRIDE * HEIGHT / 2, UV_STRIDE * HEIGHT / 2};
+        int offset = 0;
+        for (int i = 0; i < plane; i++) {
+            offset += (sizes[i] + 3) & ~3;
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,130 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TripleBufferMailboxTest {
+    private static final int FRAMES = 500000;
+    private static final int FRAME_WORDS = 64;
+
+    /* Every word holds the sequence number, a frame read while written shows two numbers */
+    private static final class Frame {
+        final long[] words = new long[FRAME_WORDS];
+
+        void write(long sequence) {
+            for (int i = 0; i < FRAME_WORDS; i++) {
+                words[i] = sequence;
+            }
+        }
+
+        long read() {
+            final long sequence = words[0];
+            for (int i = 1; i < FRAME_WORDS; i++) {
+                if (words[i] != sequence) {
+                    throw new AssertionError("Torn frame: " + sequence + " and " + words[i]);
+                }
+            }
+            return sequence;
+        }
+    }
+
+    @Test
+    public void consumerGetsNewestValue() {
+        final TripleBufferMailbox<Frame> mailbox = new TripleBufferMailbox<>(new Frame(), new Frame(), new Frame());
+        assertNull(mailbox.consume());
+
+        mailbox.producerSlot().write(1);
+        assertFalse(mailbox.publish());
+        mailbox.producerSlot().write(2);
+        /* 1 was never consumed and comes back to the producer */
+        assertTrue(mailbox.publish());
+        assertEquals(1, mailbox.producerSlot().read());
+
+        assertEquals(2, mailbox.consume().read());
+        assertNull(mailbox.consume());
+        assertEquals(2, mailbox.getPublishedCount());
+        assertEquals(1, mailbox.getSupersededCount());
+    }
+
+    @Test
+    public void consumedValueStaysUntilNextConsume() {
+        final TripleBufferMailbox<Frame> mailbox = new TripleBufferMailbox<>(new Frame(), new Frame(), new Frame());
+        mailbox.producerSlot().write(1);
+        mailbox.publish();
+        final Frame consumed = mailbox.consume();
+
+        /* the producer cycles through the other two slots only */
+        for (int i = 2; i < 10; i++) {
+            final Frame slot = mailbox.producerSlot();
+            assertTrue(slot != consumed);
+            slot.write(i);
+            mailbox.publish();
+        }
+        assertEquals(1, consumed.read());
+        assertEquals(9, mailbox.consume().read());
+    }
+
+    @Test
+    public void concurrentHandoffLosesDuplicatesAndTearsNothing() throws InterruptedException {
+        final TripleBufferMailbox<Frame> mailbox = new TripleBufferMailbox<>(new Frame(), new Frame(), new Frame());
+        final BitSet consumed = new BitSet(FRAMES);
+        final BitSet superseded = new BitSet(FRAMES);
+        final AtomicBoolean producerDone = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final Thread consumer = new Thread(() -> {
+            try {
+                long last = -1;
+                while (true) {
+                    final boolean done = producerDone.get();
+                    final Frame frame = mailbox.consume();
+                    if (frame == null) {
+                        if (done) {
+                            return;
+                        }
+                        continue;
+                    }
+                    final long sequence = frame.read();
+                    if (sequence <= last) {
+                        throw new AssertionError("Frame " + sequence + " after " + last);
+                    }
+                    last = sequence;
+                    consumed.set((int) sequence);
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        consumer.start();
+
+        for (int sequence = 0; sequence < FRAMES; sequence++) {
+            mailbox.producerSlot().write(sequence);
+            if (mailbox.publish()) {
+                superseded.set((int) mailbox.producerSlot().read());
+            }
+        }
+        producerDone.set(true);
+        consumer.join();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertFalse("A frame was both consumed and superseded", consumed.intersects(superseded));
+        final BitSet all = (BitSet) consumed.clone();
+        all.or(superseded);
+        assertEquals("Frames were lost", FRAMES, all.cardinality());
+        assertEquals(FRAMES, mailbox.getPublishedCount());
+        assertEquals(superseded.cardinality(), mailbox.getSupersededCount());
+        /* the last frame is always delivered */
+        assertTrue(consumed.get(FRAMES - 1));
+        assertNull(mailbox.consume());
+    }
+}
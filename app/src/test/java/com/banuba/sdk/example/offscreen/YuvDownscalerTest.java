@@ -0,0 +1,208 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class YuvDownscalerTest {
+    @Test
+    public void paddedRowsHoldThePackedOutput() {
+        final int width = 1280;
+        final int height = 720;
+        final int outputWidth = 642;
+        final int outputHeight = 360;
+        final int chromaWidth = width / 2;
+        final Random random = new Random(1);
+        final ByteBuffer y = randomBuffer(random, width * height);
+        /* NV21-like interleaved chroma, V and U planes share the memory */
+        final ByteBuffer vu = randomBuffer(random, chromaWidth * 2 * height / 2);
+        final ByteBuffer u = slice(vu, 1);
+        final ByteBuffer v = slice(vu, 0);
+
+        for (YuvDownscaler.Filter filter : YuvDownscaler.Filter.values()) {
+            final YuvDownscaler downscaler = new YuvDownscaler(null, filter);
+            final ByteBuffer packed = ByteBuffer.allocateDirect(YuvRepacker.packedSize(outputWidth, outputHeight));
+            downscaler.downscale(y, width, u, v, chromaWidth * 2, 2, width, height, packed, outputWidth, outputHeight);
+
+            final int yStride = FrameArena.alignedStride(outputWidth);
+            final int uvStride = FrameArena.alignedStride(outputWidth / 2);
+            final ByteBuffer padded = ByteBuffer.allocateDirect(YuvDownscaler.outputSize(outputHeight, yStride, uvStride));
+            downscaler.downscale(y, width, u, v, chromaWidth * 2, 2, width, height,
+                    padded, outputWidth, outputHeight, yStride, uvStride);
+
+            assertPlaneEquals(packed, 0, outputWidth, padded, 0, yStride, outputWidth, outputHeight);
+            final int packedChroma = outputWidth / 2 * outputHeight / 2;
+            final int paddedChroma = uvStride * outputHeight / 2;
+            for (int plane = 0; plane < 2; plane++) {
+                assertPlaneEquals(
+                        packed, outputWidth * outputHeight + plane * packedChroma, outputWidth / 2,
+                        padded, yStride * outputHeight + plane * paddedChroma, uvStride,
+                        outputWidth / 2, outputHeight / 2
+                );
+            }
+        }
+    }
+
+    @Test
+    public void boxAndBilinearMatchReferenceAverages() {
+        /* uneven ratios, box windows of 2 and 3 columns and rows */
+        final int[][] sizes = {{1280, 720, 427, 240}, {640, 480, 320, 240}, {641, 361, 250, 130}};
+        final Random random = new Random(7);
+        for (int[] size : sizes) {
+            final int width = size[0];
+            final int height = size[1];
+            final int outputWidth = size[2];
+            final int outputHeight = size[3];
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            final ByteBuffer y = randomBuffer(random, width * height);
+            final ByteBuffer u = randomBuffer(random, chromaWidth * chromaHeight);
+            final ByteBuffer v = randomBuffer(random, chromaWidth * chromaHeight);
+
+            for (YuvDownscaler.Filter filter : YuvDownscaler.Filter.values()) {
+                final YuvDownscaler downscaler = new YuvDownscaler(null, filter);
+                final ByteBuffer output = ByteBuffer.allocateDirect(YuvRepacker.packedSize(outputWidth, outputHeight));
+                downscaler.downscale(y, width, u, v, chromaWidth, 1, width, height, output, outputWidth, outputHeight);
+
+                final int outputChromaWidth = (outputWidth + 1) / 2;
+                final int outputChromaHeight = (outputHeight + 1) / 2;
+                final int outputLuma = outputWidth * outputHeight;
+                assertPlaneMatchesReference(filter, y, width, height, output, 0, outputWidth, outputHeight);
+                assertPlaneMatchesReference(filter, u, chromaWidth, chromaHeight,
+                        output, outputLuma, outputChromaWidth, outputChromaHeight);
+                assertPlaneMatchesReference(filter, v, chromaWidth, chromaHeight,
+                        output, outputLuma + outputChromaWidth * outputChromaHeight, outputChromaWidth, outputChromaHeight);
+            }
+        }
+    }
+
+    @Test
+    public void downscalingPooledBuffersDoesNotAllocate() {
+        final int width = 1280;
+        final int height = 720;
+        final Random random = new Random(2);
+        final ByteBuffer y = randomBuffer(random, width * height);
+        final ByteBuffer vu = randomBuffer(random, width * height / 2);
+        final ByteBuffer u = slice(vu, 1);
+        final ByteBuffer v = slice(vu, 0);
+        final StripeExecutor executor = new StripeExecutor(3, "DownscalerTest");
+        try {
+            final YuvDownscaler downscaler = new YuvDownscaler(executor, YuvDownscaler.Filter.BOX);
+            /* output buffers cycle as they do through a pool */
+            final ByteBuffer[] outputs = new ByteBuffer[3];
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = ByteBuffer.allocateDirect(YuvRepacker.packedSize(640, 360));
+            }
+            final int frames = 2000;
+            /* camera images hand out new plane buffers every frame */
+            final ByteBuffer[] yViews = views(y, frames);
+            final ByteBuffer[] uViews = views(u, frames);
+            final ByteBuffer[] vViews = views(v, frames);
+            for (int i = 0; i < frames; i++) {
+                downscaler.downscale(y, width, u, v, width, 2, width, height, outputs[i % outputs.length], 640, 360);
+            }
+
+            final long heapBefore = AllocationCounter.currentThreadBytes();
+            for (int i = 0; i < frames; i++) {
+                downscaler.downscale(yViews[i], width, uViews[i], vViews[i], width, 2, width, height,
+                        outputs[i % outputs.length], 640, 360);
+            }
+            final long heapAfter = AllocationCounter.currentThreadBytes();
+            if (heapBefore >= 0) {
+                /* Reading the counter may allocate a little, one object per frame would take 16 bytes or more */
+                final long heapBytes = heapAfter - heapBefore;
+                assertTrue("Heap bytes allocated by downscaling: " + heapBytes, heapBytes < frames);
+            }
+        } finally {
+            executor.close();
+        }
+    }
+
+    /* BOX must round the window average exactly, BILINEAR may be off by one from fixed point */
+    private static void assertPlaneMatchesReference(YuvDownscaler.Filter filter, ByteBuffer plane, int width, int height,
+                                                    ByteBuffer output, int outputOffset, int outputWidth, int outputHeight) {
+        for (int row = 0; row < outputHeight; row++) {
+            for (int x = 0; x < outputWidth; x++) {
+                final int actual = output.get(outputOffset + row * outputWidth + x) & 0xFF;
+                final double expected;
+                if (filter == YuvDownscaler.Filter.BOX) {
+                    expected = boxAverage(plane, width, x * width / outputWidth, (x + 1) * width / outputWidth,
+                            row * height / outputHeight, (row + 1) * height / outputHeight);
+                } else {
+                    expected = bilinear(plane, width, height,
+                            (x + 0.5) * width / outputWidth - 0.5, (row + 0.5) * height / outputHeight - 0.5);
+                }
+                final String message = filter + " " + width + "x" + height + " row " + row + ", column " + x
+                        + ": expected " + expected + ", got " + actual;
+                if (filter == YuvDownscaler.Filter.BOX) {
+                    assertEquals(message, (int) Math.floor(expected + 0.5), actual);
+                } else {
+                    assertTrue(message, Math.abs(expected - actual) <= 1);
+                }
+            }
+        }
+    }
+
+    private static double boxAverage(ByteBuffer plane, int width, int fromX, int toX, int fromRow, int toRow) {
+        long sum = 0;
+        for (int row = fromRow; row < toRow; row++) {
+            for (int x = fromX; x < toX; x++) {
+                sum += plane.get(row * width + x) & 0xFF;
+            }
+        }
+        return (double) sum / ((toX - fromX) * (toRow - fromRow));
+    }
+
+    private static double bilinear(ByteBuffer plane, int width, int height, double x, double y) {
+        x = Math.max(0, x);
+        y = Math.max(0, y);
+        final int left = (int) x;
+        final int top = (int) y;
+        final int right = Math.min(left + 1, width - 1);
+        final int bottom = Math.min(top + 1, height - 1);
+        final double wx = x - left;
+        final double wy = y - top;
+        final double topValue = (plane.get(top * width + left) & 0xFF) * (1 - wx) + (plane.get(top * width + right) & 0xFF) * wx;
+        final double bottomValue = (plane.get(bottom * width + left) & 0xFF) * (1 - wx) + (plane.get(bottom * width + right) & 0xFF) * wx;
+        return topValue * (1 - wy) + bottomValue * wy;
+    }
+
+    /* Distinct buffers sharing the memory of the plane */
+    private static ByteBuffer[] views(ByteBuffer plane, int count) {
+        final ByteBuffer[] views = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            views[i] = plane.duplicate();
+        }
+        return views;
+    }
+
+    private static void assertPlaneEquals(ByteBuffer expected, int expectedOffset, int expectedStride,
+                                          ByteBuffer actual, int actualOffset, int actualStride,
+                                          int width, int height) {
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals("row " + row + ", column " + x,
+                        expected.get(expectedOffset + row * expectedStride + x),
+                        actual.get(actualOffset + row * actualStride + x));
+            }
+        }
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).clear();
+        return buffer;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view.slice();
+    }
+}
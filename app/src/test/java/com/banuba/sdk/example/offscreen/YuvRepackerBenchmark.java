@@ -0,0 +1,92 @@
+package com.banuba.sdk.example.offscreen;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repacking of camera-like YUV_420_888 frames (64 byte row padding, interleaved VU chroma)
+ * into I420 and NV12. Run with ./gradlew :app:jmh -Pjmh=YuvRepackerBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvRepackerBenchmark {
+    private static final int ROW_PADDING = 64;
+
+    @Param({"1280x720", "1920x1080", "3840x2160"})
+    public String size;
+
+    @Param({"I420", "NV12"})
+    public String format;
+
+    /* threads besides the calling one */
+    @Param({"0", "3"})
+    public int workers;
+
+    private StripeExecutor mExecutor;
+    private YuvRepacker mRepacker;
+    private int mFormat;
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private ByteBuffer mOutput;
+
+    @Setup
+    public void setUp() {
+        final String[] dimensions = size.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+        mFormat = "NV12".equals(format) ? YuvRepacker.FORMAT_NV12 : YuvRepacker.FORMAT_I420;
+        mExecutor = workers > 0 ? new StripeExecutor(workers, "RepackerBenchmark") : null;
+        mRepacker = new YuvRepacker(ByteBuffer::allocateDirect, mExecutor);
+
+        final Random random = new Random(1);
+        mY = randomBuffer(random, (mWidth + ROW_PADDING) * mHeight);
+        final ByteBuffer vu = randomBuffer(random, (mWidth + ROW_PADDING) * mHeight / 2);
+        mV = vu.duplicate();
+        mU = vu.duplicate();
+        mU.position(1);
+        mU = mU.slice();
+        mOutput = ByteBuffer.allocateDirect(YuvRepacker.packedSize(mWidth, mHeight));
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.close();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer repack() {
+        mRepacker.repack(mY, mWidth + ROW_PADDING, mU, mV, mWidth + ROW_PADDING, 2, mWidth, mHeight, mFormat, mOutput);
+        return mOutput;
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).clear();
+        return buffer;
+    }
+}
@@ -0,0 +1,213 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class YuvRepackerTest {
+    private static final StripeExecutor EXECUTOR = new StripeExecutor(3, "RepackerTest");
+
+    @AfterClass
+    public static void closeExecutor() {
+        EXECUTOR.close();
+    }
+
+    /* YUV_420_888 planes as an ImageReader may hand them out */
+    private static final class Source {
+        final int width;
+        final int height;
+        final int yRowStride;
+        final int uvRowStride;
+        final int uvPixelStride;
+        final ByteBuffer y;
+        final ByteBuffer u;
+        final ByteBuffer v;
+
+        Source(Random random, int width, int height, int rowPadding, int uvPixelStride, boolean vuOrder) {
+            this.width = width;
+            this.height = height;
+            this.uvPixelStride = uvPixelStride;
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            yRowStride = width + rowPadding;
+            uvRowStride = chromaWidth * uvPixelStride + rowPadding;
+            /* the last row carries no padding */
+            y = randomBuffer(random, yRowStride * (height - 1) + width);
+            final int uvPlaneBytes = uvRowStride * (chromaHeight - 1) + (chromaWidth - 1) * uvPixelStride + 1;
+            if (uvPixelStride == 2) {
+                /* interleaved chroma, the second plane starts one byte after the first */
+                final ByteBuffer block = randomBuffer(random, uvPlaneBytes + 1);
+                final ByteBuffer first = slice(block, 0, uvPlaneBytes);
+                final ByteBuffer second = slice(block, 1, uvPlaneBytes);
+                u = vuOrder ? second : first;
+                v = vuOrder ? first : second;
+            } else {
+                u = randomBuffer(random, uvPlaneBytes);
+                v = randomBuffer(random, uvPlaneBytes);
+            }
+        }
+
+        byte yAt(int x, int row) {
+            return y.get(row * yRowStride + x);
+        }
+
+        byte uAt(int x, int row) {
+            return u.get(row * uvRowStride + x * uvPixelStride);
+        }
+
+        byte vAt(int x, int row) {
+            return v.get(row * uvRowStride + x * uvPixelStride);
+        }
+
+        void repack(YuvRepacker repacker, int format, ByteBuffer output) {
+            repacker.repack(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height, format, output);
+        }
+    }
+
+    /* Per pixel reference of the packed layouts */
+    private static byte[] reference(Source source, int format) {
+        final int width = source.width;
+        final int height = source.height;
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        final byte[] packed = new byte[YuvRepacker.packedSize(width, height)];
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                packed[row * width + x] = source.yAt(x, row);
+            }
+        }
+        final int lumaSize = width * height;
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                if (format == YuvRepacker.FORMAT_I420) {
+                    packed[lumaSize + row * chromaWidth + x] = source.uAt(x, row);
+                    packed[lumaSize + chromaWidth * chromaHeight + row * chromaWidth + x] = source.vAt(x, row);
+                } else {
+                    packed[lumaSize + 2 * (row * chromaWidth + x)] = source.uAt(x, row);
+                    packed[lumaSize + 2 * (row * chromaWidth + x) + 1] = source.vAt(x, row);
+                }
+            }
+        }
+        return packed;
+    }
+
+    private static void assertMatchesReference(Source source, StripeExecutor executor) {
+        for (int format : new int[]{YuvRepacker.FORMAT_I420, YuvRepacker.FORMAT_NV12}) {
+            final YuvRepacker repacker = new YuvRepacker(ByteBuffer::allocateDirect, executor);
+            final ByteBuffer output = ByteBuffer.allocateDirect(YuvRepacker.packedSize(source.width, source.height) + 16);
+            source.repack(repacker, format, output);
+
+            final byte[] expected = reference(source, format);
+            for (int i = 0; i < expected.length; i++) {
+                if (expected[i] != output.get(i)) {
+                    throw new AssertionError("Format " + format + ", " + source.width + "x" + source.height
+                            + " pixel stride " + source.uvPixelStride + ": byte " + i + " differs");
+                }
+            }
+            /* nothing is written past the packed image */
+            for (int i = expected.length; i < output.capacity(); i++) {
+                assertEquals(0, output.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void everyStrideCombinationMatchesReference() {
+        final Random random = new Random(13);
+        final int[][] sizes = {{2, 2}, {64, 48}, {65, 47}, {641, 361}, {1280, 720}};
+        for (int[] size : sizes) {
+            for (int rowPadding : new int[]{0, 3, 64}) {
+                for (int pixelStride : new int[]{1, 2}) {
+                    for (boolean vuOrder : new boolean[]{false, true}) {
+                        final Source source = new Source(random, size[0], size[1], rowPadding, pixelStride, vuOrder);
+                        assertMatchesReference(source, null);
+                        assertMatchesReference(source, EXECUTOR);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void planePositionsAndLimitsAreKept() {
+        final Source source = new Source(new Random(5), 64, 48, 16, 2, true);
+        source.y.position(3).limit(100);
+        final YuvRepacker repacker = new YuvRepacker(ByteBuffer::allocateDirect, EXECUTOR);
+        final ByteBuffer output = ByteBuffer.allocateDirect(YuvRepacker.packedSize(64, 48));
+        output.position(7);
+        source.repack(repacker, YuvRepacker.FORMAT_I420, output);
+
+        assertEquals(3, source.y.position());
+        assertEquals(100, source.y.limit());
+        assertEquals(7, output.position());
+        assertEquals(output.capacity(), output.limit());
+        /* plane data is read from index 0 whatever the position */
+        assertEquals(source.y.get(0), output.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void smallOutputIsRejected() {
+        final Source source = new Source(new Random(5), 64, 48, 0, 1, false);
+        source.repack(new YuvRepacker(ByteBuffer::allocateDirect, null), YuvRepacker.FORMAT_I420,
+                ByteBuffer.allocateDirect(YuvRepacker.packedSize(64, 48) - 1));
+    }
+
+    @Test
+    public void repackingPooledBuffersDoesNotAllocate() {
+        final Source source = new Source(new Random(3), 1280, 720, 64, 2, true);
+        final YuvRepacker repacker = new YuvRepacker(ByteBuffer::allocateDirect, EXECUTOR);
+        /* output buffers cycle as they do through a pool */
+        final ByteBuffer[] outputs = new ByteBuffer[3];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = ByteBuffer.allocateDirect(YuvRepacker.packedSize(1280, 720));
+        }
+        final int frames = 2000;
+        /* camera images hand out new plane buffers every frame */
+        final ByteBuffer[] y = views(source.y, frames);
+        final ByteBuffer[] u = views(source.u, frames);
+        final ByteBuffer[] v = views(source.v, frames);
+        for (int i = 0; i < frames; i++) {
+            source.repack(repacker, YuvRepacker.FORMAT_I420, outputs[i % outputs.length]);
+        }
+
+        final long heapBefore = AllocationCounter.currentThreadBytes();
+        for (int i = 0; i < frames; i++) {
+            repacker.repack(y[i], source.yRowStride, u[i], v[i], source.uvRowStride, source.uvPixelStride,
+                    source.width, source.height, YuvRepacker.FORMAT_I420, outputs[i % outputs.length]);
+        }
+        final long heapAfter = AllocationCounter.currentThreadBytes();
+        if (heapBefore >= 0) {
+            /* Reading the counter may allocate a little, one object per frame would take 16 bytes or more */
+            final long heapBytes = heapAfter - heapBefore;
+            assertTrue("Heap bytes allocated by repacking: " + heapBytes, heapBytes < frames);
+        }
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).clear();
+        return buffer;
+    }
+
+    /* Distinct buffers sharing the memory of the plane */
+    private static ByteBuffer[] views(ByteBuffer plane, int count) {
+        final ByteBuffer[] views = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            views[i] = plane.duplicate();
+        }
+        return views;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset).limit(offset + length);
+        return view.slice();
+    }
+}
@@ -0,0 +1,106 @@
+package com.banuba.sdk.example.offscreen;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotation of packed I420 frames by tile size, tile size 0 is a naive per pixel transpose
+ * reading source rows and writing destination columns.
+ * Run with ./gradlew :app:jmh -Pjmh=YuvRotatorBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvRotatorBenchmark {
+    @Param({"1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"90", "180", "270"})
+    public int angle;
+
+    @Param({"0", "8", "16", "32", "64", "128"})
+    public int tileSize;
+
+    private YuvRotator mRotator;
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private ByteBuffer mOutput;
+
+    @Setup
+    public void setUp() {
+        final String[] dimensions = size.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+        mRotator = tileSize > 0 ? new YuvRotator(tileSize) : null;
+
+        final Random random = new Random(1);
+        mY = randomBuffer(random, mWidth * mHeight);
+        mU = randomBuffer(random, mWidth * mHeight / 4);
+        mV = randomBuffer(random, mWidth * mHeight / 4);
+        mOutput = ByteBuffer.allocateDirect(mWidth * mHeight * 3 / 2);
+    }
+
+    @Benchmark
+    public ByteBuffer rotate() {
+        final int chromaWidth = mWidth / 2;
+        final int chromaHeight = mHeight / 2;
+        if (mRotator != null) {
+            mRotator.rotateI420(mY, mWidth, mU, chromaWidth, mV, chromaWidth, mWidth, mHeight, angle, false, mOutput);
+        } else {
+            final int lumaSize = mWidth * mHeight;
+            rotateNaive(mY, mWidth, mHeight, 0);
+            rotateNaive(mU, chromaWidth, chromaHeight, lumaSize);
+            rotateNaive(mV, chromaWidth, chromaHeight, lumaSize + lumaSize / 4);
+        }
+        return mOutput;
+    }
+
+    private void rotateNaive(ByteBuffer source, int width, int height, int outputOffset) {
+        final ByteBuffer output = mOutput;
+        final int outWidth = YuvRotator.rotatedWidth(width, height, angle);
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                final int index;
+                switch (angle) {
+                    case 90:
+                        index = (width - 1 - x) * outWidth + row;
+                        break;
+                    case 180:
+                        index = (height - 1 - row) * outWidth + width - 1 - x;
+                        break;
+                    default:
+                        index = x * outWidth + height - 1 - row;
+                        break;
+                }
+                output.put(outputOffset + index, source.get(row * width + x));
+            }
+        }
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).clear();
+        return buffer;
+    }
+}
@@ -0,0 +1,178 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class YuvRotatorTest {
+    private static final int[] ANGLES = {0, 90, 180, 270};
+    /* chroma planes of all but the first are odd in at least one side, none is a multiple of the tiles */
+    private static final int[][] SIZES = {{2, 2}, {7, 5}, {5, 7}, {66, 46}, {130, 70}};
+    private static final int[] TILE_SIZES = {1, 8, 64};
+    private static final int ROW_PADDING = 3;
+
+    @Test
+    public void rotatesAndMirrorsI420() {
+        final Random random = new Random(5);
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            final int yStride = width + ROW_PADDING;
+            final int uvStride = chromaWidth + ROW_PADDING;
+            final ByteBuffer y = randomBuffer(random, yStride * height);
+            final ByteBuffer u = randomBuffer(random, uvStride * chromaHeight);
+            final ByteBuffer v = randomBuffer(random, uvStride * chromaHeight);
+            for (int tileSize : TILE_SIZES) {
+                final YuvRotator rotator = new YuvRotator(tileSize);
+                for (int angle : ANGLES) {
+                    for (boolean mirror : new boolean[]{false, true}) {
+                        final String message = width + "x" + height + " tile " + tileSize
+                                + " angle " + angle + (mirror ? " mirrored" : "");
+                        final byte[] expected = concat(
+                                reference(y, yStride, width, height, 1, angle, mirror),
+                                reference(u, uvStride, chromaWidth, chromaHeight, 1, angle, mirror),
+                                reference(v, uvStride, chromaWidth, chromaHeight, 1, angle, mirror));
+                        final ByteBuffer output = ByteBuffer.allocateDirect(expected.length);
+                        rotator.rotateI420(y, yStride, u, uvStride, v, uvStride, width, height, angle, mirror, output);
+                        assertArrayEquals(message, expected, toArray(output));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rotatesAndMirrorsNV12() {
+        final Random random = new Random(6);
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            final int yStride = width + ROW_PADDING;
+            final int uvStride = 2 * chromaWidth + ROW_PADDING;
+            final ByteBuffer y = randomBuffer(random, yStride * height);
+            final ByteBuffer uv = randomBuffer(random, uvStride * chromaHeight);
+            for (int tileSize : TILE_SIZES) {
+                final YuvRotator rotator = new YuvRotator(tileSize);
+                for (int angle : ANGLES) {
+                    for (boolean mirror : new boolean[]{false, true}) {
+                        final String message = width + "x" + height + " tile " + tileSize
+                                + " angle " + angle + (mirror ? " mirrored" : "");
+                        final byte[] expected = concat(
+                                reference(y, yStride, width, height, 1, angle, mirror),
+                                reference(uv, uvStride, chromaWidth, chromaHeight, 2, angle, mirror));
+                        final ByteBuffer output = ByteBuffer.allocateDirect(expected.length);
+                        rotator.rotateNV12(y, yStride, uv, uvStride, width, height, angle, mirror, output);
+                        assertArrayEquals(message, expected, toArray(output));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rotatedSizesSwapForQuarterTurns() {
+        assertEquals(5, YuvRotator.rotatedWidth(7, 5, 90));
+        assertEquals(7, YuvRotator.rotatedHeight(7, 5, 270));
+        assertEquals(7, YuvRotator.rotatedWidth(7, 5, 180));
+        assertEquals(5, YuvRotator.rotatedHeight(7, 5, 0));
+    }
+
+    @Test
+    public void positionsAndLimitsAreRestored() {
+        final ByteBuffer source = randomBuffer(new Random(7), 64);
+        source.position(3).limit(40);
+        final ByteBuffer output = ByteBuffer.allocateDirect(64);
+        output.position(5).limit(50);
+        new YuvRotator(4).rotatePlane(source, 8, 8, 8, 1, 90, true, output, 0, 8);
+
+        assertEquals(3, source.position());
+        assertEquals(40, source.limit());
+        assertEquals(5, output.position());
+        assertEquals(50, output.limit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void otherAnglesAreRejected() {
+        new YuvRotator().rotatePlane(ByteBuffer.allocateDirect(4), 2, 2, 2, 1, 45, false, ByteBuffer.allocateDirect(4), 0, 2);
+    }
+
+    /*
+     * Per pixel reference: a counter-clockwise turn by the angle, then a horizontal mirror
+     * of the turned image. Pixels of interleaved chroma move as pairs.
+     */
+    private static byte[] reference(ByteBuffer plane, int stride, int width, int height, int pixelBytes,
+                                    int angle, boolean mirror) {
+        final int outWidth = YuvRotator.rotatedWidth(width, height, angle);
+        final int outHeight = YuvRotator.rotatedHeight(width, height, angle);
+        final byte[] out = new byte[outWidth * outHeight * pixelBytes];
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                int outX;
+                int outY;
+                switch (angle) {
+                    case 90:
+                        outX = row;
+                        outY = width - 1 - x;
+                        break;
+                    case 180:
+                        outX = width - 1 - x;
+                        outY = height - 1 - row;
+                        break;
+                    case 270:
+                        outX = height - 1 - row;
+                        outY = x;
+                        break;
+                    default:
+                        outX = x;
+                        outY = row;
+                        break;
+                }
+                if (mirror) {
+                    outX = outWidth - 1 - outX;
+                }
+                for (int b = 0; b < pixelBytes; b++) {
+                    out[(outY * outWidth + outX) * pixelBytes + b] = plane.get(row * stride + x * pixelBytes + b);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static byte[] concat(byte[]... planes) {
+        int size = 0;
+        for (byte[] plane : planes) {
+            size += plane.length;
+        }
+        final byte[] result = new byte[size];
+        int offset = 0;
+        for (byte[] plane : planes) {
+            System.arraycopy(plane, 0, result, offset, plane.length);
+            offset += plane.length;
+        }
+        return result;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.capacity()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(i);
+        }
+        return bytes;
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).clear();
+        return buffer;
+    }
+}
@@ -0,0 +1,94 @@
+package com.banuba.sdk.example.offscreen;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of packed I420 and NV12 frames to ARGB_8888 pixels in bitmap order.
+ * Run with ./gradlew :app:jmh -Pjmh=YuvToArgbConverterBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvToArgbConverterBenchmark {
+    @Param({"1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"I420", "NV12"})
+    public String format;
+
+    /* threads besides the calling one */
+    @Param({"0", "3"})
+    public int workers;
+
+    private StripeExecutor mExecutor;
+    private YuvToArgbConverter mConverter;
+    private boolean mSemiPlanar;
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private IntBuffer mOutput;
+
+    @Setup
+    public void setUp() {
+        final String[] dimensions = size.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+        mSemiPlanar = "NV12".equals(format);
+        mExecutor = workers > 0 ? new StripeExecutor(workers, "ConverterBenchmark") : null;
+        mConverter = new YuvToArgbConverter(mExecutor,
+                YuvToArgbConverter.ColorStandard.BT601, YuvToArgbConverter.PixelOrder.BITMAP);
+
+        final Random random = new Random(1);
+        mY = randomBuffer(random, mWidth * mHeight);
+        mU = randomBuffer(random, mWidth * mHeight / 2);
+        mV = randomBuffer(random, mWidth * mHeight / 4);
+        mOutput = ByteBuffer.allocateDirect(mWidth * mHeight * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.close();
+        }
+    }
+
+    @Benchmark
+    public IntBuffer convert() {
+        if (mSemiPlanar) {
+            mConverter.convertSemiPlanar(mY, mWidth, mU, mWidth, false, mWidth, mHeight, mOutput, mWidth);
+        } else {
+            mConverter.convertI420(mY, mWidth, mU, mWidth / 2, mV, mWidth / 2, mWidth, mHeight, mOutput, mWidth);
+        }
+        return mOutput;
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).clear();
+        return buffer;
+    }
+}
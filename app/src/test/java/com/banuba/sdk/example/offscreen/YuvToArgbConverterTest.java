@@ -0,0 +1,220 @@
+package com.banuba.sdk.example.offscreen;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class YuvToArgbConverterTest {
+    private static final StripeExecutor EXECUTOR = new StripeExecutor(3, "ConverterTest");
+
+    private static final Pattern NUMBER = Pattern.compile("(\\d+\\.\\d+)f");
+
+    @AfterClass
+    public static void closeExecutor() {
+        EXECUTOR.close();
+    }
+
+    /* Y, U, V of 100% color bars and the RGB they stand for */
+    private static final int[][] BT601_BARS = {
+            {235, 128, 128, 255, 255, 255},
+            {16, 128, 128, 0, 0, 0},
+            {81, 90, 240, 255, 0, 0},
+            {145, 54, 34, 0, 255, 0},
+            {41, 240, 110, 0, 0, 255},
+            {210, 16, 146, 255, 255, 0},
+            {170, 166, 16, 0, 255, 255},
+            {106, 202, 222, 255, 0, 255},
+    };
+
+    private static final int[][] BT709_BARS = {
+            {235, 128, 128, 255, 255, 255},
+            {16, 128, 128, 0, 0, 0},
+            {63, 102, 240, 255, 0, 0},
+            {173, 42, 26, 0, 255, 0},
+            {32, 240, 118, 0, 0, 255},
+            {219, 16, 138, 255, 255, 0},
+            {188, 154, 16, 0, 255, 255},
+            {78, 214, 230, 255, 0, 255},
+    };
+
+    @Test
+    public void colorBarsMatchBt601() {
+        assertColorBars(YuvToArgbConverter.ColorStandard.BT601, BT601_BARS);
+    }
+
+    @Test
+    public void colorBarsMatchBt709() {
+        assertColorBars(YuvToArgbConverter.ColorStandard.BT709, BT709_BARS);
+    }
+
+    @Test
+    public void matchesBt601Shader() {
+        assertMatchesShader(YuvToArgbConverter.ColorStandard.BT601);
+    }
+
+    @Test
+    public void matchesBt709Shader() {
+        assertMatchesShader(YuvToArgbConverter.ColorStandard.BT709);
+    }
+
+    @Test
+    public void semiPlanarAndStripedOutputMatchI420() {
+        final Random random = new Random(3);
+        for (int[] size : new int[][]{{2, 2}, {65, 47}, {641, 361}}) {
+            final int width = size[0];
+            final int height = size[1];
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            final int yStride = width + 5;
+            final int uStride = chromaWidth + 3;
+            final int uvStride = 2 * chromaWidth + 7;
+            final ByteBuffer y = randomBuffer(random, yStride * height);
+            final ByteBuffer u = randomBuffer(random, uStride * chromaHeight);
+            final ByteBuffer v = randomBuffer(random, uStride * chromaHeight);
+            final ByteBuffer uv = ByteBuffer.allocateDirect(uvStride * chromaHeight);
+            final ByteBuffer vu = ByteBuffer.allocateDirect(uvStride * chromaHeight);
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int x = 0; x < chromaWidth; x++) {
+                    uv.put(row * uvStride + 2 * x, u.get(row * uStride + x));
+                    uv.put(row * uvStride + 2 * x + 1, v.get(row * uStride + x));
+                    vu.put(row * uvStride + 2 * x, v.get(row * uStride + x));
+                    vu.put(row * uvStride + 2 * x + 1, u.get(row * uStride + x));
+                }
+            }
+
+            final YuvToArgbConverter single = new YuvToArgbConverter(null,
+                    YuvToArgbConverter.ColorStandard.BT601, YuvToArgbConverter.PixelOrder.ARGB);
+            final YuvToArgbConverter striped = new YuvToArgbConverter(EXECUTOR,
+                    YuvToArgbConverter.ColorStandard.BT601, YuvToArgbConverter.PixelOrder.ARGB);
+            final IntBuffer expected = IntBuffer.allocate(width * height);
+            single.convertI420(y, yStride, u, uStride, v, uStride, width, height, expected, width);
+
+            final IntBuffer output = IntBuffer.allocate(width * height);
+            striped.convertI420(y, yStride, u, uStride, v, uStride, width, height, output, width);
+            assertArrayEquals("striped " + width + "x" + height, expected.array(), output.array());
+            single.convertSemiPlanar(y, yStride, uv, uvStride, false, width, height, output, width);
+            assertArrayEquals("NV12 " + width + "x" + height, expected.array(), output.array());
+            striped.convertSemiPlanar(y, yStride, vu, uvStride, true, width, height, output, width);
+            assertArrayEquals("NV21 " + width + "x" + height, expected.array(), output.array());
+        }
+    }
+
+    @Test
+    public void bitmapOrderHasRgbaBytes() {
+        final YuvToArgbConverter converter = new YuvToArgbConverter(null,
+                YuvToArgbConverter.ColorStandard.BT601, YuvToArgbConverter.PixelOrder.BITMAP);
+        final ByteBuffer pixels = ByteBuffer.allocateDirect(4 * 4).order(ByteOrder.nativeOrder());
+        /* red at 100% on every pixel of a 2x2 image */
+        converter.convertI420(filled(4, 81), 2, filled(1, 90), 1, filled(1, 240), 1, 2, 2,
+                pixels.asIntBuffer(), 2);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue("R " + i, (pixels.get(4 * i) & 0xFF) >= 253);
+            assertTrue("G " + i, (pixels.get(4 * i + 1) & 0xFF) <= 2);
+            assertTrue("B " + i, (pixels.get(4 * i + 2) & 0xFF) <= 2);
+            assertEquals("A " + i, 0xFF, pixels.get(4 * i + 3) & 0xFF);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void smallOutputIsRejected() {
+        final YuvToArgbConverter converter = new YuvToArgbConverter(null,
+                YuvToArgbConverter.ColorStandard.BT601, YuvToArgbConverter.PixelOrder.ARGB);
+        converter.convertI420(filled(16, 16), 4, filled(4, 128), 2, filled(4, 128), 2, 4, 4,
+                IntBuffer.allocate(15), 4);
+    }
+
+    private static void assertColorBars(YuvToArgbConverter.ColorStandard standard, int[][] bars) {
+        final YuvToArgbConverter converter = new YuvToArgbConverter(null, standard, YuvToArgbConverter.PixelOrder.ARGB);
+        final IntBuffer output = IntBuffer.allocate(4);
+        for (int[] bar : bars) {
+            converter.convertI420(filled(4, bar[0]), 2, filled(1, bar[1]), 1, filled(1, bar[2]), 1, 2, 2, output, 2);
+            final int color = output.get(0);
+            final String message = standard + " Y " + bar[0] + " U " + bar[1] + " V " + bar[2]
+                    + " gave " + Integer.toHexString(color);
+            /* bar values are rounded to whole codes, which moves primaries by up to 3 */
+            assertEquals(message, 0xFF, color >>> 24);
+            assertEquals(message, bar[3], (color >> 16) & 0xFF, 3);
+            assertEquals(message, bar[4], (color >> 8) & 0xFF, 3);
+            assertEquals(message, bar[5], color & 0xFF, 3);
+        }
+    }
+
+    /*
+     * Evaluates the GLSL the renderer draws with in single precision, as a GPU does, over all
+     * chroma pairs and a spread of luma values, and takes the fixed point result within one code.
+     */
+    private static void assertMatchesShader(YuvToArgbConverter.ColorStandard standard) {
+        final float[] c = shaderCoefficients(standard.shaderColor());
+        final YuvToArgbConverter converter = new YuvToArgbConverter(EXECUTOR, standard, YuvToArgbConverter.PixelOrder.ARGB);
+        /* every U, V pair in a 256x256 chroma plane of a 512x512 image */
+        final int size = 512;
+        final ByteBuffer u = ByteBuffer.allocateDirect(256 * 256);
+        final ByteBuffer v = ByteBuffer.allocateDirect(256 * 256);
+        for (int i = 0; i < 256 * 256; i++) {
+            u.put(i, (byte) (i & 0xFF));
+            v.put(i, (byte) (i >> 8));
+        }
+        final IntBuffer output = IntBuffer.allocate(size * size);
+        int maxDifference = 0;
+        for (int luma = 0; luma < 256; luma += luma < 20 || luma > 230 ? 1 : 7) {
+            converter.convertI420(filled(size * size, luma), size, u, 256, v, 256, size, size, output, size);
+            final float y = luma / 255.0f;
+            for (int i = 0; i < 256 * 256; i++) {
+                final float fu = (i & 0xFF) / 255.0f;
+                final float fv = (i >> 8) / 255.0f;
+                final int r = quantize(c[0] * y + c[1] * fv - c[2]);
+                final int g = quantize(c[3] * y - c[4] * fu - c[5] * fv + c[6]);
+                final int b = quantize(c[7] * y + c[8] * fu - c[9]);
+                /* top left pixel of the 2x2 block using this chroma sample */
+                final int color = output.get((i >> 8) * 2 * size + (i & 0xFF) * 2);
+                maxDifference = Math.max(maxDifference, Math.abs(r - ((color >> 16) & 0xFF)));
+                maxDifference = Math.max(maxDifference, Math.abs(g - ((color >> 8) & 0xFF)));
+                maxDifference = Math.max(maxDifference, Math.abs(b - (color & 0xFF)));
+            }
+        }
+        assertTrue(standard + " differs from the shader by " + maxDifference, maxDifference <= 1);
+    }
+
+    private static float[] shaderCoefficients(String shaderColor) {
+        final float[] coefficients = new float[10];
+        final Matcher matcher = NUMBER.matcher(shaderColor);
+        int count = 0;
+        while (matcher.find() && count < coefficients.length) {
+            coefficients[count++] = Float.parseFloat(matcher.group(1));
+        }
+        assertEquals(shaderColor, coefficients.length, count);
+        return coefficients;
+    }
+
+    /* unorm color attachment write */
+    private static int quantize(float value) {
+        return Math.round(Math.min(Math.max(value, 0.0f), 1.0f) * 255.0f);
+    }
+
+    private static ByteBuffer filled(int size, int value) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, (byte) value);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).clear();
+        return buffer;
+    }
+}